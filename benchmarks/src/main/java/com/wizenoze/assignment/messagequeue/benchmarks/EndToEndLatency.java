@@ -0,0 +1,99 @@
+package com.wizenoze.assignment.messagequeue.benchmarks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.Histogram;
+
+import com.wizenoze.assignment.messagequeue.CommonUtils;
+import com.wizenoze.assignment.messagequeue.FileBasedQueueService;
+import com.wizenoze.assignment.messagequeue.QueueService;
+
+/*
+ * Latency from push to the start of processing. Producers push at a fixed total
+ * rate and every message carries the time it was due to be pushed, so a stalled
+ * producer shows up in the latency instead of hiding it (coordinated omission).
+ * One consumer takes the messages. Messages due in the warm-up are not recorded.
+ *
+ * java -cp benchmarks/target/benchmarks.jar com.wizenoze.assignment.messagequeue.benchmarks.EndToEndLatency \
+ *     <messages per second> <seconds> <producers> <warm-up seconds>
+ */
+public class EndToEndLatency {
+
+	private static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+
+	public static void main(String[] args) throws Exception {
+		int rate = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		int producers = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+		int warmup = args.length > 3 ? Integer.parseInt(args[3]) : 2;
+
+		Histogram histogram = new Histogram(TimeUnit.SECONDS.toNanos(60), 3);
+		String queueName = "benchmark-latency-" + UUID.randomUUID();
+		List<QueueService> queues = new ArrayList<>();
+		for (int producer = 0; producer < producers; producer++) {
+			queues.add(new FileBasedQueueService(queueName, SEGMENT_SIZE));
+		}
+
+		long total = (long) rate * (seconds + warmup);
+		long perProducer = total / producers;
+		long interval = TimeUnit.SECONDS.toNanos(1) * producers / rate;
+		long start = System.nanoTime();
+		long recordFrom = start + TimeUnit.SECONDS.toNanos(warmup);
+
+		QueueService consumer = new FileBasedQueueService(queueName, SEGMENT_SIZE) {
+
+			@Override
+			public boolean processMessage(String message) throws IOException, TimeoutException {
+				long due = Long.parseLong(message);
+				if (due - recordFrom >= 0) {
+					histogram.recordValue(Math.max(0, System.nanoTime() - due));
+				}
+				return true;
+			}
+		};
+
+		ExecutorService executor = Executors.newFixedThreadPool(producers);
+		List<Future<?>> futures = new ArrayList<>();
+		for (QueueService queue : queues) {
+			futures.add(executor.submit(() -> {
+				for (long message = 0; message < perProducer; message++) {
+					long due = start + message * interval;
+					long wait;
+					while ((wait = due - System.nanoTime()) > 0) {
+						LockSupport.parkNanos(wait);
+					}
+					queue.push(Long.toString(due));
+				}
+				queue.shutdown();
+				return null;
+			}));
+		}
+
+		for (long received = 0; received < perProducer * producers; received++) {
+			consumer.take();
+		}
+		for (Future<?> future : futures) {
+			future.get();
+		}
+		executor.shutdown();
+		consumer.shutdown();
+		CommonUtils.deleteQueueFiles(queueName);
+
+		System.out.println(String.format("%s messages at %s/s from %s producers, latency in microseconds:",
+				histogram.getTotalCount(), rate, producers));
+		for (double percentile : new double[] { 50, 90, 99, 99.9, 99.99 }) {
+			System.out.println(String.format("  p%-6s %10.1f", percentile,
+					histogram.getValueAtPercentile(percentile) / 1000.0));
+		}
+		System.out.println(String.format("  max     %10.1f", histogram.getMaxValue() / 1000.0));
+	}
+}
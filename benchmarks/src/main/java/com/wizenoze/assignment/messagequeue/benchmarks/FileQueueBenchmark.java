@@ -0,0 +1,94 @@
+package com.wizenoze.assignment.messagequeue.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.wizenoze.assignment.messagequeue.FileQueue;
+import com.wizenoze.assignment.messagequeue.MessageStatus;
+
+/**
+ * Raw record writes and reads on a mapped file, without any queue logic.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileQueueBenchmark {
+
+	private static final int FILE_SIZE = 64 * 1024 * 1024;
+
+	@Param({ "16", "256", "4096" })
+	int payloadSize;
+
+	@Param({ "false", "true" })
+	boolean checksum;
+
+	private FileQueue file;
+	private byte[] payload;
+	private int writePosition;
+	private int readPosition;
+	private int end;
+
+	@Setup
+	public void setUp() throws IOException {
+		file = new FileQueue("benchmark-filequeue-" + UUID.randomUUID(), FILE_SIZE);
+		payload = new byte[payloadSize];
+		new Random(42).nextBytes(payload);
+
+		// Records for fetchPayload to read
+		int at = 0;
+		while (at + recordSize() <= FILE_SIZE) {
+			at = file.writeRecord(payload, at, MessageStatus.UNPROCESSED, checksum);
+		}
+		end = at;
+	}
+
+	@Benchmark
+	public int writeRecord() {
+		if (writePosition + recordSize() > FILE_SIZE) {
+			writePosition = 0;
+		}
+		writePosition = file.writeRecord(payload, writePosition, MessageStatus.UNPROCESSED, checksum);
+		return writePosition;
+	}
+
+	@Benchmark
+	public byte[] fetchPayload() {
+		if (readPosition == end) {
+			readPosition = 0;
+		}
+		byte[] read = file.fetchPayload(readPosition, checksum);
+		readPosition = file.nextRecordPosition(readPosition, checksum);
+		return read;
+	}
+
+	private int recordSize() {
+		// Header, payload and checksum, aligned to 4 bytes
+		int size = 16 + payloadSize + (checksum ? 4 : 0);
+		return (size + 3) & -4;
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		file.destroy();
+		new File(file.getAbsolutePath()).delete();
+	}
+}
@@ -0,0 +1,173 @@
+package com.wizenoze.assignment.messagequeue.benchmarks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.commons.lang3.StringUtils;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.wizenoze.assignment.messagequeue.CommonUtils;
+import com.wizenoze.assignment.messagequeue.Durability;
+import com.wizenoze.assignment.messagequeue.FileBasedQueueService;
+import com.wizenoze.assignment.messagequeue.MessageView;
+import com.wizenoze.assignment.messagequeue.QueueOptions;
+
+/**
+ * Push and pull through {@link FileBasedQueueService}. Each iteration starts
+ * with a new queue. The pushPull and contention groups run producers and
+ * consumers on the same queue; their pulled counter only counts the pulls that
+ * returned a message. Run with -p durability=NONE to skip the slower modes,
+ * prefetch only matters to the benchmarks that pull. pushBuffer and
+ * pushThenReceiveViews take the allocation-free paths, run with -prof gc to see
+ * the bytes allocated per operation.
+ *
+ * Removes every queue file in the working directory, run it in an empty one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueueServiceBenchmark {
+
+	private static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+	private static final int BATCH_SIZE = 64;
+
+	@Param({ "16", "256", "4096" })
+	int messageSize;
+
+	@Param({ "NONE", "PERIODIC", "GROUP_COMMIT" })
+	Durability durability;
+
+	@Param({ "1", "64" })
+	int prefetch;
+
+	private FileBasedQueueService queue;
+	private String message;
+	private List<String> batch;
+	private ByteBuffer payload;
+	private MessageView[] views;
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Pulled {
+		public long pulled;
+	}
+
+	@Setup(Level.Iteration)
+	public void setUp() throws IOException {
+		queue = new FileBasedQueueService("benchmark-queue-" + UUID.randomUUID(), SEGMENT_SIZE,
+				new QueueOptions().setDurability(durability).setPrefetch(prefetch)) {
+
+			@Override
+			public boolean processMessage(String message) throws IOException, TimeoutException {
+				return true;
+			}
+		};
+		message = StringUtils.repeat('m', messageSize);
+		batch = Collections.nCopies(BATCH_SIZE, message);
+		payload = ByteBuffer.allocateDirect(messageSize);
+		views = new MessageView[BATCH_SIZE];
+		for (int index = 0; index < views.length; index++) {
+			views[index] = new MessageView();
+		}
+	}
+
+	@TearDown(Level.Iteration)
+	public void tearDown() throws IOException {
+		queue.shutdown();
+		CommonUtils.deleteQueueFiles(queue.getQueueName());
+	}
+
+	@Benchmark
+	public long push() throws IOException {
+		return queue.push(message);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH_SIZE)
+	public List<Long> pushAll() throws IOException {
+		return queue.pushAll(batch);
+	}
+
+	@Benchmark
+	public long pushBuffer() throws IOException {
+		return queue.push(payload);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH_SIZE)
+	public int pushThenReceiveViews() throws IOException {
+		for (int index = 0; index < BATCH_SIZE; index++) {
+			queue.push(payload);
+		}
+		int received = queue.receive(views, 30, TimeUnit.SECONDS);
+		for (int index = 0; index < received; index++) {
+			queue.ack(views[index]);
+		}
+		return received;
+	}
+
+	@Benchmark
+	public String pushThenPull() throws IOException {
+		queue.push(message);
+		return queue.pull();
+	}
+
+	@Benchmark
+	@Group("pushPull")
+	@GroupThreads(1)
+	public long pushPullProducer() throws IOException {
+		return queue.push(message);
+	}
+
+	@Benchmark
+	@Group("pushPull")
+	@GroupThreads(1)
+	public String pushPullConsumer(Pulled pulled) throws IOException {
+		return count(queue.pull(), pulled);
+	}
+
+	@Benchmark
+	@Group("contention")
+	@GroupThreads(4)
+	public long contentionProducer() throws IOException {
+		return queue.push(message);
+	}
+
+	@Benchmark
+	@Group("contention")
+	@GroupThreads(4)
+	public String contentionConsumer(Pulled pulled) throws IOException {
+		return count(queue.pull(), pulled);
+	}
+
+	private static String count(String message, Pulled pulled) {
+		if (message != null) {
+			pulled.pulled++;
+		}
+		return message;
+	}
+}
@@ -0,0 +1,142 @@
+package com.wizenoze.assignment.messagequeue.benchmarks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.wizenoze.assignment.messagequeue.CommonUtils;
+import com.wizenoze.assignment.messagequeue.FileBasedQueueService;
+import com.wizenoze.assignment.messagequeue.ParallelConsumer;
+import com.wizenoze.assignment.messagequeue.QueueService;
+import com.wizenoze.assignment.messagequeue.VirtualThreads;
+
+/*
+ * Compares platform threads with virtual threads for many mostly idle topics
+ * whose handlers block on I/O. Every topic gets one producer and one consumer
+ * processing `concurrency` messages at a time, handlers sleep for `handlerMillis`.
+ * Prints the throughput and the time messages waited in the queue before their
+ * handler started.
+ *
+ * java -cp benchmarks/target/benchmarks.jar com.wizenoze.assignment.messagequeue.benchmarks.ThreadModelBenchmark \
+ *     <topics> <messages per topic> <concurrency> <handlerMillis>
+ *
+ * Virtual threads are only measured on Java 21 or later, see the java21 profile.
+ * Only the queues it created are deleted afterwards.
+ */
+public class ThreadModelBenchmark {
+
+	private static final int SEGMENT_SIZE = 1024 * 1024;
+
+	private final int topics;
+	private final int messages;
+	private final int concurrency;
+	private final int handlerMillis;
+
+	public ThreadModelBenchmark(int topics, int messages, int concurrency, int handlerMillis) {
+		this.topics = topics;
+		this.messages = messages;
+		this.concurrency = concurrency;
+		this.handlerMillis = handlerMillis;
+	}
+
+	public static void main(String[] args) throws Exception {
+		ThreadModelBenchmark benchmark = new ThreadModelBenchmark(argument(args, 0, 50), argument(args, 1, 2000),
+				argument(args, 2, 64), argument(args, 3, 5));
+
+		benchmark.run("platform", Executors.defaultThreadFactory());
+		if (VirtualThreads.isSupported()) {
+			benchmark.run("virtual", VirtualThreads.factory());
+		} else {
+			System.out.println("Skipping virtual threads, they need Java 21 - " + Runtime.version());
+		}
+	}
+
+	private static int argument(String[] args, int index, int defaultValue) {
+		return args.length > index ? Integer.parseInt(args[index]) : defaultValue;
+	}
+
+	public void run(String threadModel, ThreadFactory threadFactory) throws Exception {
+		long[] waits = new long[topics * messages];
+		AtomicInteger processed = new AtomicInteger();
+
+		ExecutorService executor = Executors.newCachedThreadPool(threadFactory);
+		List<QueueService> queues = new ArrayList<>();
+		List<String> queueNames = new ArrayList<>();
+		List<Future<?>> futures = new ArrayList<>();
+
+		long start = System.nanoTime();
+		for (int topic = 0; topic < topics; topic++) {
+			String queueName = "benchmark-" + threadModel + topic + "-" + UUID.randomUUID();
+			queueNames.add(queueName);
+			QueueService queue = new FileBasedQueueService(queueName, SEGMENT_SIZE) {
+
+				@Override
+				public boolean processMessage(String message) throws IOException, TimeoutException {
+					int index = processed.getAndIncrement();
+					// Messages delivered again after a timeout are counted once
+					if (index < waits.length) {
+						waits[index] = System.nanoTime() - Long.parseLong(message);
+					}
+					try {
+						Thread.sleep(handlerMillis);
+					} catch (InterruptedException e) {
+						throw new TimeoutException();
+					}
+					return true;
+				}
+			};
+			queues.add(queue);
+
+			futures.add(executor.submit(() -> {
+				for (int message = 0; message < messages; message++) {
+					queue.push(Long.toString(System.nanoTime()));
+				}
+				CommonUtils.markPushEnd(queueName);
+				return null;
+			}));
+			futures.add(executor.submit(() -> {
+				new ParallelConsumer(queue).setConcurrency(concurrency).setThreadFactory(threadFactory)
+						.runUntilConsumed();
+				return null;
+			}));
+		}
+
+		for (Future<?> future : futures) {
+			future.get();
+		}
+		long elapsed = System.nanoTime() - start;
+		executor.shutdown();
+
+		for (QueueService queue : queues) {
+			queue.shutdown();
+		}
+		for (String queueName : queueNames) {
+			CommonUtils.deleteQueueFiles(queueName);
+		}
+
+		long[] sorted = Arrays.copyOf(waits, Math.min(processed.get(), waits.length));
+		Arrays.sort(sorted);
+		System.out.println(String.format(
+				"%-8s %s messages in %s ms, %.0f msg/s, wait p50 %.2f ms, p99 %.2f ms, p99.9 %.2f ms, max %.2f ms",
+				threadModel, sorted.length, TimeUnit.NANOSECONDS.toMillis(elapsed),
+				sorted.length * 1e9 / elapsed, percentile(sorted, 0.5), percentile(sorted, 0.99),
+				percentile(sorted, 0.999), percentile(sorted, 1)));
+	}
+
+	private static double percentile(long[] sorted, double percentile) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		int index = (int) Math.ceil(percentile * sorted.length) - 1;
+		return sorted[Math.max(index, 0)] / 1e6;
+	}
+}
@@ -0,0 +1,223 @@
+package com.wizenoze.assignment.messagequeue;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Pushes messages to a queue from a single writer thread. Producers hand their
+ * messages to a bounded ring buffer and get a future of the message id back;
+ * the writer takes everything buffered at once and appends it as one batch, so
+ * many producer threads do not contend on the push position and the messages
+ * of a batch share one update of it, see {@link QueueService#pushPayloads(List)}.
+ * What happens when the buffer is full is decided by the {@link Backpressure}.
+ *
+ * Messages are written in the order they were buffered. A message that can not
+ * be written, for instance because it is larger than a segment, fails its own
+ * future only, and when a batch fails part way the messages written complete
+ * theirs. Share one instance among the producers of a process rather than
+ * creating one per producer.
+ */
+public class AsyncProducer {
+
+	private final QueueService queueService;
+	private final Backpressure backpressure;
+
+	// The ring buffer, guarded by lock; head is the next message to write and tail the next free slot
+	private final ByteBuffer[] payloads;
+	private final List<CompletableFuture<Long>> futures;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+	private long head;
+	private long tail;
+	private boolean closed;
+
+	private final Thread writer;
+
+	public AsyncProducer(QueueService queueService, int capacity, Backpressure backpressure) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Invalid buffer capacity - " + capacity);
+		}
+		this.queueService = queueService;
+		this.backpressure = backpressure;
+		this.payloads = new ByteBuffer[capacity];
+		this.futures = new ArrayList<>(capacity);
+		for (int slot = 0; slot < capacity; slot++) {
+			futures.add(null);
+		}
+
+		this.writer = new Thread(this::write, "queue-writer-" + queueService.getQueueName());
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Pushes the message encoded as UTF-8, see {@link #pushAsync(ByteBuffer)}.
+	 */
+	public CompletableFuture<Long> pushAsync(String message) {
+		return pushAsync(ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	/**
+	 * Buffers the remaining bytes of the payload and returns the future of the
+	 * message id, completed once the message is written. The payload is not
+	 * copied, so it must not be changed until then. Fails the future at once if
+	 * the message is rejected or the producer is shut down.
+	 */
+	public CompletableFuture<Long> pushAsync(ByteBuffer payload) {
+		CompletableFuture<Long> future = new CompletableFuture<>();
+		CompletableFuture<Long> dropped = null;
+		lock.lock();
+		try {
+			while (!closed && tail - head == payloads.length) {
+				if (backpressure == Backpressure.FAIL_FAST) {
+					future.completeExceptionally(
+							new RejectedExecutionException("Buffer of " + queueService.getQueueName() + " is full"));
+					return future;
+				}
+				if (backpressure == Backpressure.DROP_OLDEST) {
+					int oldest = slot(head++);
+					payloads[oldest] = null;
+					dropped = futures.set(oldest, null);
+					break;
+				}
+				try {
+					notFull.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					future.completeExceptionally(e);
+					return future;
+				}
+			}
+			if (closed) {
+				future.completeExceptionally(
+						new IllegalStateException("Producer of " + queueService.getQueueName() + " is shut down"));
+				return future;
+			}
+
+			int free = slot(tail++);
+			payloads[free] = payload;
+			futures.set(free, future);
+			notEmpty.signal();
+		} finally {
+			lock.unlock();
+			// Completed without the lock, its callbacks may push again
+			if (dropped != null) {
+				dropped.completeExceptionally(new RejectedExecutionException(
+						"Dropped from the full buffer of " + queueService.getQueueName()));
+			}
+		}
+		return future;
+	}
+
+	/**
+	 * Number of messages buffered and not taken by the writer yet.
+	 */
+	public int getBuffered() {
+		lock.lock();
+		try {
+			return (int) (tail - head);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stops taking messages and waits until the buffered ones are written.
+	 */
+	public void shutdown() throws InterruptedException {
+		lock.lock();
+		try {
+			closed = true;
+			notEmpty.signal();
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		writer.join();
+	}
+
+	private int slot(long sequence) {
+		return (int) (sequence % payloads.length);
+	}
+
+	private void write() {
+		List<ByteBuffer> batch = new ArrayList<>(payloads.length);
+		List<CompletableFuture<Long>> written = new ArrayList<>(payloads.length);
+		while (true) {
+			lock.lock();
+			try {
+				while (head == tail && !closed) {
+					notEmpty.awaitUninterruptibly();
+				}
+				if (head == tail) {
+					return;
+				}
+				while (head < tail) {
+					int slot = slot(head++);
+					batch.add(payloads[slot]);
+					written.add(futures.set(slot, null));
+					payloads[slot] = null;
+				}
+				notFull.signalAll();
+			} finally {
+				lock.unlock();
+			}
+
+			writeBatch(batch, written);
+			batch.clear();
+			written.clear();
+		}
+	}
+
+	private void writeBatch(List<ByteBuffer> batch, List<CompletableFuture<Long>> written) {
+		if (batch.size() > 1) {
+			try {
+				complete(written, queueService.pushPayloads(batch));
+				return;
+			} catch (BufferOverflowException e) {
+				// Thrown before anything is written, pushed one by one so only the messages too large fail
+			} catch (PartialPushException e) {
+				System.out.println("Problem while writing a batch to " + queueService.getQueueName() + " - " + e);
+				long[] ids = e.getIds();
+				complete(written, ids);
+				for (int index = ids.length; index < written.size(); index++) {
+					written.get(index).completeExceptionally(e.getCause());
+				}
+				return;
+			} catch (IOException | RuntimeException e) {
+				System.out.println("Problem while writing a batch to " + queueService.getQueueName() + " - " + e);
+				for (CompletableFuture<Long> future : written) {
+					future.completeExceptionally(e);
+				}
+				return;
+			}
+		}
+
+		for (int index = 0; index < batch.size(); index++) {
+			CompletableFuture<Long> future = written.get(index);
+			try {
+				future.complete(queueService.push(batch.get(index)));
+			} catch (IOException | RuntimeException e) {
+				future.completeExceptionally(e);
+			}
+		}
+	}
+
+	/**
+	 * Completes the futures of the first messages of the batch with their ids.
+	 */
+	private static void complete(List<CompletableFuture<Long>> written, long[] ids) {
+		for (int index = 0; index < ids.length; index++) {
+			written.get(index).complete(ids[index]);
+		}
+	}
+}
@@ -0,0 +1,25 @@
+package com.wizenoze.assignment.messagequeue;
+
+/**
+ * What {@link AsyncProducer#pushAsync(java.nio.ByteBuffer)} does when its
+ * buffer is full.
+ */
+public enum Backpressure {
+
+	/*
+	 * The caller waits until the writer has taken messages out of the buffer.
+	 */
+	BLOCK,
+
+	/*
+	 * The message is rejected: its future fails with a
+	 * RejectedExecutionException right away.
+	 */
+	FAIL_FAST,
+
+	/*
+	 * The oldest message still in the buffer is dropped to make room, its future
+	 * failing with a RejectedExecutionException.
+	 */
+	DROP_OLDEST
+}
@@ -6,63 +6,13 @@ import java.io.IOException;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileLock;
 import java.nio.channels.OverlappingFileLockException;
-import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.List;
 
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.lang3.StringUtils;
 
 public class CommonUtils {
 
-	public static String toBinaryString(int value) {
-		return StringUtils.leftPad(Integer.toBinaryString(value), FileBasedQueueService.INT_BIT_LENGTH, '0');
-	}
-
-	public static String toShortString(int value) {
-		return StringUtils.leftPad(Integer.toBinaryString(value), FileBasedQueueService.SHORT_INT_BIT_LENGTH, '0');
-	}
-
-	public static int nextInt(MappedByteBuffer out, int at) {
-		String str = nextString(out, FileBasedQueueService.INT_BIT_LENGTH, at);
-		if (StringUtils.isEmpty(str.trim())) {
-			throw new EndOfDataException();
-		}
-		return Integer.parseInt(str, 2);
-	}
-
-	public static String nextString(MappedByteBuffer out, int length, int at) {
-		byte[] word = new byte[length];
-		for (int i = at, j = 0; i <= at + length; i++, j++) {
-			word[j] = out.get(i);
-		}
-		String str = new String(word, StandardCharsets.UTF_8);
-		return str;
-	}
-
-	public static int nextInt(MappedByteBuffer out) {
-		String str = nextString(out, FileBasedQueueService.INT_BIT_LENGTH);
-		if (StringUtils.isEmpty(str.trim())) {
-			throw new EndOfDataException();
-		}
-		return Integer.parseInt(str, 2);
-	}
-
-	public static int nextShortInt(MappedByteBuffer out) {
-		String str = nextString(out, FileBasedQueueService.SHORT_INT_BIT_LENGTH);
-		if (StringUtils.isEmpty(str.trim())) {
-			throw new EndOfDataException();
-		}
-		return Integer.parseInt(str, 2);
-	}
-
-	public static String nextString(MappedByteBuffer out, int length) {
-		byte[] word = new byte[length];
-		out.get(word, 0, length);
-		String str = new String(word, StandardCharsets.UTF_8);
-		return str;
-	}
-
 	public static byte toByte(boolean vIn) {
 		return (byte) (vIn ? 1 : 0);
 	}
@@ -108,12 +58,30 @@ public class CommonUtils {
 
 		List<File> files = getFiles(dirName, FileQueue.EXTENSION);
 
-		files.forEach(file -> {
-			try {
-				FileUtils.forceDelete(file);
-			} catch (IOException e) {
-				System.out.println("Problem with deleting queue file - " + file.getAbsolutePath());
-			}
-		});
+		files.forEach(CommonUtils::deleteQueueFile);
+	}
+
+	/**
+	 * Deletes the files of a queue and of the files named after it, like those of
+	 * its dead letter queue, so the name should not start another queue name
+	 * followed by a '-'.
+	 */
+	public static void deleteQueueFiles(String queueName) {
+		File meta = new File(queueName + FileQueue.EXTENSION).getAbsoluteFile();
+		String name = meta.getName().substring(0, meta.getName().length() - FileQueue.EXTENSION.length());
+
+		File[] files = meta.getParentFile().listFiles((dir, fileName) -> fileName.endsWith(FileQueue.EXTENSION)
+				&& (fileName.equals(meta.getName()) || fileName.startsWith(name + "-")));
+		if (files != null) {
+			Arrays.asList(files).forEach(CommonUtils::deleteQueueFile);
+		}
+	}
+
+	private static void deleteQueueFile(File file) {
+		try {
+			FileUtils.forceDelete(file);
+		} catch (IOException e) {
+			System.out.println("Problem with deleting queue file - " + file.getAbsolutePath());
+		}
 	}
 }
@@ -11,13 +11,20 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class ConsumerExecutor {
 
+	private static final int POLL_TIMEOUT_MILLIS = 100;
+
 	private int queueSize = FileQueue.DEFAULT_STORAGE_SIZE;
+	private int batchSize = 1;
+	private int concurrency = 1;
+	private int prefetch = 1;
+	private boolean virtualThreads;
 
 	/*
 	 * Don't enable this flag other than testing. If normally enabled and started
@@ -36,7 +43,8 @@ public class ConsumerExecutor {
 	}
 
 	public int execute(String topic, int consumerCount) throws IOException, InterruptedException {
-		ExecutorService executor = Executors.newFixedThreadPool(consumerCount);
+		ExecutorService executor = virtualThreads ? VirtualThreads.newThreadPerTaskExecutor()
+				: Executors.newFixedThreadPool(consumerCount + 1);
 
 		List<Future<Integer>> futures = new ArrayList<>();
 		List<Consumer> consumers = new ArrayList<>();
@@ -53,7 +61,7 @@ public class ConsumerExecutor {
 		 * Add DLQ consumer
 		 */
 		Consumer deadLetterConsumer = new Consumer("dlqConsumer" + currentConsumer, QueueService.getDLQName(topic));
-		executor.submit(deadLetterConsumer);
+		Future<Integer> deadLetterFuture = executor.submit(deadLetterConsumer);
 
 		futures.forEach(future -> {
 			try {
@@ -65,6 +73,15 @@ public class ConsumerExecutor {
 
 		CommonUtils.markPushEnd(QueueService.getDLQName(topic));
 
+		/*
+		 * Let the DLQ consumer drain the messages the others moved there
+		 */
+		try {
+			deadLetterFuture.get();
+		} catch (ExecutionException e) {
+			e.printStackTrace();
+		}
+
 		executor.shutdown();
 		consumers.forEach(Consumer::shutdown);
 		deadLetterConsumer.shutdown();
@@ -93,13 +110,27 @@ public class ConsumerExecutor {
 
 		public void consume(String consumerId, QueueService queueService) throws Exception {
 
-			while (!queueService.hasAllMessagesConsumed()) {
-				/*
-				 * This will pull the message and call the processMessage method which can be
-				 * overridden at the time of QueueService object creation
-				 * See @method{getFileBasedQueueService}
-				 */
-				queueService.pull();
+			if (concurrency > 1) {
+				ParallelConsumer parallelConsumer = new ParallelConsumer(queueService).setConcurrency(concurrency);
+				if (virtualThreads) {
+					parallelConsumer.setThreadFactory(VirtualThreads.factory());
+				}
+				parallelConsumer.runUntilConsumed();
+			} else {
+				while (!queueService.hasAllMessagesConsumed()) {
+					/*
+					 * This will pull the message and call the processMessage method which can be
+					 * overridden at the time of QueueService object creation
+					 * See @method{getFileBasedQueueService}
+					 */
+					if (batchSize == 1 || queueService.pull(batchSize).isEmpty()) {
+						/*
+						 * Parks while the queue is empty. Comes back regularly to see whether the
+						 * push end has been marked.
+						 */
+						queueService.pull(POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+					}
+				}
 			}
 
 			System.out.println(String.format("Total %s messages consumed by %s from %s ", consumedCount.get(),
@@ -108,7 +139,7 @@ public class ConsumerExecutor {
 
 		private QueueService getFileBasedQueueService(String queueName, int queueSize) throws IOException {
 
-			return new FileBasedQueueService(queueName, queueSize) {
+			return new FileBasedQueueService(queueName, queueSize, new QueueOptions().setPrefetch(prefetch)) {
 
 				@Override
 				public boolean processMessage(String message) throws IOException, TimeoutException {
@@ -129,7 +160,7 @@ public class ConsumerExecutor {
 
 	}
 
-	protected synchronized boolean processConsumedMessage(String message) throws IOException, TimeoutException {
+	protected boolean processConsumedMessage(String message) throws IOException, TimeoutException {
 
 		if (shouldCollectMessages.get()) {
 			messages.add(message);
@@ -160,6 +191,42 @@ public class ConsumerExecutor {
 		return totalMessageConsumed.get();
 	}
 
+	/**
+	 * Number of messages each consumer processes at the same time, see
+	 * {@link ParallelConsumer}.
+	 */
+	public ConsumerExecutor setConcurrency(int concurrency) {
+		this.concurrency = concurrency;
+		return this;
+	}
+
+	/**
+	 * Runs the consumers and the workers processing their messages on virtual
+	 * threads, needs Java 21.
+	 */
+	public ConsumerExecutor setVirtualThreads(boolean virtualThreads) {
+		this.virtualThreads = virtualThreads;
+		return this;
+	}
+
+	/**
+	 * Number of messages each consumer pulls with a single
+	 * {@link QueueService#pull(int)}, 1 pulls them one by one.
+	 */
+	public ConsumerExecutor setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+		return this;
+	}
+
+	/**
+	 * Number of messages each consumer leases ahead, see
+	 * {@link QueueOptions#setPrefetch(int)}.
+	 */
+	public ConsumerExecutor setPrefetch(int prefetch) {
+		this.prefetch = prefetch;
+		return this;
+	}
+
 	public ConsumerExecutor setDatasourceSize(int dataSourceSize) {
 		this.queueSize = dataSourceSize;
 		return this;
@@ -0,0 +1,11 @@
+package com.wizenoze.assignment.messagequeue;
+
+public class CorruptedRecordException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	public CorruptedRecordException(String message) {
+		super(message);
+	}
+
+}
@@ -0,0 +1,104 @@
+package com.wizenoze.assignment.messagequeue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Dead letter queue of a queue. The files are mapped on the first message and
+ * the handle is shared by every {@link FileBasedQueueService} of the queue in
+ * this JVM, until the last of them shuts down.
+ */
+public class DeadLetterQueue {
+
+	private static final Map<String, DeadLetterQueue> OPEN = new HashMap<>();
+
+	private final String queueName;
+	private final String key;
+	private final int size;
+	private final QueueOptions options;
+	private final RateMeter moved = new RateMeter();
+
+	private SegmentedQueue queue;
+	private int references;
+
+	private DeadLetterQueue(String queueName, String key, int size, QueueOptions options) {
+		this.queueName = queueName;
+		this.key = key;
+		this.size = size;
+		this.options = options;
+	}
+
+	/**
+	 * @param size segment size, only used when the dead letter queue does not
+	 *             exist yet
+	 */
+	static synchronized DeadLetterQueue acquire(String queueName, int size, QueueOptions options) {
+		String key = new File(queueName + FileQueue.EXTENSION).getAbsolutePath();
+		DeadLetterQueue deadLetterQueue = OPEN.computeIfAbsent(key,
+				path -> new DeadLetterQueue(queueName, path, size, options));
+		deadLetterQueue.references++;
+		return deadLetterQueue;
+	}
+
+	static synchronized void release(DeadLetterQueue deadLetterQueue) throws IOException {
+		if (--deadLetterQueue.references > 0) {
+			return;
+		}
+		OPEN.remove(deadLetterQueue.key);
+		deadLetterQueue.close();
+	}
+
+	public String getQueueName() {
+		return queueName;
+	}
+
+	public void add(ByteBuffer payload) throws IOException {
+		queue().append(payload, MessageStatus.UNPROCESSED);
+		moved.mark(1);
+	}
+
+	/**
+	 * Appends the messages with one reservation per segment, see
+	 * {@link SegmentedQueue#appendAll(List, MessageStatus)}.
+	 */
+	public void addAll(List<ByteBuffer> payloads) throws IOException {
+		if (payloads.isEmpty()) {
+			return;
+		}
+		queue().appendAll(payloads, MessageStatus.UNPROCESSED);
+		moved.mark(payloads.size());
+	}
+
+	/**
+	 * Messages moved here through this handle.
+	 */
+	public long getMessageCount() {
+		return moved.getCount();
+	}
+
+	/**
+	 * Messages moved here through this handle per second, averaged over the last
+	 * minute.
+	 */
+	public double getOneMinuteRate() {
+		return moved.getOneMinuteRate();
+	}
+
+	private synchronized SegmentedQueue queue() throws IOException {
+		if (queue == null) {
+			queue = new SegmentedQueue(queueName, size, options);
+		}
+		return queue;
+	}
+
+	private synchronized void close() throws IOException {
+		if (queue != null) {
+			queue.destroy();
+			queue = null;
+		}
+	}
+}
@@ -0,0 +1,283 @@
+package com.wizenoze.assignment.messagequeue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The deduplication ids pushed recently, kept in a mapped hash table so the
+ * producers of every process see the ids of the others, see
+ * {@link FileBasedQueueService#push(java.nio.ByteBuffer, String)}.
+ *
+ * An id is hashed to 64 bits, and the hash decides the bucket it goes to; a
+ * bucket holds a few entries and is guarded by a spin lock in its first word,
+ * taken with compare-and-set on the mapping, so looking an id up costs one
+ * lock of one bucket whatever the size of the table. Entries expire once the
+ * window has passed. When a bucket is full of live entries the oldest one is
+ * forgotten early, so the capacity should cover the ids pushed in a window.
+ *
+ * A producer claims the entry of an id before pushing the message, stores the
+ * position it reserved for the message in it before writing the message, and
+ * then the id of the message. A duplicate pushed meanwhile waits for it. A
+ * claim left by a producer that died is taken over once CLAIM_TIMEOUT has
+ * passed: when the message was written at the reserved position, its id is
+ * completed and returned, otherwise the message is pushed again. A lock held
+ * longer than LOCK_TIMEOUT is broken. Both times are the ones stored in them.
+ *
+ * <pre>
+ * {@code <queue>-dedup.queue}
+ *   0  long  window in milliseconds, set by the producer creating the file
+ *  64  buckets of 128 bytes
+ *        0  long  lock, 0 or the epoch milliseconds it was taken at
+ *        8  entries of 24 bytes
+ *             0  long  hash of the deduplication id, 0 if the entry is free
+ *             8  long  epoch milliseconds the id was claimed at
+ *            16  long  id of the message; until it is pushed CLAIMED, or
+ *                        reserved(position) once its space is reserved
+ * </pre>
+ */
+final class DeduplicationTable {
+
+	static final String SUFFIX = "-dedup";
+
+	/**
+	 * Returned by {@link #claim(long)} when the caller has to push the message.
+	 */
+	static final long CLAIMED = -1;
+
+	private static final int WINDOW_OFFSET = 0;
+	private static final int HEADER_SIZE = 64;
+	private static final int BUCKET_SIZE = 128;
+	private static final int LOCK_OFFSET = 0;
+	private static final int ENTRY_SIZE = 24;
+	private static final int ENTRIES_PER_BUCKET = (BUCKET_SIZE - Long.BYTES) / ENTRY_SIZE;
+	private static final int HASH_OFFSET = 0;
+	private static final int TIME_OFFSET = 8;
+	private static final int ID_OFFSET = 16;
+
+	private static final long LOCK_TIMEOUT = TimeUnit.SECONDS.toMillis(1);
+	private static final long CLAIM_TIMEOUT = TimeUnit.SECONDS.toMillis(10);
+	private static final long CLAIM_WAIT = TimeUnit.MICROSECONDS.toNanos(100);
+
+	/**
+	 * Tells whether the message was written at a position reserved by a producer
+	 * that died before completing its claim.
+	 */
+	interface Reservations {
+		boolean isWritten(long position) throws IOException;
+	}
+
+	private final FileQueue file;
+	private final int buckets;
+	private final long window;
+
+	/**
+	 * The capacity and window only take effect when the table is created.
+	 */
+	DeduplicationTable(String queueName, int capacity, long window) throws IOException {
+		File existing = new File(queueName + SUFFIX + FileQueue.EXTENSION);
+		this.buckets = existing.length() > HEADER_SIZE ? (int) ((existing.length() - HEADER_SIZE) / BUCKET_SIZE)
+				: Integer.highestOneBit(Math.max((capacity - 1) / ENTRIES_PER_BUCKET, 1)) << 1;
+		this.file = new FileQueue(queueName + SUFFIX, HEADER_SIZE + buckets * BUCKET_SIZE);
+
+		// Several producers may create the file at once, the first one sets it
+		file.compareAndSetLong(0, window, WINDOW_OFFSET);
+		this.window = file.fetchLongVolatile(WINDOW_OFFSET);
+	}
+
+	/**
+	 * 64-bit hash of a deduplication id, never 0.
+	 */
+	static long keyOf(String deduplicationId) {
+		// FNV-1a over the chars, then the finalizer of MurmurHash3
+		long hash = 0xcbf29ce484222325L;
+		for (int index = 0; index < deduplicationId.length(); index++) {
+			hash = (hash ^ deduplicationId.charAt(index)) * 0x100000001b3L;
+		}
+		hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+		hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash == 0 ? 1 : hash;
+	}
+
+	/**
+	 * Returns the id of the message pushed with the key within the window, waiting
+	 * while another producer is pushing it, or claims the key and returns
+	 * {@link #CLAIMED}. The claimer then calls {@link #reserve(long, long)} and
+	 * {@link #complete(long, long)}, or {@link #release(long)}.
+	 */
+	long claim(long key, Reservations reservations) throws IOException {
+		int bucket = bucketOf(key);
+		while (true) {
+			long now = System.currentTimeMillis();
+			lock(bucket, now);
+			try {
+				int entry = find(bucket, key, now);
+				if (entry < 0) {
+					write(victim(bucket, now), key, now, CLAIMED);
+					return CLAIMED;
+				}
+
+				long id = file.fetchLong(entry + ID_OFFSET);
+				if (!isClaimed(id)) {
+					return id;
+				}
+				if (file.fetchLong(entry + TIME_OFFSET) + CLAIM_TIMEOUT <= now) {
+					// Its producer died, maybe after writing the message
+					if (id != CLAIMED && reservations.isWritten(reservedPosition(id))) {
+						file.writeLong(reservedPosition(id), entry + ID_OFFSET);
+						return reservedPosition(id);
+					}
+					file.writeLong(now, entry + TIME_OFFSET);
+					file.writeLong(CLAIMED, entry + ID_OFFSET);
+					return CLAIMED;
+				}
+			} finally {
+				unlock(bucket);
+			}
+			LockSupport.parkNanos(CLAIM_WAIT);
+		}
+	}
+
+	/**
+	 * Stores the position reserved for the message of a claimed key, before the
+	 * message is written there.
+	 */
+	void reserve(long key, long position) {
+		int bucket = bucketOf(key);
+		long now = System.currentTimeMillis();
+		lock(bucket, now);
+		try {
+			int entry = find(bucket, key, now);
+			if (entry >= 0 && file.fetchLong(entry + ID_OFFSET) == CLAIMED) {
+				file.writeLong(reserved(position), entry + ID_OFFSET);
+			}
+		} finally {
+			unlock(bucket);
+		}
+	}
+
+	/**
+	 * Stores the id of the message pushed for a claimed key.
+	 */
+	void complete(long key, long id) {
+		int bucket = bucketOf(key);
+		long now = System.currentTimeMillis();
+		lock(bucket, now);
+		try {
+			int entry = find(bucket, key, now);
+			// Gone if it was forgotten early
+			if (entry >= 0 && isClaimed(file.fetchLong(entry + ID_OFFSET))) {
+				file.writeLong(id, entry + ID_OFFSET);
+			}
+		} finally {
+			unlock(bucket);
+		}
+	}
+
+	/**
+	 * Frees a claimed key whose message could not be pushed.
+	 */
+	void release(long key) {
+		int bucket = bucketOf(key);
+		long now = System.currentTimeMillis();
+		lock(bucket, now);
+		try {
+			int entry = find(bucket, key, now);
+			if (entry >= 0 && isClaimed(file.fetchLong(entry + ID_OFFSET))) {
+				file.writeLong(0, entry + HASH_OFFSET);
+			}
+		} finally {
+			unlock(bucket);
+		}
+	}
+
+	/*
+	 * Ids of messages are positions, so a claim holds CLAIMED or the position
+	 * reserved for its message as a value below CLAIMED.
+	 */
+	private static boolean isClaimed(long id) {
+		return id <= CLAIMED;
+	}
+
+	private static long reserved(long position) {
+		return CLAIMED - 1 - position;
+	}
+
+	private static long reservedPosition(long id) {
+		return CLAIMED - 1 - id;
+	}
+
+	private int bucketOf(long key) {
+		return HEADER_SIZE + (int) (key & (buckets - 1)) * BUCKET_SIZE;
+	}
+
+	/**
+	 * Offset of the live entry of the key in the bucket, or -1.
+	 */
+	private int find(int bucket, long key, long now) {
+		for (int index = 0; index < ENTRIES_PER_BUCKET; index++) {
+			int entry = entry(bucket, index);
+			if (file.fetchLong(entry + HASH_OFFSET) == key && !isExpired(entry, now)) {
+				return entry;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * A free or expired entry of the bucket, or else its oldest entry.
+	 */
+	private int victim(int bucket, long now) {
+		int oldest = entry(bucket, 0);
+		for (int index = 0; index < ENTRIES_PER_BUCKET; index++) {
+			int entry = entry(bucket, index);
+			if (file.fetchLong(entry + HASH_OFFSET) == 0 || isExpired(entry, now)) {
+				return entry;
+			}
+			if (file.fetchLong(entry + TIME_OFFSET) < file.fetchLong(oldest + TIME_OFFSET)) {
+				oldest = entry;
+			}
+		}
+		return oldest;
+	}
+
+	private boolean isExpired(int entry, long now) {
+		return file.fetchLong(entry + TIME_OFFSET) + window <= now;
+	}
+
+	private static int entry(int bucket, int index) {
+		return bucket + Long.BYTES + index * ENTRY_SIZE;
+	}
+
+	private void write(int entry, long key, long time, long id) {
+		file.writeLong(key, entry + HASH_OFFSET);
+		file.writeLong(time, entry + TIME_OFFSET);
+		file.writeLong(id, entry + ID_OFFSET);
+	}
+
+	private void lock(int bucket, long now) {
+		int at = bucket + LOCK_OFFSET;
+		while (true) {
+			long locked = file.fetchLongVolatile(at);
+			// Free, or held by a producer that died holding it
+			if (locked == 0 || locked + LOCK_TIMEOUT <= now) {
+				if (file.compareAndSetLong(locked, now, at)) {
+					return;
+				}
+			} else {
+				Thread.onSpinWait();
+				now = System.currentTimeMillis();
+			}
+		}
+	}
+
+	private void unlock(int bucket) {
+		file.writeLongVolatile(0, bucket + LOCK_OFFSET);
+	}
+
+	void close() throws IOException {
+		file.destroy();
+	}
+}
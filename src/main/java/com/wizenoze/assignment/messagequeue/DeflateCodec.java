@@ -0,0 +1,88 @@
+package com.wizenoze.assignment.messagequeue;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses payloads with the JDK {@link Deflater}, without the zlib header.
+ * A compressed payload starts with its original length as an int, so it is
+ * restored into a buffer of the right size at once. Each thread keeps its own
+ * deflater and inflater.
+ */
+public class DeflateCodec implements PayloadCodec {
+
+	public static final int BEST_SPEED = Deflater.BEST_SPEED;
+	public static final int BEST_COMPRESSION = Deflater.BEST_COMPRESSION;
+
+	private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(() -> new Inflater(true));
+
+	private final ThreadLocal<Deflater> deflaters;
+
+	/**
+	 * @param level from {@link #BEST_SPEED} to {@link #BEST_COMPRESSION}
+	 */
+	public DeflateCodec(int level) {
+		if (level < BEST_SPEED || level > BEST_COMPRESSION) {
+			throw new IllegalArgumentException("Invalid compression level - " + level);
+		}
+		this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level, true));
+	}
+
+	@Override
+	public ByteBuffer compress(ByteBuffer payload) {
+		int length = payload.remaining();
+		if (length <= Integer.BYTES) {
+			return null;
+		}
+		// Only worth it if it ends up smaller
+		ByteBuffer compressed = ByteBuffer.allocate(length);
+		compressed.putInt(length);
+
+		Deflater deflater = deflaters.get();
+		try {
+			deflater.setInput(payload.duplicate());
+			deflater.finish();
+			while (!deflater.finished()) {
+				if (!compressed.hasRemaining()) {
+					return null;
+				}
+				deflater.deflate(compressed);
+			}
+		} finally {
+			deflater.reset();
+		}
+		return compressed.position() < length ? compressed.flip() : null;
+	}
+
+	@Override
+	public ByteBuffer decompress(ByteBuffer compressed, int maxLength) {
+		ByteBuffer source = compressed.duplicate();
+		if (source.remaining() < Integer.BYTES) {
+			throw new CorruptedRecordException("Invalid compressed payload of " + source.remaining() + " bytes");
+		}
+		int length = source.getInt();
+		// Not trusted before allocating, a queue without checksums can hold anything
+		if (length < 0 || length > maxLength) {
+			throw new CorruptedRecordException("Invalid compressed payload length " + length);
+		}
+		ByteBuffer payload = ByteBuffer.allocate(length);
+
+		Inflater inflater = INFLATERS.get();
+		try {
+			inflater.setInput(source);
+			while (payload.hasRemaining()) {
+				if (inflater.inflate(payload) == 0
+						&& (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+					throw new CorruptedRecordException("Compressed payload ends before " + length + " bytes");
+				}
+			}
+		} catch (DataFormatException e) {
+			throw new CorruptedRecordException("Invalid compressed payload - " + e.getMessage());
+		} finally {
+			inflater.reset();
+		}
+		return payload.flip().asReadOnlyBuffer();
+	}
+}
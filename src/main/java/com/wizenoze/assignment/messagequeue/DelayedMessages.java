@@ -0,0 +1,142 @@
+package com.wizenoze.assignment.messagequeue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Delayed messages of a queue waiting until they are due, kept apart from the
+ * queue so they neither count as in flight nor keep its segments. They are
+ * written to a queue of their own, {@code <queue>-delayed}, as leases that end
+ * when they are due, see {@link SegmentedQueue#appendDelayed(ByteBuffer, long)},
+ * so its in-flight index is the timer: a heap ordered by due time that grows
+ * with the number of messages waiting.
+ *
+ * Consumers move the messages that are due to the end of the queue under its
+ * head lock, see {@link #moveDue(long)}. The time the first one is due is kept
+ * in the header of the queue, so consumers only look here once it has passed.
+ * Changes take the lock of the delayed queue, after the head lock when both are
+ * taken. A process dying between appending a message to the queue and marking
+ * it moved delivers it twice.
+ */
+final class DelayedMessages {
+
+	static final String SUFFIX = "-delayed";
+
+	/**
+	 * Set in the ids of delayed messages, which are positions in the delayed
+	 * queue. Below the bits {@link PriorityQueueService} keeps the lane in.
+	 */
+	static final long ID_FLAG = 1L << 55;
+
+	private final SegmentedQueue queue;
+	private final SegmentedQueue waiting;
+
+	DelayedMessages(SegmentedQueue queue, QueueOptions options) throws IOException {
+		this.queue = queue;
+		this.waiting = new SegmentedQueue(queue.getQueueName() + SUFFIX, queue.getSegmentSize(), options, true);
+	}
+
+	static boolean isDelayed(long messageId) {
+		return messageId >= 0 && (messageId & ID_FLAG) != 0;
+	}
+
+	/**
+	 * Writes a message that is moved to the queue at the given time, and returns
+	 * its id.
+	 */
+	long add(ByteBuffer payload, long due) throws IOException {
+		QueueLock lock = waiting.getLock();
+		try {
+			// Lowered first, so the queue never looks idle with a message waiting
+			queue.lowerNextDue(due);
+			return waiting.appendDelayed(payload, due) | ID_FLAG;
+		} finally {
+			lock.release();
+		}
+	}
+
+	/**
+	 * Appends the messages that are due to the queue, in the order they are due,
+	 * and returns how many were moved. Has to be called with the head lock of the
+	 * queue.
+	 */
+	int moveDue(long now) throws IOException {
+		QueueLock lock = waiting.getLock();
+		try {
+			int moved = 0;
+			for (long position = waiting.pollExpiredLease(now); position != -1; position = waiting
+					.pollExpiredLease(now)) {
+				try {
+					queue.append(waiting.fetchPayloadView(position), MessageStatus.UNPROCESSED);
+					waiting.completeLease(position, -1, MessageStatus.PROCESSED);
+					moved++;
+				} catch (CorruptedRecordException exception) {
+					System.out.println("Problem with delayed message, dropping it - " + exception.getMessage());
+					waiting.completeLease(position, -1, MessageStatus.DELETED);
+				}
+			}
+
+			// Passes the messages moved, so the segments holding only those are deleted
+			try {
+				waiting.pullNextRecord();
+			} catch (EndOfDataException exception) {
+				// Nothing else to pass
+			}
+			updateNextDue();
+			return moved;
+		} finally {
+			lock.release();
+		}
+	}
+
+	/**
+	 * Deletes a delayed message that is not due yet. Has to be called with the
+	 * head lock of the queue.
+	 */
+	DeleteResult delete(long messageId) throws IOException {
+		long position = messageId & ~ID_FLAG;
+		QueueLock lock = waiting.getLock();
+		try {
+			if (position >= waiting.getPushPosition()) {
+				return DeleteResult.UNKNOWN;
+			}
+			if (waiting.isReleased(position)) {
+				return DeleteResult.ALREADY_DELIVERED;
+			}
+			if (!waiting.isRecord(position)) {
+				return DeleteResult.UNKNOWN;
+			}
+			if (waiting.completeLease(position, -1, MessageStatus.DELETED)) {
+				updateNextDue();
+				return DeleteResult.DELETED;
+			}
+			return waiting.fetchStatus(position) == MessageStatus.DELETED ? DeleteResult.DELETED
+					: DeleteResult.ALREADY_DELIVERED;
+		} finally {
+			lock.release();
+		}
+	}
+
+	/**
+	 * Number of delayed messages that are not due yet or not moved yet.
+	 */
+	long getWaitingCount() {
+		return waiting.getInFlightCount();
+	}
+
+	/**
+	 * Has to be called with the lock of the delayed queue.
+	 */
+	private void updateNextDue() throws IOException {
+		if (waiting.getInFlightCount() == 0) {
+			queue.setNextDue(0);
+		} else {
+			// Never 0 while a message waits, even if the index lost track of it
+			queue.setNextDue(Math.max(waiting.peekLeaseEnd(), 1));
+		}
+	}
+
+	void close() throws IOException {
+		waiting.destroy();
+	}
+}
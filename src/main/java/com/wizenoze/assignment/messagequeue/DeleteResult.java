@@ -0,0 +1,24 @@
+package com.wizenoze.assignment.messagequeue;
+
+/**
+ * Outcome of deleting a message, see {@link QueueService#delete(long)}.
+ */
+public enum DeleteResult {
+
+	/*
+	 * The message will not be delivered (again). Deleting a message in flight
+	 * acknowledges it, and deleting a message twice is not an error.
+	 */
+	DELETED,
+
+	/*
+	 * The message was delivered and acknowledged, or moved to the dead letter
+	 * queue, before it could be deleted.
+	 */
+	ALREADY_DELIVERED,
+
+	/*
+	 * No message of the queue has the id.
+	 */
+	UNKNOWN
+}
@@ -0,0 +1,26 @@
+package com.wizenoze.assignment.messagequeue;
+
+/**
+ * When a pushed message reaches the disk, see
+ * {@link QueueOptions#setDurability(Durability)}.
+ */
+public enum Durability {
+
+	/*
+	 * Left to the page cache of the operating system. A crash of the process
+	 * loses nothing, a crash of the machine may lose any recent push.
+	 */
+	NONE,
+
+	/*
+	 * The segments written to are forced in the background every flush interval,
+	 * so a crash of the machine loses about one interval of pushes.
+	 */
+	PERIODIC,
+
+	/*
+	 * A push returns once its record is on the disk. Concurrent pushes wait for
+	 * one shared force of the range they wrote instead of one each.
+	 */
+	GROUP_COMMIT
+}
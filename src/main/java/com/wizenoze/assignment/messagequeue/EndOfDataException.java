@@ -4,4 +4,12 @@ public class EndOfDataException extends RuntimeException {
 
 	private static final long serialVersionUID = 1L;
 
+	/**
+	 * Thrown every time a consumer finds the queue empty, so it does not fill in a
+	 * stack trace.
+	 */
+	public EndOfDataException() {
+		super(null, null, false, false);
+	}
+
 }
@@ -1,8 +1,15 @@
 package com.wizenoze.assignment.messagequeue;
 
 import java.io.IOException;
-import java.nio.channels.FileLock;
+import java.nio.ByteBuffer;
 import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -12,37 +19,58 @@ import java.util.concurrent.TimeoutException;
 
 public class FileBasedQueueService implements QueueService {
 
-	private final FileQueue queue;
+	private final SegmentedQueue queue;
 	private final FileQueue pushStatus;
+	private final DeadLetterQueue deadLetterQueue;
+	private final QueueMetrics metrics;
 
-	private final int size;
+	private final QueueOptions options;
+
+	// Leased ahead by pull() and processed but not acknowledged yet, see QueueOptions#setPrefetch
+	private final ArrayDeque<QueueMessage> prefetched = new ArrayDeque<>();
+	private final List<QueueMessage> processed = new ArrayList<>();
+
+	// Filled by leaseNextMessage under the queue lock
+	private final MessageView leased = new MessageView();
+
+	// Opened on first use, most producers push without deduplication ids
+	private final Object deduplicationLock = new Object();
+	private volatile DeduplicationTable deduplication;
+
+	// Opened on first use, like the deduplication table
+	private final Object delayedLock = new Object();
+	private volatile DelayedMessages delayed;
 
 	ExecutorService messageProcessor = Executors.newSingleThreadExecutor();
 
 	private static final int MESSAGE_TIMEOUT = 2;
 
-	private static final int PULL_POSITION_META_START_BIT = 0;
-	public static final int PUSH_POSITION_META_START_BIT = 32;
-	public static final int INT_BIT_LENGTH = 32;
-	public static final int SHORT_INT_BIT_LENGTH = 4;
-	public static final int DATA_START_INDEX = 64;
+	public static final int DATA_START_INDEX = QueueFormat.SEGMENT_HEADER_SIZE;
 
 	public static final int INVALID_POSITON = -1;
 
+	/**
+	 * @param size size of each segment file of the queue, only used when the queue
+	 *             does not exist yet
+	 */
 	public FileBasedQueueService(String queueName, int size) throws IOException {
-		this.size = size;
-		this.queue = new FileQueue(queueName, size);
+		this(queueName, size, new QueueOptions());
+	}
+
+	public FileBasedQueueService(String queueName, int size, QueueOptions options) throws IOException {
+		this.options = options;
+		LegacyQueueMigration.migrateIfNeeded(queueName, size, options);
+		this.queue = new SegmentedQueue(queueName, size, options);
 		this.pushStatus = new FileQueue(QueueService.getPushStatusQueueName(queueName), 1);
+		this.deadLetterQueue = DeadLetterQueue.acquire(QueueService.getDLQName(queueName), size / 2, options);
+		this.metrics = new QueueMetrics(queue);
 		setInitialBits();
+		metrics.start(options);
 	}
 
 	private void setInitialBits() {
-		try {
-			// Ignore if it is not a new file
-			this.queue.fetchInt();
-		} catch (EndOfDataException exception) {
-			this.queue.writeInt(DATA_START_INDEX, PUSH_POSITION_META_START_BIT);
-			this.queue.writeInt(DATA_START_INDEX, PULL_POSITION_META_START_BIT);
+		// Ignore if it is not a new queue
+		if (queue.isCreated()) {
 			this.pushStatus.writeBool(false, 0);
 		}
 	}
@@ -52,23 +80,187 @@ public class FileBasedQueueService implements QueueService {
 		return queue.getQueueName();
 	}
 
+	public DeadLetterQueue getDeadLetterQueue() {
+		return deadLetterQueue;
+	}
+
+	public QueueMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Lock-free, see {@link SegmentedQueue#append(byte[], MessageStatus)}.
+	 */
 	@Override
-	public synchronized int push(String message) throws IOException {
-		return pushMessage(queue, message);
+	public long push(String message) throws IOException {
+		long id = queue.append(message.getBytes(StandardCharsets.UTF_8), MessageStatus.UNPROCESSED);
+		metrics.pushed(1);
+		return id;
 	}
 
-	private synchronized static int pushMessage(FileQueue queue, String message) throws IOException {
-		FileLock lock = null;
+	/**
+	 * Lock-free, see {@link SegmentedQueue#append(ByteBuffer, MessageStatus)}.
+	 */
+	@Override
+	public long push(ByteBuffer payload) throws IOException {
+		long id = queue.append(payload, MessageStatus.UNPROCESSED);
+		metrics.pushed(1);
+		return id;
+	}
+
+	/**
+	 * Reserves the space of all the messages that fit in a segment with one update
+	 * of the push position, see {@link SegmentedQueue#appendAll(List, MessageStatus)}.
+	 */
+	@Override
+	public List<Long> pushAll(List<String> messages) throws IOException {
+		List<ByteBuffer> payloads = new ArrayList<>(messages.size());
+		for (String message : messages) {
+			payloads.add(ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)));
+		}
+
+		long[] positions = pushPayloads(payloads);
+		List<Long> ids = new ArrayList<>(positions.length);
+		for (long position : positions) {
+			ids.add(position);
+		}
+		return ids;
+	}
+
+	/**
+	 * Reserves space like {@link #pushAll(List)}.
+	 */
+	@Override
+	public long[] pushPayloads(List<ByteBuffer> payloads) throws IOException {
+		long[] positions;
 		try {
-			lock = queue.getLock();
+			positions = queue.appendAll(payloads, MessageStatus.UNPROCESSED);
+		} catch (PartialPushException e) {
+			metrics.pushed(e.getIds().length);
+			throw e;
+		}
+		metrics.pushed(positions.length);
+		return positions;
+	}
 
-			int currentPosition = queue.fetchInt(PUSH_POSITION_META_START_BIT);
-			queue.writeString(message, currentPosition, MessageStatus.UNPROCESSED);
-			queue.writeInt(incrementedPosition(currentPosition, message.length()), PUSH_POSITION_META_START_BIT);
+	@Override
+	public long push(String message, String deduplicationId) throws IOException {
+		return push(ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)), deduplicationId);
+	}
 
-			return currentPosition;
-		} catch (OverlappingFileLockException exception) {
-			return INVALID_POSITON;
+	/**
+	 * Lock-free like {@link #push(ByteBuffer)}, but for short locks of one bucket
+	 * of the table of recent deduplication ids, see {@link DeduplicationTable}.
+	 * The position of the message is stored in its claim before the message is
+	 * written, so a producer dying before completing the claim does not cause a
+	 * duplicate.
+	 */
+	@Override
+	public long push(ByteBuffer payload, String deduplicationId) throws IOException {
+		DeduplicationTable table = deduplicationTable();
+		long key = DeduplicationTable.keyOf(deduplicationId);
+		long id = table.claim(key, this::isWritten);
+		if (id != DeduplicationTable.CLAIMED) {
+			return id;
+		}
+
+		try {
+			id = queue.append(payload, MessageStatus.UNPROCESSED, position -> table.reserve(key, position));
+			metrics.pushed(1);
+		} catch (IOException | RuntimeException e) {
+			table.release(key);
+			throw e;
+		}
+		table.complete(key, id);
+		return id;
+	}
+
+	/**
+	 * Whether a message was written at a position reserved for it. A record a
+	 * producer left unwritten is deleted by recovery, and deleted or consumed
+	 * when its segment is gone.
+	 */
+	private boolean isWritten(long position) throws IOException {
+		return queue.isReleased(position)
+				|| queue.isRecord(position) && queue.fetchStatus(position) != MessageStatus.DELETED;
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the delay is negative or longer than
+	 *                                  {@link QueueOptions#MAX_VISIBILITY_TIMEOUT}
+	 */
+	@Override
+	public long push(String message, long delay, TimeUnit unit) throws IOException {
+		long due = System.currentTimeMillis() + QueueOptions.checkDelay(delay, unit);
+		return pushDelayed(ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)), due);
+	}
+
+	@Override
+	public long push(String message, Instant deliverAt) throws IOException {
+		return push(ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)), deliverAt);
+	}
+
+	/**
+	 * Takes the lock of the delayed messages of the queue, not the head lock, see
+	 * {@link DelayedMessages}.
+	 *
+	 * @throws IllegalArgumentException if the time has passed or is more than
+	 *                                  {@link QueueOptions#MAX_VISIBILITY_TIMEOUT}
+	 *                                  away
+	 */
+	@Override
+	public long push(ByteBuffer payload, Instant deliverAt) throws IOException {
+		long due = deliverAt.toEpochMilli();
+		QueueOptions.checkDelay(due - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+		return pushDelayed(payload, due);
+	}
+
+	private long pushDelayed(ByteBuffer payload, long due) throws IOException {
+		long id = delayedMessages().add(payload, due);
+		metrics.pushed(1);
+		return id;
+	}
+
+	/**
+	 * The message is leased for the visibility timeout of the queue options while
+	 * it is processed, so it is delivered again if this process dies before the
+	 * processing ends. A message whose processing fails is delivered again until
+	 * it has been received maxReceiveCount times, see
+	 * {@link QueueOptions#setMaxReceiveCount(int)}.
+	 */
+	@Override
+	public synchronized String pull() throws IOException {
+		QueueLock lock = null;
+
+		try {
+
+			if (options.getPrefetch() > 1) {
+				return pullPrefetched();
+			}
+
+			lock = lockQueue();
+			final QueueMessage message = leaseNextMessage(options.getVisibilityTimeout());
+			lock.release();
+
+			/*
+			 * The message is IN_PROCESS now. Release the lock and send the pulled message
+			 * for processing.
+			 */
+			boolean processed = processMessageWithTimeout(message.getBody());
+
+			if (processed) {
+				queue.completeLease(message.getId(), message.getReceiptHandle().getReceiveCount(),
+						MessageStatus.PROCESSED);
+			} else {
+				lock = lockQueue();
+				fail(Collections.singletonList(message));
+			}
+			return message.getBody();
+		} catch (EndOfDataException | OverlappingFileLockException exception) {
+			return null;
+		} catch (CorruptedRecordException exception) {
+			System.out.println("Skipping corrupted message - " + exception.getMessage());
+			return null;
 		} finally {
 			if (lock != null) {
 				lock.release();
@@ -76,43 +268,176 @@ public class FileBasedQueueService implements QueueService {
 		}
 	}
 
-	private synchronized void pushToDLQ(String message) throws IOException {
-		FileQueue deadLetterQueue = new FileQueue(QueueService.getDLQName(getQueueName()), size / 2);
-		pushMessage(deadLetterQueue, message);
-		deadLetterQueue.destroy();
+	private String pullPrefetched() throws IOException {
+		QueueMessage message = nextPrefetched();
+		if (message == null) {
+			return null;
+		}
+
+		if (processMessageWithTimeout(message.getBody())) {
+			processed.add(message);
+		} else {
+			QueueLock lock = lockQueue();
+			try {
+				fail(Collections.singletonList(message));
+			} finally {
+				lock.release();
+			}
+		}
+		return message.getBody();
+	}
+
+	/**
+	 * Takes the next prefetched message that is still leased. Once they are used
+	 * up, acknowledges the processed ones and leases the next batch under one
+	 * lock.
+	 */
+	private QueueMessage nextPrefetched() throws IOException {
+		long now = System.currentTimeMillis();
+		while (!prefetched.isEmpty()) {
+			QueueMessage message = prefetched.poll();
+			if (message.getReceiptHandle().getDeadline() > now) {
+				return message;
+			}
+			// Its lease expired while it waited, it is delivered again anyway
+		}
+
+		QueueLock lock = lockQueue();
+		try {
+			acknowledgeProcessed();
+			prefetched.addAll(leaseNextMessages(options.getPrefetch(), options.getVisibilityTimeout()));
+		} finally {
+			lock.release();
+		}
+		return prefetched.poll();
+	}
+
+	/**
+	 * Has to be called with the queue lock.
+	 */
+	private void acknowledgeProcessed() throws IOException {
+		for (QueueMessage message : processed) {
+			queue.completeLease(message.getId(), message.getReceiptHandle().getReceiveCount(),
+					MessageStatus.PROCESSED);
+		}
+		processed.clear();
+	}
+
+	/**
+	 * Acknowledges the processed messages and hands the ones not processed yet
+	 * back to the queue.
+	 */
+	private synchronized void returnPrefetched() throws IOException {
+		if (prefetched.isEmpty() && processed.isEmpty()) {
+			return;
+		}
+
+		QueueLock lock = lockQueue();
+		try {
+			acknowledgeProcessed();
+			long now = System.currentTimeMillis();
+			for (QueueMessage message : prefetched) {
+				queue.returnLease(message.getId(), message.getReceiptHandle().getReceiveCount(), now);
+			}
+			prefetched.clear();
+		} finally {
+			lock.release();
+		}
 	}
 
 	@Override
-	public synchronized String pull() throws IOException {
-		FileLock lock = null;
+	public String pull(long timeout, TimeUnit unit) throws IOException, InterruptedException {
+		return pullWithin(unit.toNanos(timeout), false);
+	}
+
+	@Override
+	public String take() throws IOException, InterruptedException {
+		return pullWithin(Long.MAX_VALUE, true);
+	}
 
+	/**
+	 * Receives up to views.length messages under a single lock of the queue, like
+	 * {@link #receive(int, long, TimeUnit)}, and returns how many it filled. The
+	 * views are filled in place, so receiving allocates nothing per message, see
+	 * {@link MessageView}.
+	 */
+	public synchronized int receive(MessageView[] views, long visibilityTimeout, TimeUnit unit) throws IOException {
+		long timeout = QueueOptions.checkVisibilityTimeout(visibilityTimeout, unit);
+		QueueLock lock = lockQueue();
 		try {
+			int filled = 0;
+			while (filled < views.length) {
+				try {
+					leaseNextMessage(timeout, views[filled]);
+					filled++;
+				} catch (EndOfDataException exception) {
+					break;
+				} catch (CorruptedRecordException exception) {
+					System.out.println("Skipping corrupted message - " + exception.getMessage());
+					break;
+				}
+			}
+			return filled;
+		} finally {
+			lock.release();
+		}
+	}
 
-			lock = queue.getLock();
+	/**
+	 * Parks between attempts instead of spinning on {@link #pull()}, see
+	 * {@link PushSignal}.
+	 */
+	private String pullWithin(long timeoutNanos, boolean forever) throws IOException, InterruptedException {
+		long start = System.nanoTime();
 
-			final int currentPosition = queue.fetchInt(PULL_POSITION_META_START_BIT);
-			final String message = queue.fetchString(currentPosition);
-			queue.writeInt(incrementedPosition(currentPosition, message.length()), PULL_POSITION_META_START_BIT);
+		while (true) {
+			long observed = queue.getPushPosition();
+			long pullPosition = queue.getPullPosition();
 
-			int statusPosition = statusPositionInMessage(currentPosition, message.length());
-			if (queue.fetchShortInt(statusPosition) == MessageStatus.DELETED.status) {
+			String message = pull();
+			if (message != null) {
+				return message;
+			}
+			if (queue.getPullPosition() != pullPosition) {
+				// Skipped a corrupted message, there may be more behind it
+				continue;
+			}
+
+			long remaining = forever ? Long.MAX_VALUE : timeoutNanos - (System.nanoTime() - start);
+			if (remaining <= 0) {
 				return null;
 			}
+			queue.awaitPush(observed, remaining);
+		}
+	}
+
+	@Override
+	public synchronized List<QueueMessage> pull(int maxMessages) throws IOException {
+		QueueLock lock = null;
 
-			queue.writeShortInt(MessageStatus.IN_PROCESS.status, statusPosition);
+		try {
+
+			lock = lockQueue();
+			List<QueueMessage> pulled = leaseNextMessages(maxMessages, options.getVisibilityTimeout());
 			lock.release();
 
-			/*
-			 * Set the message status to IN_PROCESS. Release the file lock and send the
-			 * pulled message for processing.
-			 */
-			processMessageWithTimeout(message);
+			List<QueueMessage> failed = new ArrayList<>();
+			for (QueueMessage message : pulled) {
+				if (processMessageWithTimeout(message.getBody())) {
+					queue.completeLease(message.getId(), message.getReceiptHandle().getReceiveCount(),
+							MessageStatus.PROCESSED);
+				} else {
+					failed.add(message);
+				}
+			}
 
-			lock = queue.getLock();
-			queue.writeShortInt(MessageStatus.PROCESSED.status, statusPosition);
-			return message;
-		} catch (EndOfDataException | OverlappingFileLockException exception) {
-			return null;
+			if (!failed.isEmpty()) {
+				lock = lockQueue();
+				fail(failed);
+			}
+			return pulled;
+		} catch (OverlappingFileLockException exception) {
+			return Collections.emptyList();
 		} finally {
 			if (lock != null) {
 				lock.release();
@@ -120,24 +445,246 @@ public class FileBasedQueueService implements QueueService {
 		}
 	}
 
-	private synchronized boolean processMessageWithTimeout(String message) throws IOException {
+	@Override
+	public synchronized List<QueueMessage> receive(int maxMessages, long visibilityTimeout, TimeUnit unit)
+			throws IOException {
+		long timeout = QueueOptions.checkVisibilityTimeout(visibilityTimeout, unit);
+		QueueLock lock = lockQueue();
+		try {
+			return leaseNextMessages(maxMessages, timeout);
+		} finally {
+			lock.release();
+		}
+	}
 
+	@Override
+	public List<QueueMessage> receive(int maxMessages, long visibilityTimeout, long waitTime, TimeUnit unit)
+			throws IOException, InterruptedException {
+		long start = System.nanoTime();
+		long timeout = unit.toNanos(waitTime);
+
+		while (true) {
+			long observed = queue.getPushPosition();
+			List<QueueMessage> received = receive(maxMessages, visibilityTimeout, unit);
+			if (!received.isEmpty()) {
+				return received;
+			}
+
+			long remaining = timeout - (System.nanoTime() - start);
+			if (remaining <= 0) {
+				return received;
+			}
+			queue.awaitPush(observed, remaining);
+		}
+	}
+
+	@Override
+	public synchronized boolean deadLetter(QueueMessage message) throws IOException {
+		ReceiptHandle receiptHandle = message.getReceiptHandle();
+		QueueLock lock = lockQueue();
 		try {
+			if (!queue.isLeased(receiptHandle.getMessageId(), receiptHandle.getReceiveCount())) {
+				return false;
+			}
+			moveToDeadLetterQueue(Collections.singletonList(message));
+			return true;
+		} finally {
+			lock.release();
+		}
+	}
 
-			Future<Boolean> result = messageProcessor.submit(() -> processMessage(message));
-			return result.get(MESSAGE_TIMEOUT, TimeUnit.SECONDS);
-		} catch (InterruptedException | ExecutionException | TimeoutException e) {
-			pushToDLQ(message);
-			return false;
+	@Override
+	public synchronized boolean nack(QueueMessage message) throws IOException {
+		ReceiptHandle receiptHandle = message.getReceiptHandle();
+		QueueLock lock = lockQueue();
+		try {
+			if (!queue.isLeased(receiptHandle.getMessageId(), receiptHandle.getReceiveCount())) {
+				return false;
+			}
+			fail(Collections.singletonList(message));
+			return true;
+		} finally {
+			lock.release();
+		}
+	}
+
+	/**
+	 * Makes failed messages visible again right away, or moves the ones received
+	 * maxReceiveCount times to the dead letter queue. Has to be called with the
+	 * queue lock.
+	 */
+	private void fail(List<QueueMessage> failed) throws IOException {
+		long now = System.currentTimeMillis();
+		List<QueueMessage> exhausted = new ArrayList<>();
+
+		for (QueueMessage message : failed) {
+			ReceiptHandle receiptHandle = message.getReceiptHandle();
+			if (receiptHandle.getReceiveCount() < options.getMaxReceiveCount()) {
+				queue.extendLease(receiptHandle.getMessageId(), receiptHandle.getReceiveCount(), now);
+			} else if (queue.isLeased(receiptHandle.getMessageId(), receiptHandle.getReceiveCount())) {
+				exhausted.add(message);
+			}
+		}
+		moveToDeadLetterQueue(exhausted);
+	}
+
+	/**
+	 * Has to be called with the queue lock, for leased messages only.
+	 */
+	private void moveToDeadLetterQueue(List<QueueMessage> messages) throws IOException {
+		List<ByteBuffer> payloads = new ArrayList<>(messages.size());
+		for (QueueMessage message : messages) {
+			payloads.add(message.getPayload());
+		}
+		deadLetterQueue.addAll(payloads);
+		metrics.deadLettered(messages.size());
+
+		for (QueueMessage message : messages) {
+			queue.completeLease(message.getId(), message.getReceiptHandle().getReceiveCount(),
+					MessageStatus.PROCESSED);
+		}
+	}
+
+	/**
+	 * Takes no lock, see
+	 * {@link SegmentedQueue#completeLease(long, int, MessageStatus)}.
+	 */
+	@Override
+	public boolean ack(ReceiptHandle receiptHandle) throws IOException {
+		return queue.completeLease(receiptHandle.getMessageId(), receiptHandle.getReceiveCount(),
+				MessageStatus.PROCESSED);
+	}
+
+	/**
+	 * Acknowledges the message the view was last filled with, see
+	 * {@link #ack(ReceiptHandle)}.
+	 */
+	public boolean ack(MessageView view) throws IOException {
+		return queue.completeLease(view.getId(), view.getReceiveCount(), MessageStatus.PROCESSED);
+	}
+
+	@Override
+	public synchronized boolean extendVisibility(ReceiptHandle receiptHandle, long visibilityTimeout, TimeUnit unit)
+			throws IOException {
+		long deadline = System.currentTimeMillis() + QueueOptions.checkVisibilityTimeout(visibilityTimeout, unit);
+		QueueLock lock = lockQueue();
+		try {
+			return queue.extendLease(receiptHandle.getMessageId(), receiptHandle.getReceiveCount(), deadline);
+		} finally {
+			lock.release();
+		}
+	}
+
+	/**
+	 * Takes the head lock, recording how long it took and whether it failed.
+	 */
+	private QueueLock lockQueue() throws IOException {
+		long start = System.nanoTime();
+		QueueLock lock = queue.tryGetLock();
+		if (lock == null) {
+			// Held by another consumer of this or another process
+			metrics.lockContended();
+			lock = queue.getLock();
+		}
+		metrics.locked(System.nanoTime() - start);
+		return lock;
+	}
+
+	private List<QueueMessage> leaseNextMessages(int maxMessages, long visibilityTimeout) throws IOException {
+		List<QueueMessage> leased = new ArrayList<>(maxMessages);
+		while (leased.size() < maxMessages) {
+			try {
+				leased.add(leaseNextMessage(visibilityTimeout));
+			} catch (EndOfDataException exception) {
+				break;
+			} catch (CorruptedRecordException exception) {
+				System.out.println("Skipping corrupted message - " + exception.getMessage());
+				break;
+			}
 		}
+		return leased;
 	}
 
-	private static int incrementedPosition(int currentPosition, int messageLength) {
-		return currentPosition + messageLength + INT_BIT_LENGTH + SHORT_INT_BIT_LENGTH;
+	/**
+	 * Leases the next message to deliver, messages whose lease has expired coming
+	 * first. Delayed messages that are due are moved to the end of the queue
+	 * before, and deleted messages are skipped. Has to be called with the queue
+	 * lock.
+	 *
+	 * @throws EndOfDataException if there is no message to deliver
+	 */
+	private QueueMessage leaseNextMessage(long visibilityTimeout) throws IOException {
+		leaseNextMessage(visibilityTimeout, leased);
+		return new QueueMessage(leased.getId(), leased.getStoredPayload().slice(), leased.getCodec(),
+				leased.getSegmentSize(), leased.toReceiptHandle());
 	}
 
-	private static int statusPositionInMessage(int currentPosition, int messageLength) {
-		return currentPosition + messageLength + INT_BIT_LENGTH;
+	/**
+	 * Fills the view with the next message to deliver, see
+	 * {@link #leaseNextMessage(long)}.
+	 */
+	private void leaseNextMessage(long visibilityTimeout, MessageView view) throws IOException {
+		long now = System.currentTimeMillis();
+		long nextDue = queue.getNextDue();
+		if (nextDue != 0 && nextDue <= now) {
+			delayedMessages().moveDue(now);
+		}
+		long position = queue.pollExpiredLease(now);
+
+		while (position != INVALID_POSITON && queue.fetchReceiveCount(position) >= options.getMaxReceiveCount()) {
+			// Never acknowledged, for instance because it crashes its consumers
+			deadLetterQueue.add(queue.fetchPayloadView(position));
+			metrics.deadLettered(1);
+			queue.completeLease(position, -1, MessageStatus.PROCESSED);
+			position = queue.pollExpiredLease(now);
+		}
+
+		if (position == INVALID_POSITON) {
+			position = queue.pullNextRecord();
+		}
+
+		try {
+			queue.fetchPayloadInto(position, view);
+		} catch (CorruptedRecordException exception) {
+			// Never delivered again
+			queue.completeLease(position, -1, MessageStatus.DELETED);
+			throw exception;
+		}
+
+		long deadline = now + visibilityTimeout;
+		int receiveCount = queue.lease(position, deadline);
+		if (receiveCount < 0) {
+			// Its expired lease was acknowledged after all
+			leaseNextMessage(visibilityTimeout, view);
+			return;
+		}
+		metrics.pulled();
+		view.set(position, receiveCount, deadline);
+	}
+
+	/**
+	 * Returns false if processing returned false, failed or timed out.
+	 */
+	private synchronized boolean processMessageWithTimeout(String message) throws IOException {
+		long start = System.nanoTime();
+
+		try {
+
+			Future<Boolean> result = messageProcessor.submit(() -> processMessage(message));
+			if (!result.get(MESSAGE_TIMEOUT, TimeUnit.SECONDS)) {
+				metrics.handlerFailed();
+				return false;
+			}
+			return true;
+		} catch (TimeoutException e) {
+			metrics.handlerTimedOut();
+			return false;
+		} catch (InterruptedException | ExecutionException e) {
+			metrics.handlerFailed();
+			return false;
+		} finally {
+			metrics.handled(System.nanoTime() - start);
+		}
 	}
 
 	@Override
@@ -149,28 +696,137 @@ public class FileBasedQueueService implements QueueService {
 			return false;
 		}
 //		loj.release();
-		return queue.fetchInt(PULL_POSITION_META_START_BIT) == queue.fetchInt(PUSH_POSITION_META_START_BIT);
+		return isIdle();
+	}
+
+	/**
+	 * Whether every message pushed so far has been delivered and acknowledged,
+	 * and no delayed message waits.
+	 */
+	boolean isIdle() {
+		return queue.getPullPosition() == queue.getPushPosition() && queue.getInFlightCount() == 0
+				&& queue.getNextDue() == 0;
+	}
+
+	private DeduplicationTable deduplicationTable() throws IOException {
+		DeduplicationTable table = deduplication;
+		if (table == null) {
+			synchronized (deduplicationLock) {
+				table = deduplication;
+				if (table == null) {
+					table = new DeduplicationTable(getQueueName(), options.getDeduplicationCapacity(),
+							options.getDeduplicationWindow());
+					deduplication = table;
+				}
+			}
+		}
+		return table;
+	}
+
+	private DelayedMessages delayedMessages() throws IOException {
+		DelayedMessages messages = delayed;
+		if (messages == null) {
+			synchronized (delayedLock) {
+				messages = delayed;
+				if (messages == null) {
+					messages = new DelayedMessages(queue, options);
+					delayed = messages;
+				}
+			}
+		}
+		return messages;
+	}
+
+	long getPushPosition() {
+		return queue.getPushPosition();
 	}
 
 	@Override
 	public void shutdown() throws IOException {
+		this.messageProcessor.shutdown();
+		returnPrefetched();
+		metrics.close();
 		this.queue.destroy();
+		DeadLetterQueue.release(deadLetterQueue);
+		synchronized (deduplicationLock) {
+			if (deduplication != null) {
+				deduplication.close();
+			}
+		}
+		synchronized (delayedLock) {
+			if (delayed != null) {
+				delayed.close();
+			}
+		}
 	}
 
+	/**
+	 * Takes the head lock, so it does not race with consumers in any process. The
+	 * id is the position of the message, so it takes no lookup.
+	 */
 	@Override
-	public void delete(int messageIndex) {
-
-		final String message = queue.fetchString(messageIndex);
-		int statusPosition = statusPositionInMessage(messageIndex, message.length());
+	public synchronized DeleteResult delete(long messageId) throws IOException {
+		QueueLock lock = lockQueue();
+		try {
+			return deleteMessage(messageId);
+		} finally {
+			lock.release();
+		}
+	}
 
-		int status = queue.fetchShortInt(statusPosition);
+	/**
+	 * The messages are deleted last to first, so that consecutive messages form
+	 * one run of deleted records, see {@link SegmentedQueue#delete(long)}.
+	 */
+	@Override
+	public synchronized List<DeleteResult> deleteAll(List<Long> messageIds) throws IOException {
+		Integer[] order = new Integer[messageIds.size()];
+		for (int index = 0; index < order.length; index++) {
+			order[index] = index;
+		}
+		Arrays.sort(order, (first, second) -> Long.compare(messageIds.get(second), messageIds.get(first)));
 
-		if (status == MessageStatus.PROCESSED.status) {
-			throw new IllegalArgumentException("Message delivered already");
+		DeleteResult[] results = new DeleteResult[order.length];
+		QueueLock lock = lockQueue();
+		try {
+			for (int index : order) {
+				results[index] = deleteMessage(messageIds.get(index));
+			}
+		} finally {
+			lock.release();
 		}
+		return Arrays.asList(results);
+	}
 
-		queue.writeShortInt(MessageStatus.DELETED.status, statusPosition);
+	/**
+	 * Has to be called with the queue lock.
+	 */
+	private DeleteResult deleteMessage(long messageId) throws IOException {
+		if (DelayedMessages.isDelayed(messageId)) {
+			return delayedMessages().delete(messageId);
+		}
+		if (messageId < 0 || messageId >= queue.getPushPosition()) {
+			return DeleteResult.UNKNOWN;
+		}
+		if (queue.isReleased(messageId)) {
+			return DeleteResult.ALREADY_DELIVERED;
+		}
+		if (!queue.isRecord(messageId)) {
+			return DeleteResult.UNKNOWN;
+		}
 
+		switch (queue.fetchStatus(messageId)) {
+		case UNPROCESSED:
+			queue.delete(messageId);
+			return DeleteResult.DELETED;
+		case IN_PROCESS:
+			return queue.completeLease(messageId, -1, MessageStatus.DELETED) ? DeleteResult.DELETED
+					: DeleteResult.ALREADY_DELIVERED;
+		case PROCESSED:
+			return DeleteResult.ALREADY_DELIVERED;
+		default:
+			return DeleteResult.DELETED;
+		}
 	}
 
 }
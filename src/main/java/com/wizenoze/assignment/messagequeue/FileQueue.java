@@ -1,18 +1,53 @@
 package com.wizenoze.assignment.messagequeue;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
 
 public class FileQueue {
 
 	private final String queueName;
 	private final RandomAccessFile file;
 	private final FileChannel channel;
+	// Null unless the channel is the one the JVM shares for the file
+	private final SharedChannel shared;
 	private final MappedByteBuffer datasource;
 	private final int storageSize;
+	private final String absolutePath;
+
+	// Written since the last forceIfDirty
+	private volatile boolean dirty;
+
+	/*
+	 * Checksums are computed on every push and pull, so every thread reuses its
+	 * CRC32, and the file keeps a window on its mapping that one thread at a time
+	 * takes. A thread finding it taken uses a window of its own. Threads hold no
+	 * reference to the file, so a deleted segment is unmapped once it is closed.
+	 */
+	private static final ThreadLocal<CRC32> CHECKSUMS = ThreadLocal.withInitial(CRC32::new);
+
+	private final AtomicReference<ByteBuffer> checksumWindow = new AtomicReference<>();
+
+	/*
+	 * Atomic access to the mapping. The memory is shared with every other mapping
+	 * of the file, so these are atomic across threads and processes alike. The
+	 * position has to be aligned to the size of the value.
+	 */
+	private static final VarHandle INT_VIEW = MethodHandles.byteBufferViewVarHandle(int[].class,
+			ByteOrder.LITTLE_ENDIAN);
+	private static final VarHandle LONG_VIEW = MethodHandles.byteBufferViewVarHandle(long[].class,
+			ByteOrder.LITTLE_ENDIAN);
 
 	// 500 mb 524288000 bytes
 	public static final int DEFAULT_STORAGE_SIZE = 524288000;
@@ -26,22 +61,105 @@ public class FileQueue {
 		this.queueName = queueName;
 		this.file = new RandomAccessFile(String.format("%s%s", queueName, EXTENSION), "rw");
 		this.channel = this.file.getChannel();
+		this.shared = null;
 		this.storageSize = storageSize;
+		this.absolutePath = new File(queueName + EXTENSION).getAbsolutePath();
 		this.datasource = channel.map(FileChannel.MapMode.READ_WRITE, 0, storageSize);
+		this.datasource.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private FileQueue(String queueName, int storageSize, SharedChannel shared) throws IOException {
+		this.queueName = queueName;
+		this.file = null;
+		this.channel = shared.getChannel();
+		this.shared = shared;
+		this.storageSize = storageSize;
+		this.absolutePath = shared.getPath();
+		this.datasource = channel.map(FileChannel.MapMode.READ_WRITE, 0, storageSize);
+		this.datasource.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Maps a file that is locked through the channel the JVM shares for it, see
+	 * {@link SharedChannel}. Destroying the instance only closes the channel
+	 * once no other user has it.
+	 */
+	static FileQueue shared(String queueName, int storageSize) throws IOException {
+		SharedChannel shared = SharedChannel.open(new File(queueName + EXTENSION).getAbsolutePath());
+		try {
+			return new FileQueue(queueName, storageSize, shared);
+		} catch (IOException | RuntimeException exception) {
+			shared.close();
+			throw exception;
+		}
+	}
+
+	/**
+	 * The channel the JVM shares for the file, or null if the file was not
+	 * opened with {@link #shared(String, int)}.
+	 */
+	SharedChannel getSharedChannel() {
+		return shared;
 	}
 
 	public String getQueueName() {
 		return queueName;
 	}
 
+	public String getAbsolutePath() {
+		return absolutePath;
+	}
+
+	public int getStorageSize() {
+		return storageSize;
+	}
+
 	public void immedieteFlush() {
 		datasource.force();
 	}
 
+	/**
+	 * Writes the given range of the mapping to the disk.
+	 */
+	public void force(int at, int length) {
+		datasource.force(at, length);
+	}
+
+	/**
+	 * Called after a write that {@link #forceIfDirty()} has to pick up. The flag
+	 * is cleared before forcing, so a write that marks it afterwards is forced
+	 * the next time.
+	 */
+	public void markDirty() {
+		dirty = true;
+	}
+
+	public void forceIfDirty() {
+		if (dirty) {
+			dirty = false;
+			datasource.force();
+		}
+	}
+
 	public FileLock getLock() throws IOException {
 		return channel.lock();
 	}
 
+	/**
+	 * Exclusive lock of a region of the file, other regions can be locked at the
+	 * same time.
+	 */
+	public FileLock getLock(long position, long size) throws IOException {
+		return channel.lock(position, size, false);
+	}
+
+	/**
+	 * Returns null if another process holds an overlapping lock.
+	 */
+	public FileLock tryGetLock(long position, long size) throws IOException {
+		return channel.tryLock(position, size, false);
+	}
+
 	public FileLock getReadLock() throws IOException {
 		return channel.lock(0, storageSize, true);
 	}
@@ -54,86 +172,259 @@ public class FileQueue {
 		datasource.position(position);
 	}
 
-	public void writeString(String message) {
-		writeInt(message.length());
-		datasource.put(message.getBytes());
+	public void writeBool(boolean flag, int at) {
+		datasource.put(at, CommonUtils.toByte(flag));
+	}
+
+	public boolean fetchBool() {
+		return CommonUtils.nextBool(datasource);
 	}
 
-	public void writeString(String message, int at) {
+	public boolean fetchBool(int at) {
 		setPosition(at);
-		writeString(message);
+		return CommonUtils.nextBool(datasource);
 	}
 
-	public void writeString(String message, MessageStatus status) {
-		writeInt(message.length());
-		datasource.put(message.getBytes());
-		writeShortInt(status.status);
+	public void writeByte(int value, int at) {
+		datasource.put(at, (byte) value);
 	}
 
-	public void writeString(String message, int at, MessageStatus status) {
-		setPosition(at);
-		writeString(message, status);
+	public int fetchByte(int at) {
+		return datasource.get(at);
 	}
 
-	public void writeBool(boolean flag, int at) {
-		datasource.put(at, CommonUtils.toByte(flag));
+	public void writeShort(int value, int at) {
+		datasource.putShort(at, (short) value);
 	}
 
-	public boolean fetchBool() {
-		return CommonUtils.nextBool(datasource);
+	public int fetchShort(int at) {
+		return datasource.getShort(at) & 0xFFFF;
 	}
 
-	public boolean fetchBool(int at) {
-		setPosition(at);
-		return CommonUtils.nextBool(datasource);
+	public void writeInt(int value, int at) {
+		datasource.putInt(at, value);
 	}
 
-	public void writeInt(int value) {
-		datasource.put(CommonUtils.toBinaryString(value).getBytes());
+	public int fetchInt(int at) {
+		return datasource.getInt(at);
 	}
 
-	public void writeShortInt(int value) {
-		datasource.put(CommonUtils.toShortString(value).getBytes());
+	public void writeLong(long value, int at) {
+		datasource.putLong(at, value);
 	}
 
-	public void writeShortInt(int value, int at) {
-		setPosition(at);
-		datasource.put(CommonUtils.toShortString(value).getBytes());
+	public long fetchLong(int at) {
+		return datasource.getLong(at);
 	}
 
-	public void writeInt(int value, int at) {
-		setPosition(at);
-		writeInt(value);
+	public int fetchIntAcquire(int at) {
+		return (int) INT_VIEW.getAcquire(datasource, at);
 	}
 
-	public String fetchString() {
-		int length = CommonUtils.nextInt(datasource);
-		return CommonUtils.nextString(datasource, length);
+	public void writeIntRelease(int value, int at) {
+		INT_VIEW.setRelease(datasource, at, value);
 	}
 
-	public int fetchInt() {
-		return CommonUtils.nextInt(datasource);
+	public boolean compareAndSetInt(int expected, int value, int at) {
+		return INT_VIEW.compareAndSet(datasource, at, expected, value);
 	}
 
-	public String fetchString(int at) {
-		setPosition(at);
-		return fetchString();
+	public int getAndAddInt(int delta, int at) {
+		return (int) INT_VIEW.getAndAdd(datasource, at, delta);
 	}
 
-	public int fetchInt(int at) {
-		setPosition(at);
-		return fetchInt();
+	public long getAndAddLong(long delta, int at) {
+		return (long) LONG_VIEW.getAndAdd(datasource, at, delta);
 	}
 
-	public int fetchShortInt(int at) {
-		setPosition(at);
-		return CommonUtils.nextShortInt(datasource);
+	public long fetchLongVolatile(int at) {
+		return (long) LONG_VIEW.getVolatile(datasource, at);
+	}
+
+	public void writeLongVolatile(long value, int at) {
+		LONG_VIEW.setVolatile(datasource, at, value);
+	}
+
+	public boolean compareAndSetLong(long expected, long value, int at) {
+		return LONG_VIEW.compareAndSet(datasource, at, expected, value);
+	}
+
+	public void writeBytes(byte[] value, int at) {
+		datasource.put(at, value);
+	}
+
+	public byte[] fetchBytes(int at, int length) {
+		byte[] value = new byte[length];
+		datasource.get(at, value);
+		return value;
+	}
+
+	/**
+	 * Writes a record at the given position and returns the position right after
+	 * it. The status, flags and reserved short share one int that is written last
+	 * with release semantics: a record is committed once its status is not 0, and
+	 * a reader that sees the status also sees the rest of the record. The length
+	 * and the tag are written first, together, so a record left uncommitted by a
+	 * producer that died has either both or nothing at all written, see
+	 * {@link SegmentedQueue#recover(long)}.
+	 */
+	public int writeRecord(byte[] payload, int at, MessageStatus status, boolean withChecksum) {
+		return writeRecord(ByteBuffer.wrap(payload), at, status, withChecksum);
+	}
+
+	/**
+	 * Writes the remaining bytes of the payload, see
+	 * {@link #writeRecord(byte[], int, MessageStatus, boolean)}. The position of
+	 * the payload is not changed.
+	 */
+	public int writeRecord(ByteBuffer payload, int at, MessageStatus status, boolean withChecksum) {
+		return writeRecord(payload, at, status, 0, 0, withChecksum);
+	}
+
+	/**
+	 * Writes a record whose flags and deadline are set from the start, see
+	 * {@link #writeRecord(byte[], int, MessageStatus, boolean)}.
+	 */
+	public int writeRecord(ByteBuffer payload, int at, MessageStatus status, int flags, int deadline,
+			boolean withChecksum) {
+		int length = payload.remaining();
+		int next = at + QueueFormat.recordSize(length, withChecksum);
+		if (at < 0 || next > storageSize) {
+			throw new BufferOverflowException();
+		}
+
+		writeLength(length, at);
+		VarHandle.storeStoreFence();
+		datasource.put(at + QueueFormat.RECORD_HEADER_SIZE, payload, payload.position(), length);
+		if (withChecksum) {
+			writeInt(checksumOf(at, length), at + QueueFormat.RECORD_HEADER_SIZE + length);
+		}
+		if (deadline != 0) {
+			writeInt(deadline, at + QueueFormat.RECORD_DEADLINE_OFFSET);
+		}
+		writeIntRelease(flags << 8 | status.status, at + QueueFormat.RECORD_STATUS_OFFSET);
+		return next;
+	}
+
+	/**
+	 * Marks the rest of a segment as unused, committed like a record.
+	 */
+	public void writeEndOfSegment(int at) {
+		writeLength(QueueFormat.END_OF_SEGMENT, at);
+		writeIntRelease(MessageStatus.DELETED.status, at + QueueFormat.RECORD_STATUS_OFFSET);
+	}
+
+	/**
+	 * Writes the length of the record at the given position and its tag with one
+	 * store, see {@link QueueFormat#recordTag(int)}.
+	 */
+	public void writeLength(int length, int at) {
+		long tagged = (long) QueueFormat.recordTag(at) << 32 | (length & 0xFFFFFFFFL);
+		writeLong(tagged, at + QueueFormat.RECORD_LENGTH_OFFSET);
+	}
+
+	/**
+	 * Whether the tag of a record starting at the given position is written there.
+	 */
+	public boolean isTagged(int at) {
+		return fetchInt(at + QueueFormat.RECORD_TAG_OFFSET) == QueueFormat.recordTag(at);
+	}
+
+	public boolean isEndOfSegment(int at) {
+		return fetchInt(at + QueueFormat.RECORD_LENGTH_OFFSET) == QueueFormat.END_OF_SEGMENT;
+	}
+
+	/**
+	 * Whether the record at the given position has been completely written.
+	 */
+	public boolean isCommitted(int at) {
+		return (fetchIntAcquire(at + QueueFormat.RECORD_STATUS_OFFSET) & 0xFF) != 0;
+	}
+
+	public int fetchRecordLength(int at) {
+		int length = fetchInt(at + QueueFormat.RECORD_LENGTH_OFFSET);
+		if (length < 0 || at + QueueFormat.RECORD_HEADER_SIZE + length > storageSize) {
+			throw new CorruptedRecordException(String.format("Invalid record length %s at %s in %s", length, at,
+					queueName));
+		}
+		return length;
+	}
+
+	public int nextRecordPosition(int at, boolean withChecksum) {
+		return at + QueueFormat.recordSize(fetchRecordLength(at), withChecksum);
+	}
+
+	public MessageStatus fetchStatus(int at) {
+		return MessageStatus.of(fetchByte(at + QueueFormat.RECORD_STATUS_OFFSET));
+	}
+
+	public void writeStatus(MessageStatus status, int at) {
+		writeByte(status.status, at + QueueFormat.RECORD_STATUS_OFFSET);
+	}
+
+	public boolean isCompressed(int at) {
+		return (fetchByte(at + QueueFormat.RECORD_FLAGS_OFFSET) & QueueFormat.RECORD_FLAG_COMPRESSED) != 0;
+	}
+
+	public byte[] fetchPayload(int at, boolean withChecksum) {
+		ByteBuffer view = fetchPayloadView(at, withChecksum);
+		byte[] payload = new byte[view.remaining()];
+		view.get(payload);
+		return payload;
+	}
+
+	/**
+	 * Read-only view of the payload in the mapping, nothing is copied. It stays
+	 * readable after the file is closed.
+	 */
+	public ByteBuffer fetchPayloadView(int at, boolean withChecksum) {
+		int length = fetchRecordLength(at);
+		ByteBuffer payload = datasource.slice(at + QueueFormat.RECORD_HEADER_SIZE, length).asReadOnlyBuffer();
+
+		if (withChecksum) {
+			verifyChecksum(at, length);
+		}
+		return payload;
+	}
+
+	/**
+	 * Checks the payload of the record at the given position against its checksum.
+	 */
+	public void verifyChecksum(int at, int length) {
+		if (fetchInt(at + QueueFormat.RECORD_HEADER_SIZE + length) != checksumOf(at, length)) {
+			throw new CorruptedRecordException(String.format("Checksum mismatch at %s in %s", at, queueName));
+		}
+	}
+
+	/**
+	 * CRC32 of the payload of the record at the given position, read from the
+	 * mapping.
+	 */
+	private int checksumOf(int at, int length) {
+		ByteBuffer window = checksumWindow.getAndSet(null);
+		if (window == null) {
+			window = datasource.duplicate();
+		}
+		int start = at + QueueFormat.RECORD_HEADER_SIZE;
+		window.clear();
+		window.limit(start + length).position(start);
+
+		CRC32 crc = CHECKSUMS.get();
+		crc.reset();
+		crc.update(window);
+		checksumWindow.lazySet(window);
+		return (int) crc.getValue();
 	}
 
 	public void destroy() throws IOException {
+		this.checksumWindow.set(null);
 		this.datasource.clear();
-		this.channel.close();
-		this.file.close();
+		if (shared != null) {
+			shared.close();
+		} else {
+			this.channel.close();
+			this.file.close();
+		}
 	}
 
 }
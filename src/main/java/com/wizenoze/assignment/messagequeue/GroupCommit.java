@@ -0,0 +1,88 @@
+package com.wizenoze.assignment.messagequeue;
+
+import java.io.IOException;
+
+/**
+ * Makes written ranges of a queue durable in batches. The first writer to
+ * arrive forces the range of every writer waiting at that time, while the
+ * writers arriving meanwhile gather into the next batch, so under load there
+ * is one force per batch instead of one per write.
+ */
+final class GroupCommit {
+
+	interface Flusher {
+
+		/**
+		 * Forces the global positions from start to end to the disk.
+		 */
+		void force(long start, long end) throws IOException;
+	}
+
+	private final Flusher flusher;
+
+	private long batch;
+	private long completed = -1;
+	private boolean flushing;
+	private long batchStart = Long.MAX_VALUE;
+	private long batchEnd = Long.MIN_VALUE;
+
+	GroupCommit(Flusher flusher) {
+		this.flusher = flusher;
+	}
+
+	/**
+	 * Returns once the written range is on the disk.
+	 */
+	void commit(long start, long end) throws IOException {
+		long leading;
+		long from;
+		long to;
+
+		synchronized (this) {
+			batchStart = Math.min(batchStart, start);
+			batchEnd = Math.max(batchEnd, end);
+			long mine = batch;
+
+			boolean interrupted = false;
+			while (flushing && completed < mine) {
+				try {
+					wait();
+				} catch (InterruptedException exception) {
+					// The push has already happened, it has to be durable as well
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			if (completed >= mine) {
+				return;
+			}
+
+			flushing = true;
+			leading = batch++;
+			from = batchStart;
+			to = batchEnd;
+			batchStart = Long.MAX_VALUE;
+			batchEnd = Long.MIN_VALUE;
+		}
+
+		boolean forced = false;
+		try {
+			flusher.force(from, to);
+			forced = true;
+		} finally {
+			synchronized (this) {
+				if (forced) {
+					completed = leading;
+				} else {
+					// One of the waiting writers forces it again with the next batch
+					batchStart = Math.min(batchStart, from);
+					batchEnd = Math.max(batchEnd, to);
+				}
+				flushing = false;
+				notifyAll();
+			}
+		}
+	}
+}
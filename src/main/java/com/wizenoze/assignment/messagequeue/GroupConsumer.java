@@ -0,0 +1,135 @@
+package com.wizenoze.assignment.messagequeue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A consumer of a {@link PartitionedTopic} in a consumer group. The members of
+ * a group and the owner of every partition are kept in the mapped file
+ * {@code <topic>-<group>-group.queue}, see {@link GroupMembership}. Partitions
+ * are rebalanced when consumers join or leave, and taken over from consumers
+ * that did not pull for the session timeout of the topic.
+ *
+ * A partition is consumed by one consumer of the group at a time, so messages
+ * with the same key are processed in the order they were pushed.
+ */
+public class GroupConsumer {
+
+	/**
+	 * Consumers that are no longer live are noticed at most this late.
+	 */
+	private static final long REFRESH_INTERVAL_MILLIS = 1000;
+
+	private final PartitionedTopic topic;
+	private final GroupMembership membership;
+	private final long memberId;
+	private final Map<Integer, QueueService> partitions = new HashMap<>();
+
+	private int slot;
+	private long generation = -1;
+	private long nextRefresh;
+	private List<Integer> assignment = Collections.emptyList();
+	private int next;
+	private boolean closed;
+
+	GroupConsumer(PartitionedTopic topic, String group) throws IOException {
+		this.topic = topic;
+		this.membership = new GroupMembership(topic.getTopicName() + "-" + group + "-group",
+				topic.getPartitionCount(), topic.getSessionTimeout());
+
+		long id;
+		do {
+			id = ThreadLocalRandom.current().nextLong();
+		} while (id == 0);
+		this.memberId = id;
+		this.slot = membership.join(memberId, System.currentTimeMillis());
+	}
+
+	/**
+	 * Pulls and processes the next message of the partitions assigned to this
+	 * consumer, taking them in turns. Returns null if none of them has a message.
+	 */
+	public synchronized String pull() throws IOException {
+		refresh();
+
+		for (int i = 0; i < assignment.size(); i++) {
+			int partition = assignment.get(next++ % assignment.size());
+
+			// The previous owner may still be processing one of its messages
+			if (!membership.claim(partition, memberId, System.currentTimeMillis())) {
+				continue;
+			}
+
+			String message = partition(partition).pull();
+			if (message != null) {
+				return message;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Partitions currently assigned to this consumer.
+	 */
+	public synchronized List<Integer> getAssignment() {
+		refresh();
+		return new ArrayList<>(assignment);
+	}
+
+	/**
+	 * Leaves the group, handing the partitions to the remaining consumers.
+	 */
+	public synchronized void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+
+		membership.leave(slot, memberId);
+		for (QueueService partition : partitions.values()) {
+			partition.shutdown();
+		}
+		membership.destroy();
+	}
+
+	private void refresh() {
+		if (closed) {
+			throw new IllegalStateException("Consumer is closed");
+		}
+
+		long now = System.currentTimeMillis();
+		if (!membership.heartbeat(slot, memberId, now)) {
+			// Taken for dead by the group, its partitions may have been taken over
+			slot = membership.join(memberId, now);
+		}
+
+		long current = membership.getGeneration();
+		if (current == generation && now < nextRefresh) {
+			return;
+		}
+		generation = current;
+		nextRefresh = now + REFRESH_INTERVAL_MILLIS;
+
+		List<Integer> assigned = membership.assignment(slot, now);
+		for (int partition : assignment) {
+			if (!assigned.contains(partition)) {
+				membership.release(partition, memberId);
+			}
+		}
+		assignment = assigned;
+	}
+
+	private QueueService partition(int partition) throws IOException {
+		QueueService queueService = partitions.get(partition);
+		if (queueService == null) {
+			queueService = topic.openPartition(partition);
+			partitions.put(partition, queueService);
+		}
+		return queueService;
+	}
+}
@@ -0,0 +1,184 @@
+package com.wizenoze.assignment.messagequeue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Members of a consumer group and the owners of the partitions of its topic,
+ * kept in a small mapped file shared by every process of the group. All values
+ * are little-endian and updated with compare-and-set.
+ *
+ * <pre>
+ * Membership file, {@code <topic>-<group>-group.queue}
+ *   0  int   magic
+ *   8  long  generation, incremented when a member joins or leaves
+ *  64  MAX_MEMBERS slots of
+ *        long  member id, 0 when the slot is free
+ *        long  last heartbeat in epoch milliseconds
+ *  64 + MAX_MEMBERS * 16
+ *      long  id of the member owning the partition, one per partition
+ * </pre>
+ *
+ * A member is live while its last heartbeat is younger than the session
+ * timeout. The partitions are spread round robin over the live members in slot
+ * order. A member only takes a partition over once the previous owner released
+ * it or is no longer live, so a partition is never consumed by two members at
+ * the same time.
+ */
+final class GroupMembership {
+
+	static final int MAX_MEMBERS = 64;
+
+	// "LMQG" read as a little-endian int
+	private static final int MAGIC = 0x47514D4C;
+	private static final int GENERATION_OFFSET = 8;
+	private static final int SLOTS_OFFSET = 64;
+	private static final int SLOT_SIZE = 16;
+	private static final int HEARTBEAT_OFFSET = 8;
+	private static final int OWNERS_OFFSET = SLOTS_OFFSET + MAX_MEMBERS * SLOT_SIZE;
+
+	private final FileQueue file;
+	private final int partitionCount;
+	private final long sessionTimeout;
+
+	GroupMembership(String fileName, int partitionCount, long sessionTimeout) throws IOException {
+		this.file = new FileQueue(fileName, OWNERS_OFFSET + partitionCount * Long.BYTES);
+		this.partitionCount = partitionCount;
+		this.sessionTimeout = sessionTimeout;
+
+		if (file.fetchIntAcquire(0) == 0) {
+			// Every value starts at 0, so racing creators write the same header
+			file.writeIntRelease(MAGIC, 0);
+		} else if (file.fetchInt(0) != MAGIC) {
+			throw new IllegalStateException(fileName + " is not a consumer group file");
+		}
+	}
+
+	long getGeneration() {
+		return file.fetchLongVolatile(GENERATION_OFFSET);
+	}
+
+	/**
+	 * Takes a free slot, or the slot of a member that is no longer live, and
+	 * returns its index. Free slots have a heartbeat of 0.
+	 */
+	int join(long memberId, long now) {
+		for (int slot = 0; slot < MAX_MEMBERS; slot++) {
+			long heartbeat = file.fetchLongVolatile(heartbeatAt(slot));
+
+			// The heartbeat is taken first, so no other member sees the slot as free
+			if (now - heartbeat >= sessionTimeout && file.compareAndSetLong(heartbeat, now, heartbeatAt(slot))) {
+				file.writeLongVolatile(memberId, memberAt(slot));
+				nextGeneration();
+				return slot;
+			}
+		}
+		throw new IllegalStateException("Consumer group is full - " + file.getQueueName());
+	}
+
+	/**
+	 * Returns false if the slot was taken over because the member was not live
+	 * any more.
+	 */
+	boolean heartbeat(int slot, long memberId, long now) {
+		if (file.fetchLongVolatile(memberAt(slot)) != memberId) {
+			return false;
+		}
+		file.writeLongVolatile(now, heartbeatAt(slot));
+		return true;
+	}
+
+	/**
+	 * Releases the partitions owned by the member and frees its slot.
+	 */
+	void leave(int slot, long memberId) {
+		for (int partition = 0; partition < partitionCount; partition++) {
+			release(partition, memberId);
+		}
+		if (file.compareAndSetLong(memberId, 0, memberAt(slot))) {
+			file.writeLongVolatile(0, heartbeatAt(slot));
+			nextGeneration();
+		}
+	}
+
+	/**
+	 * Partitions assigned to the member in the given slot.
+	 */
+	List<Integer> assignment(int slot, long now) {
+		int live = 0;
+		int index = -1;
+		for (int other = 0; other < MAX_MEMBERS; other++) {
+			if (other == slot) {
+				index = live;
+			}
+			if (file.fetchLongVolatile(memberAt(other)) != 0 && isLive(other, now)) {
+				live++;
+			}
+		}
+
+		List<Integer> partitions = new ArrayList<>();
+		if (index < 0 || live == 0) {
+			return partitions;
+		}
+		for (int partition = index; partition < partitionCount; partition += live) {
+			partitions.add(partition);
+		}
+		return partitions;
+	}
+
+	/**
+	 * Returns true if the member owns the partition, taking it over when it has
+	 * no live owner.
+	 */
+	boolean claim(int partition, long memberId, long now) {
+		long owner = file.fetchLongVolatile(ownerAt(partition));
+		if (owner == memberId) {
+			return true;
+		}
+		if (owner != 0 && isLiveMember(owner, now)) {
+			return false;
+		}
+		return file.compareAndSetLong(owner, memberId, ownerAt(partition));
+	}
+
+	void release(int partition, long memberId) {
+		file.compareAndSetLong(memberId, 0, ownerAt(partition));
+	}
+
+	void destroy() throws IOException {
+		file.destroy();
+	}
+
+	private boolean isLiveMember(long memberId, long now) {
+		for (int slot = 0; slot < MAX_MEMBERS; slot++) {
+			if (file.fetchLongVolatile(memberAt(slot)) == memberId) {
+				return isLive(slot, now);
+			}
+		}
+		return false;
+	}
+
+	private boolean isLive(int slot, long now) {
+		return now - file.fetchLongVolatile(heartbeatAt(slot)) < sessionTimeout;
+	}
+
+	private void nextGeneration() {
+		long generation;
+		do {
+			generation = getGeneration();
+		} while (!file.compareAndSetLong(generation, generation + 1, GENERATION_OFFSET));
+	}
+
+	private static int memberAt(int slot) {
+		return SLOTS_OFFSET + slot * SLOT_SIZE;
+	}
+
+	private static int heartbeatAt(int slot) {
+		return memberAt(slot) + HEARTBEAT_OFFSET;
+	}
+
+	private static int ownerAt(int partition) {
+		return OWNERS_OFFSET + partition * Long.BYTES;
+	}
+}
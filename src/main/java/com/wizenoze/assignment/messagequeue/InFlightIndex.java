@@ -0,0 +1,245 @@
+package com.wizenoze.assignment.messagequeue;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Leases of the messages that are in flight, kept as a binary min-heap ordered
+ * by deadline in a mapped file, so finding the expired ones never scans the
+ * segments and every consumer process sees the leases of the others. Callers
+ * hold the lock of the queue.
+ *
+ * Entries are never removed when a lease ends early: acknowledging or extending
+ * a lease only updates the record, and the entry is dropped once it reaches the
+ * top of the heap and no longer matches the record, see {@link Filter}. When the
+ * heap is full such entries are removed all at once.
+ *
+ * A process may die in the middle of any change, so no entry is ever only in
+ * memory: a new entry is written to the free slot before the size counts it,
+ * and the entry that is sifted is kept in the header while the entries on its
+ * way are copied over its slots. A change cut short may leave an entry twice,
+ * which is harmless as both copies name the same lease and are dropped once it
+ * ends, and {@link #recover(Filter)} adds back the one in the header.
+ *
+ * A growable index doubles its file instead of throwing when it is full, and
+ * the other processes map the larger file when they see its new capacity.
+ *
+ * <pre>
+ * {@code <queue>-inflight.queue}
+ *   0  int   number of entries
+ *   8  long  deadline of the entry being sifted
+ *  16  long  position of the entry being sifted, 0 if none
+ *  24  int   number of entries the file holds, 0 if it was never grown
+ *  64  entries of 16 bytes
+ *        0  long  deadline in epoch milliseconds
+ *        8  long  position of the record
+ * </pre>
+ */
+final class InFlightIndex {
+
+	static final String SUFFIX = "-inflight";
+
+	private static final int SIZE_OFFSET = 0;
+	private static final int SIFTED_DEADLINE_OFFSET = 8;
+	private static final int SIFTED_POSITION_OFFSET = 16;
+	private static final int CAPACITY_OFFSET = 24;
+	private static final int HEADER_SIZE = 64;
+	private static final int ENTRY_SIZE = 16;
+	private static final int DEADLINE_OFFSET = 0;
+	private static final int POSITION_OFFSET = 8;
+
+	interface Filter {
+		boolean isLive(long position, long deadline) throws IOException;
+	}
+
+	private final String queueName;
+	private final boolean growable;
+	private FileQueue file;
+	private int capacity;
+
+	/**
+	 * The capacity only grows an existing index, it never shrinks it.
+	 */
+	InFlightIndex(String queueName, int capacity, boolean growable) throws IOException {
+		File existing = new File(queueName + SUFFIX + FileQueue.EXTENSION);
+		this.queueName = queueName;
+		this.growable = growable;
+		this.capacity = Math.max(capacity, (int) ((existing.length() - HEADER_SIZE) / ENTRY_SIZE));
+		this.file = new FileQueue(queueName + SUFFIX, HEADER_SIZE + this.capacity * ENTRY_SIZE);
+	}
+
+	/**
+	 * Maps the file again first if another process has grown it.
+	 */
+	int size() throws IOException {
+		if (file.fetchInt(CAPACITY_OFFSET) > capacity) {
+			remap(file.fetchInt(CAPACITY_OFFSET));
+		}
+		return file.fetchInt(SIZE_OFFSET);
+	}
+
+	boolean isEmpty() throws IOException {
+		return size() == 0;
+	}
+
+	long peekDeadline() {
+		return deadline(0);
+	}
+
+	long peekPosition() {
+		return position(0);
+	}
+
+	/**
+	 * @throws IllegalStateException if the heap is full of live leases and can not
+	 *                               grow
+	 */
+	void add(long position, long deadline, Filter filter) throws IOException {
+		if (size() == capacity) {
+			removeStale(filter);
+		}
+		int size = size();
+		if (size == capacity && growable) {
+			grow();
+		} else if (size == capacity) {
+			throw new IllegalStateException(
+					String.format("More than %s messages in flight in %s", capacity, file.getQueueName()));
+		}
+
+		write(size, position, deadline);
+		file.writeInt(size + 1, SIZE_OFFSET);
+		siftUp(size, position, deadline);
+	}
+
+	/**
+	 * Position of an entry in heap order.
+	 */
+	long positionAt(int index) {
+		return position(index);
+	}
+
+	void poll() throws IOException {
+		int size = size() - 1;
+		if (size > 0) {
+			// The last entry leaves the heap before it is sifted into the slot of the first
+			long position = position(size);
+			long deadline = deadline(size);
+			hold(position, deadline);
+			file.writeInt(size, SIZE_OFFSET);
+			siftDown(0, position, deadline, size);
+		} else {
+			file.writeInt(size, SIZE_OFFSET);
+		}
+	}
+
+	/**
+	 * Removes the entries that are no longer the lease of their record, whatever
+	 * their order, and rebuilds the heap of the others.
+	 */
+	void removeStale(Filter filter) throws IOException {
+		int size = size();
+		int kept = 0;
+		for (int index = 0; index < size; index++) {
+			if (filter.isLive(position(index), deadline(index))) {
+				copy(index, kept++);
+			}
+		}
+		file.writeInt(kept, SIZE_OFFSET);
+
+		for (int index = kept / 2 - 1; index >= 0; index--) {
+			siftDown(index, position(index), deadline(index), kept);
+		}
+	}
+
+	/**
+	 * Adds back the entry a dead process was sifting, in case it was only in the
+	 * header. Called by recovery, when no other process uses the index.
+	 */
+	void recover(Filter filter) throws IOException {
+		long position = file.fetchLong(SIFTED_POSITION_OFFSET);
+		if (position != 0) {
+			add(position, file.fetchLong(SIFTED_DEADLINE_OFFSET), filter);
+		}
+	}
+
+	private void siftUp(int index, long position, long deadline) {
+		hold(position, deadline);
+		while (index > 0) {
+			int parent = (index - 1) / 2;
+			if (deadline(parent) <= deadline) {
+				break;
+			}
+			copy(parent, index);
+			index = parent;
+		}
+		write(index, position, deadline);
+		file.writeLong(0, SIFTED_POSITION_OFFSET);
+	}
+
+	private void siftDown(int index, long position, long deadline, int size) {
+		hold(position, deadline);
+		while (true) {
+			int child = 2 * index + 1;
+			if (child >= size) {
+				break;
+			}
+			if (child + 1 < size && deadline(child + 1) < deadline(child)) {
+				child++;
+			}
+			if (deadline <= deadline(child)) {
+				break;
+			}
+			copy(child, index);
+			index = child;
+		}
+		write(index, position, deadline);
+		file.writeLong(0, SIFTED_POSITION_OFFSET);
+	}
+
+	/**
+	 * Doubles the file. The entries keep their slots, so a process dying meanwhile
+	 * leaves the index as it was, in a larger file.
+	 */
+	private void grow() throws IOException {
+		if (capacity > (Integer.MAX_VALUE - HEADER_SIZE) / ENTRY_SIZE / 2) {
+			throw new IllegalStateException(
+					String.format("More than %s messages in flight in %s", capacity, file.getQueueName()));
+		}
+		int grown = capacity * 2;
+		remap(grown);
+		file.writeInt(grown, CAPACITY_OFFSET);
+	}
+
+	private void remap(int grown) throws IOException {
+		FileQueue smaller = file;
+		file = new FileQueue(queueName + SUFFIX, HEADER_SIZE + grown * ENTRY_SIZE);
+		capacity = grown;
+		smaller.destroy();
+	}
+
+	private void hold(long position, long deadline) {
+		file.writeLong(deadline, SIFTED_DEADLINE_OFFSET);
+		file.writeLong(position, SIFTED_POSITION_OFFSET);
+	}
+
+	private long deadline(int index) {
+		return file.fetchLong(HEADER_SIZE + index * ENTRY_SIZE + DEADLINE_OFFSET);
+	}
+
+	private long position(int index) {
+		return file.fetchLong(HEADER_SIZE + index * ENTRY_SIZE + POSITION_OFFSET);
+	}
+
+	private void write(int index, long position, long deadline) {
+		file.writeLong(deadline, HEADER_SIZE + index * ENTRY_SIZE + DEADLINE_OFFSET);
+		file.writeLong(position, HEADER_SIZE + index * ENTRY_SIZE + POSITION_OFFSET);
+	}
+
+	private void copy(int from, int to) {
+		write(to, position(from), deadline(from));
+	}
+
+	void destroy() throws IOException {
+		file.destroy();
+	}
+}
@@ -0,0 +1,68 @@
+package com.wizenoze.assignment.messagequeue;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of durations in nanoseconds with one bucket per power of two, so a
+ * percentile is accurate to within a factor of two. Recording takes two striped
+ * counter updates and never allocates once the counters are warmed up.
+ */
+final class LatencyHistogram {
+
+	private static final int BUCKETS = 64;
+
+	// Bucket b counts the durations below 2^b ns and at least 2^(b-1) ns
+	private final LongAdder[] buckets = new LongAdder[BUCKETS];
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	LatencyHistogram() {
+		for (int bucket = 0; bucket < BUCKETS; bucket++) {
+			buckets[bucket] = new LongAdder();
+		}
+	}
+
+	void record(long nanos) {
+		long duration = Math.max(nanos, 0);
+		buckets[Math.min(BUCKETS - Long.numberOfLeadingZeros(duration), BUCKETS - 1)].increment();
+		max.accumulate(duration);
+	}
+
+	long getCount() {
+		long count = 0;
+		for (LongAdder bucket : buckets) {
+			count += bucket.sum();
+		}
+		return count;
+	}
+
+	long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Upper bound of the bucket holding the given fraction of the durations, 0 if
+	 * nothing was recorded.
+	 */
+	long getPercentile(double fraction) {
+		long[] counts = new long[BUCKETS];
+		long count = 0;
+		for (int bucket = 0; bucket < BUCKETS; bucket++) {
+			counts[bucket] = buckets[bucket].sum();
+			count += counts[bucket];
+		}
+		if (count == 0) {
+			return 0;
+		}
+
+		long rank = (long) Math.ceil(fraction * count);
+		long seen = 0;
+		for (int bucket = 0; bucket < BUCKETS; bucket++) {
+			seen += counts[bucket];
+			if (seen >= rank && counts[bucket] > 0) {
+				return Math.min(bucket == BUCKETS - 1 ? Long.MAX_VALUE : 1L << bucket, getMax());
+			}
+		}
+		return getMax();
+	}
+}
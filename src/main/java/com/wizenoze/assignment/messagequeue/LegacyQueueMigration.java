@@ -0,0 +1,146 @@
+package com.wizenoze.assignment.messagequeue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Converts queues of the original layout, where every int was stored as 32
+ * ASCII '0'/'1' characters and every status as 4 of them, into the one
+ * described in {@link QueueFormat}.
+ *
+ * The old file is first renamed to {@code <queue>.legacy} and removed once all
+ * of its unconsumed messages are copied, so a migration interrupted by a crash
+ * is simply redone on the next open. Positions handed out as message ids before
+ * the migration are not valid afterwards.
+ */
+final class LegacyQueueMigration {
+
+	static final String LEGACY_EXTENSION = ".legacy";
+
+	private static final int INT_LENGTH = 32;
+	private static final int SHORT_INT_LENGTH = 4;
+	private static final int PULL_POSITION = 0;
+	private static final int PUSH_POSITION = 32;
+	private static final int DATA_START_INDEX = 64;
+	private static final int DELETED_STATUS = 3;
+
+	private LegacyQueueMigration() {
+	}
+
+	static synchronized void migrateIfNeeded(String queueName, int segmentSize, QueueOptions options)
+			throws IOException {
+		File source = new File(queueName + FileQueue.EXTENSION);
+		File backup = new File(queueName + LEGACY_EXTENSION);
+
+		if (isLegacy(source)) {
+			try {
+				Files.move(source.toPath(), backup.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			} catch (NoSuchFileException exception) {
+				// Another process moved it first and is migrating it
+			}
+		}
+
+		if (!backup.exists()) {
+			return;
+		}
+
+		try (FileChannel channel = FileChannel.open(backup.toPath(), StandardOpenOption.READ,
+				StandardOpenOption.WRITE)) {
+			// Released when the channel is closed
+			channel.lock();
+
+			// The process holding the lock before us may have completed the migration
+			if (!backup.exists()) {
+				return;
+			}
+
+			SegmentedQueue.deleteFiles(queueName);
+			SegmentedQueue.deleteFiles(queueName + DelayedMessages.SUFFIX);
+			SegmentedQueue target = new SegmentedQueue(queueName, segmentSize, options);
+
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			copyLegacyMessages(buffer, target);
+
+			target.destroy();
+			Files.delete(backup.toPath());
+
+		} catch (NoSuchFileException exception) {
+			return;
+		}
+	}
+
+	private static void copyLegacyMessages(MappedByteBuffer legacy, SegmentedQueue target) throws IOException {
+		int pullPosition = parseInt(legacy, PULL_POSITION, INT_LENGTH);
+		int pushPosition = parseInt(legacy, PUSH_POSITION, INT_LENGTH);
+
+		int at = pullPosition;
+		while (at < pushPosition) {
+			int length = parseInt(legacy, at, INT_LENGTH);
+			int statusPosition = at + INT_LENGTH + length;
+
+			if (parseInt(legacy, statusPosition, SHORT_INT_LENGTH) != DELETED_STATUS) {
+				target.append(bytesAt(legacy, at + INT_LENGTH, length), MessageStatus.UNPROCESSED);
+			}
+
+			at = statusPosition + SHORT_INT_LENGTH;
+		}
+	}
+
+	private static byte[] bytesAt(MappedByteBuffer buffer, int at, int length) {
+		byte[] bytes = new byte[length];
+		buffer.position(at);
+		buffer.get(bytes);
+		return bytes;
+	}
+
+	static boolean isLegacy(File file) throws IOException {
+		if (!file.exists() || file.length() < DATA_START_INDEX) {
+			return false;
+		}
+
+		/*
+		 * Every open probes the meta file of a queue that may be in use, so it is read
+		 * through the channel the JVM shares for it: closing a channel of its own would
+		 * release the locks of the process, see SharedChannel.
+		 */
+		ByteBuffer firstInt = ByteBuffer.allocate(INT_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+		SharedChannel shared = SharedChannel.open(file.getAbsolutePath());
+		try {
+			shared.getChannel().read(firstInt, 0);
+		} finally {
+			shared.close();
+		}
+		if (firstInt.getInt(QueueFormat.MAGIC_OFFSET) == QueueFormat.MAGIC) {
+			return false;
+		}
+
+		firstInt.flip();
+		while (firstInt.hasRemaining()) {
+			byte digit = firstInt.get();
+			if (digit != '0' && digit != '1') {
+				return false;
+			}
+		}
+		return firstInt.position() == INT_LENGTH;
+	}
+
+	private static int parseInt(MappedByteBuffer buffer, int at, int length) {
+		int value = 0;
+		for (int i = at; i < at + length; i++) {
+			byte digit = buffer.get(i);
+			if (digit != '0' && digit != '1') {
+				throw new CorruptedRecordException("Invalid legacy int at " + at);
+			}
+			value = (value << 1) | (digit - '0');
+		}
+		return value;
+	}
+}
@@ -2,11 +2,30 @@ package com.wizenoze.assignment.messagequeue;
 
 public enum MessageStatus {
 
-	UNPROCESSED(0), IN_PROCESS(1), PROCESSED(2), DELETED(3);
+	/*
+	 * Status 0 is never written so that a zeroed region of the file can not be
+	 * mistaken for a record.
+	 */
+	UNPROCESSED(1), IN_PROCESS(2), PROCESSED(3), DELETED(4);
+
+	private static final MessageStatus[] BY_STATUS = new MessageStatus[5];
+
+	static {
+		for (MessageStatus value : values()) {
+			BY_STATUS[value.status] = value;
+		}
+	}
 
 	int status;
 
 	MessageStatus(int status) {
 		this.status = status;
 	}
+
+	static MessageStatus of(int status) {
+		if (status <= 0 || status >= BY_STATUS.length) {
+			throw new CorruptedRecordException("Unknown message status " + status);
+		}
+		return BY_STATUS[status];
+	}
 }
@@ -0,0 +1,124 @@
+package com.wizenoze.assignment.messagequeue;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A received message that is filled in place, so consuming with
+ * {@link FileBasedQueueService#receive(MessageView[], long, java.util.concurrent.TimeUnit)}
+ * allocates nothing per message. The payload is a read-only window on the
+ * mapped segment, moved to the next message every time the view is filled: its
+ * position and limit are those of the payload, not 0 and its length, and it is
+ * only valid until the view is filled again. A compressed payload is the
+ * exception: it is decompressed into a buffer of its own when it is first
+ * asked for, see {@link QueueOptions#setCompression(PayloadCodec, int)}. A
+ * view is used by one thread at a time.
+ */
+public final class MessageView {
+
+	private long id = FileBasedQueueService.INVALID_POSITON;
+	private int receiveCount;
+	private long deadline;
+
+	// Window on the segment the last message was in, kept while messages come from it
+	private FileQueue segment;
+	private ByteBuffer window;
+
+	// The window, or the decompressed window once asked for; codec is null then
+	private ByteBuffer payload;
+	private PayloadCodec codec;
+
+	public long getId() {
+		return id;
+	}
+
+	/**
+	 * Number of times the message has been received, including this delivery.
+	 */
+	public int getReceiveCount() {
+		return receiveCount;
+	}
+
+	/**
+	 * Epoch milliseconds at which the message becomes visible again unless it is
+	 * acknowledged.
+	 */
+	public long getDeadline() {
+		return deadline;
+	}
+
+	/**
+	 * The payload, between the position and the limit of the window. Relative
+	 * reads consume it; absolute reads have to add the position.
+	 */
+	public ByteBuffer getPayload() {
+		if (codec != null) {
+			payload = codec.decompress(window, segment.getStorageSize());
+			codec = null;
+		}
+		return payload;
+	}
+
+	/**
+	 * The payload as it is stored in the segment, see {@link #getCodec()}.
+	 */
+	ByteBuffer getStoredPayload() {
+		return window;
+	}
+
+	/**
+	 * Codec to decompress the stored payload with, null if it is not compressed
+	 * or has been decompressed already.
+	 */
+	PayloadCodec getCodec() {
+		return codec;
+	}
+
+	/**
+	 * Size of the segment the payload is stored in, which bounds it.
+	 */
+	int getSegmentSize() {
+		return segment.getStorageSize();
+	}
+
+	/**
+	 * Allocates a handle of this delivery, for the methods that take one.
+	 */
+	public ReceiptHandle toReceiptHandle() {
+		return new ReceiptHandle(id, receiveCount, deadline);
+	}
+
+	void set(long id, int receiveCount, long deadline) {
+		this.id = id;
+		this.receiveCount = receiveCount;
+		this.deadline = deadline;
+	}
+
+	/**
+	 * Moves the window to the payload of the record at the given position of the
+	 * segment. Only a move to another segment allocates.
+	 *
+	 * @param codec codec the payload is compressed with, null if it is not
+	 * @throws CorruptedRecordException if the record is invalid
+	 */
+	void setPayload(FileQueue segment, int at, boolean withChecksum, PayloadCodec codec) {
+		if (segment != this.segment) {
+			this.window = segment.getDatasource().asReadOnlyBuffer();
+			this.segment = segment;
+		}
+		int length = segment.fetchRecordLength(at);
+		if (withChecksum) {
+			segment.verifyChecksum(at, length);
+		}
+
+		int start = at + QueueFormat.RECORD_HEADER_SIZE;
+		window.clear();
+		window.limit(start + length).position(start);
+		this.payload = window;
+		this.codec = codec;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s:%s", id, receiveCount);
+	}
+}
@@ -0,0 +1,17 @@
+package com.wizenoze.assignment.messagequeue;
+
+/**
+ * Receives the metrics of a queue service periodically, see
+ * {@link QueueOptions#setMetricsReporter(MetricsReporter, long, java.util.concurrent.TimeUnit)}.
+ * Called on a shared background thread, so it should not block.
+ */
+@FunctionalInterface
+public interface MetricsReporter {
+
+	/**
+	 * Prints the metrics to the standard output.
+	 */
+	MetricsReporter CONSOLE = metrics -> System.out.println(metrics);
+
+	void report(QueueMetrics metrics);
+}
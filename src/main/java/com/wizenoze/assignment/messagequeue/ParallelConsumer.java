@@ -0,0 +1,261 @@
+package com.wizenoze.assignment.messagequeue;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Processes the messages of a queue on a pool of workers. Messages are received
+ * ahead into a bounded buffer and handed to {@link QueueService#processMessage}
+ * on the workers, so a slow handler only holds up its own worker. A message is
+ * acknowledged once it is processed and handed back with
+ * {@link QueueService#nack} when processing returns false, throws or takes
+ * longer than the message timeout.
+ *
+ * Timeouts of every consumer are tracked by one shared scheduler thread, which
+ * interrupts the worker of a message that timed out and leaves handing the
+ * message back to the worker pool, so it never waits for a queue itself.
+ */
+public class ParallelConsumer {
+
+	private static final ScheduledExecutorService TIMEOUTS = Executors.newSingleThreadScheduledExecutor(task -> {
+		Thread thread = new Thread(task, "message-timeouts");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private static final long POLL_TIMEOUT_MILLIS = 100;
+
+	private final QueueService queueService;
+	private final QueueMetrics metrics;
+
+	private int concurrency = 8;
+	private int prefetch = -1;
+	private long messageTimeout = TimeUnit.SECONDS.toMillis(2);
+	private long visibilityTimeout = TimeUnit.SECONDS.toMillis(30);
+	private ThreadFactory threadFactory = Executors.defaultThreadFactory();
+
+	private volatile boolean running;
+	private Thread fetcher;
+
+	public ParallelConsumer(QueueService queueService) {
+		this.queueService = queueService;
+		// Handler latencies are recorded with the metrics of file based queues
+		this.metrics = queueService instanceof FileBasedQueueService
+				? ((FileBasedQueueService) queueService).getMetrics()
+				: null;
+	}
+
+	/**
+	 * Number of messages processed at the same time.
+	 */
+	public ParallelConsumer setConcurrency(int concurrency) {
+		this.concurrency = concurrency;
+		return this;
+	}
+
+	/**
+	 * Number of messages received ahead of the workers, the concurrency by default.
+	 */
+	public ParallelConsumer setPrefetch(int prefetch) {
+		this.prefetch = prefetch;
+		return this;
+	}
+
+	public ParallelConsumer setMessageTimeout(long messageTimeout, TimeUnit unit) {
+		this.messageTimeout = unit.toMillis(messageTimeout);
+		return this;
+	}
+
+	/**
+	 * Has to cover the time a message spends in the buffer and being processed,
+	 * otherwise it is delivered again in the meantime.
+	 */
+	public ParallelConsumer setVisibilityTimeout(long visibilityTimeout, TimeUnit unit) {
+		this.visibilityTimeout = QueueOptions.checkVisibilityTimeout(visibilityTimeout, unit);
+		return this;
+	}
+
+	/**
+	 * Creates the threads of the worker pool and of {@link #start()}.
+	 */
+	public ParallelConsumer setThreadFactory(ThreadFactory threadFactory) {
+		this.threadFactory = threadFactory;
+		return this;
+	}
+
+	/**
+	 * Processes messages until the push end of the queue is marked and every
+	 * message is acknowledged.
+	 */
+	public void runUntilConsumed() throws IOException, InterruptedException {
+		running = true;
+		Workers workers = new Workers();
+		try {
+			while (running && !queueService.hasAllMessagesConsumed()) {
+				workers.fetch();
+			}
+		} finally {
+			workers.shutdown();
+		}
+	}
+
+	/**
+	 * Processes messages in the background until {@link #stop()}.
+	 */
+	public synchronized void start() {
+		running = true;
+		fetcher = threadFactory.newThread(() -> {
+			Workers workers = new Workers();
+			try {
+				while (running) {
+					workers.fetch();
+				}
+			} catch (IOException e) {
+				System.out.println("Problem while receiving from " + queueService.getQueueName() + " - " + e);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				workers.shutdown();
+			}
+		});
+		fetcher.start();
+	}
+
+	/**
+	 * Stops receiving and waits for the messages received so far.
+	 */
+	public synchronized void stop() throws InterruptedException {
+		running = false;
+		if (fetcher != null) {
+			fetcher.join();
+			fetcher = null;
+		}
+	}
+
+	private class Workers {
+
+		private final ExecutorService pool = Executors.newFixedThreadPool(concurrency, threadFactory);
+		private final int capacity = concurrency + (prefetch < 0 ? concurrency : prefetch);
+
+		// One permit for every message that may be received and not processed yet
+		private final Semaphore permits = new Semaphore(capacity);
+
+		void fetch() throws IOException, InterruptedException {
+			if (!permits.tryAcquire(POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+				return;
+			}
+			int free = 1 + permits.drainPermits();
+
+			List<QueueMessage> messages = queueService.receive(free, visibilityTimeout, POLL_TIMEOUT_MILLIS,
+					TimeUnit.MILLISECONDS);
+			permits.release(free - messages.size());
+
+			for (QueueMessage message : messages) {
+				pool.execute(new Delivery(message, permits, pool));
+			}
+		}
+
+		void shutdown() {
+			pool.shutdown();
+			try {
+				// Messages left unprocessed are delivered again after their visibility timeout
+				pool.awaitTermination(messageTimeout * capacity, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private class Delivery implements Runnable {
+
+		private final QueueMessage message;
+		private final Semaphore permits;
+		private final Executor workers;
+		private final AtomicBoolean settled = new AtomicBoolean();
+		private Thread worker;
+
+		Delivery(QueueMessage message, Semaphore permits, Executor workers) {
+			this.message = message;
+			this.permits = permits;
+			this.workers = workers;
+		}
+
+		@Override
+		public void run() {
+			synchronized (this) {
+				worker = Thread.currentThread();
+			}
+			ScheduledFuture<?> timeout = TIMEOUTS.schedule(this::expire, messageTimeout, TimeUnit.MILLISECONDS);
+			long start = System.nanoTime();
+
+			boolean processed;
+			try {
+				processed = queueService.processMessage(message.getBody());
+			} catch (Exception e) {
+				processed = false;
+			} finally {
+				if (metrics != null) {
+					metrics.handled(System.nanoTime() - start);
+				}
+				synchronized (this) {
+					worker = null;
+				}
+				// Clears an interrupt of a timeout that came too late
+				Thread.interrupted();
+				permits.release();
+			}
+
+			if (settled.compareAndSet(false, true)) {
+				timeout.cancel(false);
+				if (!processed && metrics != null) {
+					metrics.handlerFailed();
+				}
+				settle(processed);
+			}
+		}
+
+		/**
+		 * Runs on the shared scheduler thread, so the message is handed back on the
+		 * worker pool.
+		 */
+		private void expire() {
+			if (settled.compareAndSet(false, true)) {
+				synchronized (this) {
+					if (worker != null) {
+						worker.interrupt();
+					}
+				}
+				if (metrics != null) {
+					metrics.handlerTimedOut();
+				}
+				try {
+					workers.execute(() -> settle(false));
+				} catch (RejectedExecutionException e) {
+					// Shutting down, the message is delivered again after its visibility timeout
+				}
+			}
+		}
+
+		private void settle(boolean processed) {
+			try {
+				if (processed) {
+					queueService.ack(message.getReceiptHandle());
+				} else {
+					queueService.nack(message);
+				}
+			} catch (IOException e) {
+				System.out.println("Problem while settling message " + message.getId() + " - " + e.getMessage());
+			}
+		}
+	}
+}
@@ -0,0 +1,27 @@
+package com.wizenoze.assignment.messagequeue;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a batch push fails after its first messages were written, with
+ * the ids of those, so they are not pushed again.
+ */
+public class PartialPushException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final long[] ids;
+
+	public PartialPushException(long[] ids, Throwable cause) {
+		super("Pushed " + ids.length + " messages of the batch - " + cause, cause);
+		this.ids = ids;
+	}
+
+	/**
+	 * Ids of the messages written, the first ones of the batch in order.
+	 */
+	public long[] getIds() {
+		return ids.clone();
+	}
+
+}
@@ -0,0 +1,149 @@
+package com.wizenoze.assignment.messagequeue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A topic split into partitions, each of them a queue of its own named
+ * {@code <topic>-partition<n>}. Messages with the same key go to the same
+ * partition and are delivered in the order they were pushed. The consumers of a
+ * group share the partitions between them, see {@link GroupConsumer}.
+ *
+ * The number of partitions is stored in {@code <topic>-topic.queue} when the
+ * topic is created; opening an existing topic uses the stored number.
+ */
+public class PartitionedTopic {
+
+	// "LMQT" read as a little-endian int
+	private static final int MAGIC = 0x54514D4C;
+	private static final int HEADER_SIZE = 64;
+
+	private final String topicName;
+	private final int partitionCount;
+	private final int segmentSize;
+	private final QueueOptions options;
+	private final QueueService[] partitions;
+
+	private long sessionTimeout = TimeUnit.SECONDS.toMillis(10);
+
+	public PartitionedTopic(String topicName, int partitionCount, int segmentSize) throws IOException {
+		this(topicName, partitionCount, segmentSize, new QueueOptions());
+	}
+
+	public PartitionedTopic(String topicName, int partitionCount, int segmentSize, QueueOptions options)
+			throws IOException {
+		if (partitionCount < 1) {
+			throw new IllegalArgumentException("Invalid partition count - " + partitionCount);
+		}
+		this.topicName = topicName;
+		this.partitionCount = readPartitionCount(topicName, partitionCount);
+		this.segmentSize = segmentSize;
+		this.options = options;
+		this.partitions = new QueueService[this.partitionCount];
+	}
+
+	/**
+	 * The magic and the partition count share one long, so racing creators agree
+	 * on the first one written.
+	 */
+	private static int readPartitionCount(String topicName, int partitionCount) throws IOException {
+		FileQueue header = new FileQueue(topicName + "-topic", HEADER_SIZE);
+		try {
+			header.compareAndSetLong(0, (long) partitionCount << 32 | (MAGIC & 0xFFFFFFFFL), 0);
+			long stored = header.fetchLongVolatile(0);
+			if ((int) stored != MAGIC) {
+				throw new IllegalStateException(topicName + " is not a topic");
+			}
+			return (int) (stored >>> 32);
+		} finally {
+			header.destroy();
+		}
+	}
+
+	public static String getPartitionName(String topicName, int partition) {
+		return topicName + "-partition" + partition;
+	}
+
+	public String getTopicName() {
+		return topicName;
+	}
+
+	public int getPartitionCount() {
+		return partitionCount;
+	}
+
+	public long getSessionTimeout() {
+		return sessionTimeout;
+	}
+
+	/**
+	 * How long a consumer of a group stays a member without pulling. Its
+	 * partitions are handed to the other consumers once it has passed.
+	 */
+	public PartitionedTopic setSessionTimeout(long sessionTimeout, TimeUnit unit) {
+		this.sessionTimeout = unit.toMillis(sessionTimeout);
+		return this;
+	}
+
+	/**
+	 * String hash codes are specified, so every process routes a key to the same
+	 * partition.
+	 */
+	public int partitionOf(String key) {
+		return Math.floorMod(key.hashCode(), partitionCount);
+	}
+
+	/**
+	 * Partition of the remaining bytes of the key.
+	 */
+	public int partitionOf(ByteBuffer key) {
+		return Math.floorMod(key.hashCode(), partitionCount);
+	}
+
+	/**
+	 * Returns the id of the message within its partition.
+	 */
+	public long push(String key, String message) throws IOException {
+		return getPartition(partitionOf(key)).push(message);
+	}
+
+	public long push(ByteBuffer key, ByteBuffer payload) throws IOException {
+		return getPartition(partitionOf(key)).push(payload);
+	}
+
+	/**
+	 * Queue of the partition used for pushing, opened on first use.
+	 */
+	public synchronized QueueService getPartition(int partition) throws IOException {
+		if (partitions[partition] == null) {
+			partitions[partition] = openPartition(partition);
+		}
+		return partitions[partition];
+	}
+
+	/**
+	 * Opens a queue of the partition. Override to process the messages pulled by
+	 * the consumers of this topic.
+	 */
+	protected QueueService openPartition(int partition) throws IOException {
+		return new FileBasedQueueService(getPartitionName(topicName, partition), segmentSize, options);
+	}
+
+	/**
+	 * Joins the consumer group, which shares the partitions of the topic between
+	 * its consumers in every process.
+	 */
+	public GroupConsumer subscribe(String group) throws IOException {
+		return new GroupConsumer(this, group);
+	}
+
+	public synchronized void shutdown() throws IOException {
+		for (int partition = 0; partition < partitionCount; partition++) {
+			if (partitions[partition] != null) {
+				partitions[partition].shutdown();
+				partitions[partition] = null;
+			}
+		}
+	}
+}
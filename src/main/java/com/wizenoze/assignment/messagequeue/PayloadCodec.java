@@ -0,0 +1,35 @@
+package com.wizenoze.assignment.messagequeue;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Compresses the payloads of a queue, see
+ * {@link QueueOptions#setCompression(PayloadCodec, int)}. Records only tell
+ * whether they are compressed, not how, so every process using a queue has to
+ * use the same codec. Implementations are used by several threads at once.
+ */
+public interface PayloadCodec {
+
+	/**
+	 * Raw deflate at its fastest level, see {@link DeflateCodec}.
+	 */
+	PayloadCodec DEFLATE = new DeflateCodec(DeflateCodec.BEST_SPEED);
+
+	/**
+	 * Returns the remaining bytes of the payload compressed, or null if that does
+	 * not make them smaller. The position of the payload is not changed.
+	 */
+	ByteBuffer compress(ByteBuffer payload);
+
+	/**
+	 * Returns the payload restored from the remaining bytes, which were returned
+	 * by {@link #compress(ByteBuffer)}. The position of the given buffer is not
+	 * changed.
+	 *
+	 * @param maxLength length the restored payload can not exceed, the segment
+	 *                  size of the queue
+	 * @throws CorruptedRecordException if the bytes are not a compressed payload
+	 *                                  of at most maxLength bytes
+	 */
+	ByteBuffer decompress(ByteBuffer compressed, int maxLength);
+}
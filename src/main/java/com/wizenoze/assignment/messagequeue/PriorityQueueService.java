@@ -0,0 +1,528 @@
+package com.wizenoze.assignment.messagequeue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A queue with priority lanes, each of them a queue of its own named
+ * {@code <queue>-priority<n>}. Consumers serve the highest priority lane that
+ * has messages, but a lane is only served its weight times in a row while lower
+ * lanes wait, so they are not starved, see {@link #setWeights(int...)}.
+ *
+ * {@code <queue>-lanes.queue} holds the number of lanes, stored when the queue
+ * is created, and a bitmap of the lanes that may have messages to deliver. A
+ * producer sets the bit of its lane after pushing and a consumer clears it when
+ * it finds the lane empty, so picking a lane takes no scan of the lanes.
+ *
+ * The id of a message holds its priority in the top byte and its id within the
+ * lane in the rest. Messages pushed without a priority go to lane 0, the lowest.
+ */
+public class PriorityQueueService implements QueueService {
+
+	public static final int MAX_LANES = Long.SIZE;
+
+	// "LMQP" read as a little-endian int
+	private static final int MAGIC = 0x50514D4C;
+	private static final int HEADER_SIZE = 64;
+	private static final int LANE_COUNT_OFFSET = 0;
+	private static final int NON_EMPTY_OFFSET = 8;
+
+	private static final int PRIORITY_SHIFT = 56;
+	private static final long LANE_ID_MASK = (1L << PRIORITY_SHIFT) - 1;
+
+	/**
+	 * Waiters look at the lanes at least this often, for delayed messages and
+	 * expired leases.
+	 */
+	private static final long MAX_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+
+	private interface Attempt<T> {
+		T attempt() throws IOException;
+	}
+
+	private interface LaneCall<T> {
+		T call(int priority, FileBasedQueueService lane) throws IOException;
+	}
+
+	private final String queueName;
+	private final FileQueue header;
+	private final FileQueue pushStatus;
+	private final PushSignal pushSignal;
+	private final FileBasedQueueService[] lanes;
+
+	private final int[] weights;
+	private final int[] credits;
+	private long credited;
+
+	public PriorityQueueService(String queueName, int laneCount, int segmentSize) throws IOException {
+		this(queueName, laneCount, segmentSize, new QueueOptions());
+	}
+
+	/**
+	 * @param laneCount number of priority lanes, only used when the queue does not
+	 *                  exist yet
+	 */
+	public PriorityQueueService(String queueName, int laneCount, int segmentSize, QueueOptions options)
+			throws IOException {
+		if (laneCount < 1 || laneCount > MAX_LANES) {
+			throw new IllegalArgumentException("Invalid lane count - " + laneCount);
+		}
+		this.queueName = queueName;
+		this.header = new FileQueue(queueName + "-lanes", HEADER_SIZE);
+		this.pushStatus = new FileQueue(QueueService.getPushStatusQueueName(queueName), 1);
+		this.pushSignal = PushSignal.of(header);
+
+		try {
+			this.lanes = new FileBasedQueueService[readLaneCount(header, queueName, laneCount)];
+			for (int priority = 0; priority < lanes.length; priority++) {
+				lanes[priority] = new FileBasedQueueService(getLaneName(queueName, priority), segmentSize, options) {
+					@Override
+					public boolean processMessage(String message) throws IOException, TimeoutException {
+						return PriorityQueueService.this.processMessage(message);
+					}
+				};
+			}
+		} catch (IOException | RuntimeException exception) {
+			header.destroy();
+			pushStatus.destroy();
+			throw exception;
+		}
+
+		this.weights = new int[lanes.length];
+		for (int priority = 0; priority < lanes.length; priority++) {
+			weights[priority] = 1 << Math.min(priority, 20);
+		}
+		this.credits = weights.clone();
+		this.credited = allLanes();
+	}
+
+	/**
+	 * The magic and the lane count share one long, so racing creators agree on the
+	 * first one written.
+	 */
+	private static int readLaneCount(FileQueue header, String queueName, int laneCount) {
+		header.compareAndSetLong(0, (long) laneCount << 32 | (MAGIC & 0xFFFFFFFFL), LANE_COUNT_OFFSET);
+		long stored = header.fetchLongVolatile(LANE_COUNT_OFFSET);
+		if ((int) stored != MAGIC) {
+			throw new IllegalStateException(queueName + " is not a priority queue");
+		}
+		return (int) (stored >>> 32);
+	}
+
+	public static String getLaneName(String queueName, int priority) {
+		return queueName + "-priority" + priority;
+	}
+
+	@Override
+	public String getQueueName() {
+		return queueName;
+	}
+
+	public int getLaneCount() {
+		return lanes.length;
+	}
+
+	/**
+	 * Queue of a lane, whose ids are the ids within the lane.
+	 */
+	public FileBasedQueueService getLane(int priority) {
+		return lanes[priority];
+	}
+
+	/**
+	 * How many times in a row each lane is served, lowest priority first, while
+	 * lower lanes have messages. Once every lane with messages has used up its
+	 * weight, they all start over. By default every lane weighs twice as much as
+	 * the one below it. The weights are kept by this instance only.
+	 */
+	public synchronized PriorityQueueService setWeights(int... weights) {
+		if (weights.length != lanes.length) {
+			throw new IllegalArgumentException(
+					String.format("Expected %s weights - %s", lanes.length, Arrays.toString(weights)));
+		}
+		for (int weight : weights) {
+			if (weight < 1) {
+				throw new IllegalArgumentException("Invalid weight - " + weight);
+			}
+		}
+		System.arraycopy(weights, 0, this.weights, 0, weights.length);
+		refill();
+		return this;
+	}
+
+	public static int priorityOf(long messageId) {
+		return (int) (messageId >>> PRIORITY_SHIFT);
+	}
+
+	private static long laneIdOf(long messageId) {
+		return messageId & LANE_ID_MASK;
+	}
+
+	private static long messageId(int priority, long laneId) {
+		return (long) priority << PRIORITY_SHIFT | laneId;
+	}
+
+	/**
+	 * Lock-free like {@link FileBasedQueueService#push(String)}.
+	 */
+	public long push(String message, int priority) throws IOException {
+		return pushed(priority, lane(priority).push(message));
+	}
+
+	public long push(ByteBuffer payload, int priority) throws IOException {
+		return pushed(priority, lane(priority).push(payload));
+	}
+
+	@Override
+	public long push(String message) throws IOException {
+		return push(message, 0);
+	}
+
+	@Override
+	public long push(ByteBuffer payload) throws IOException {
+		return push(payload, 0);
+	}
+
+	@Override
+	public List<Long> pushAll(List<String> messages) throws IOException {
+		List<Long> ids = new ArrayList<>(messages.size());
+		for (long laneId : lanes[0].pushAll(messages)) {
+			ids.add(messageId(0, laneId));
+		}
+		markNonEmpty(0);
+		pushSignal.signal();
+		return ids;
+	}
+
+	/**
+	 * Pushes to lane 0, see {@link FileBasedQueueService#pushPayloads(List)}.
+	 */
+	@Override
+	public long[] pushPayloads(List<ByteBuffer> payloads) throws IOException {
+		long[] ids;
+		try {
+			ids = lanes[0].pushPayloads(payloads);
+		} catch (PartialPushException e) {
+			long[] pushed = e.getIds();
+			for (int index = 0; index < pushed.length; index++) {
+				pushed[index] = messageId(0, pushed[index]);
+			}
+			markNonEmpty(0);
+			pushSignal.signal();
+			throw new PartialPushException(pushed, e.getCause());
+		}
+		for (int index = 0; index < ids.length; index++) {
+			ids[index] = messageId(0, ids[index]);
+		}
+		markNonEmpty(0);
+		pushSignal.signal();
+		return ids;
+	}
+
+	@Override
+	public long push(String message, long delay, TimeUnit unit) throws IOException {
+		return pushed(0, lanes[0].push(message, delay, unit));
+	}
+
+	@Override
+	public long push(String message, Instant deliverAt) throws IOException {
+		return pushed(0, lanes[0].push(message, deliverAt));
+	}
+
+	@Override
+	public long push(ByteBuffer payload, Instant deliverAt) throws IOException {
+		return pushed(0, lanes[0].push(payload, deliverAt));
+	}
+
+	@Override
+	public long push(String message, String deduplicationId) throws IOException {
+		return pushed(0, lanes[0].push(message, deduplicationId));
+	}
+
+	@Override
+	public long push(ByteBuffer payload, String deduplicationId) throws IOException {
+		return pushed(0, lanes[0].push(payload, deduplicationId));
+	}
+
+	private FileBasedQueueService lane(int priority) {
+		if (priority < 0 || priority >= lanes.length) {
+			throw new IllegalArgumentException("Invalid priority - " + priority);
+		}
+		return lanes[priority];
+	}
+
+	private long pushed(int priority, long laneId) {
+		markNonEmpty(priority);
+		pushSignal.signal();
+		return messageId(priority, laneId);
+	}
+
+	/**
+	 * Set after the push, and cleared by consumers before they look at the lane
+	 * again, so a message is never left behind a clear bit.
+	 */
+	private void markNonEmpty(int priority) {
+		long bit = 1L << priority;
+		long nonEmpty;
+		do {
+			nonEmpty = header.fetchLongVolatile(NON_EMPTY_OFFSET);
+			if ((nonEmpty & bit) != 0) {
+				return;
+			}
+		} while (!header.compareAndSetLong(nonEmpty, nonEmpty | bit, NON_EMPTY_OFFSET));
+	}
+
+	private void markEmptyIfIdle(int priority) {
+		if (!lanes[priority].isIdle()) {
+			return;
+		}
+		long bit = 1L << priority;
+		long nonEmpty;
+		do {
+			nonEmpty = header.fetchLongVolatile(NON_EMPTY_OFFSET);
+		} while (!header.compareAndSetLong(nonEmpty, nonEmpty & ~bit, NON_EMPTY_OFFSET));
+
+		// Pushed meanwhile
+		if (!lanes[priority].isIdle()) {
+			markNonEmpty(priority);
+		}
+	}
+
+	/**
+	 * Picks the highest lane that may have messages and has weight left, and
+	 * moves on to the next one when it turns out to have nothing to deliver.
+	 * Returns null if no lane has.
+	 */
+	private synchronized <T> T fromNextLane(LaneCall<T> call) throws IOException {
+		long tried = 0;
+		while (true) {
+			long candidates = header.fetchLongVolatile(NON_EMPTY_OFFSET) & ~tried;
+			if (candidates == 0) {
+				return null;
+			}
+			if ((candidates & credited) == 0) {
+				refill();
+			}
+			int priority = Long.SIZE - 1 - Long.numberOfLeadingZeros(candidates & credited);
+
+			T result = call.call(priority, lanes[priority]);
+			if (result != null) {
+				if (--credits[priority] == 0) {
+					credited &= ~(1L << priority);
+				}
+				return result;
+			}
+			markEmptyIfIdle(priority);
+			tried |= 1L << priority;
+		}
+	}
+
+	private void refill() {
+		System.arraycopy(weights, 0, credits, 0, weights.length);
+		credited = allLanes();
+	}
+
+	private long allLanes() {
+		return lanes.length == Long.SIZE ? -1L : (1L << lanes.length) - 1;
+	}
+
+	@Override
+	public synchronized String pull() throws IOException {
+		return fromNextLane((priority, lane) -> lane.pull());
+	}
+
+	@Override
+	public String pull(long timeout, TimeUnit unit) throws IOException, InterruptedException {
+		return within(unit.toNanos(timeout), this::pull);
+	}
+
+	@Override
+	public String take() throws IOException, InterruptedException {
+		return within(Long.MAX_VALUE, this::pull);
+	}
+
+	/**
+	 * Takes the messages from one lane.
+	 */
+	@Override
+	public synchronized List<QueueMessage> pull(int maxMessages) throws IOException {
+		List<QueueMessage> pulled = fromNextLane(
+				(priority, lane) -> fromLane(priority, lane.pull(maxMessages)));
+		return pulled == null ? new ArrayList<>() : pulled;
+	}
+
+	/**
+	 * Takes the messages from one lane.
+	 */
+	@Override
+	public List<QueueMessage> receive(int maxMessages, long visibilityTimeout, TimeUnit unit) throws IOException {
+		List<QueueMessage> received = fromNextLane(
+				(priority, lane) -> fromLane(priority, lane.receive(maxMessages, visibilityTimeout, unit)));
+		return received == null ? new ArrayList<>() : received;
+	}
+
+	@Override
+	public List<QueueMessage> receive(int maxMessages, long visibilityTimeout, long waitTime, TimeUnit unit)
+			throws IOException, InterruptedException {
+		List<QueueMessage> received = within(unit.toNanos(waitTime), () -> {
+			List<QueueMessage> messages = receive(maxMessages, visibilityTimeout, unit);
+			return messages.isEmpty() ? null : messages;
+		});
+		return received == null ? new ArrayList<>() : received;
+	}
+
+	/**
+	 * Pushes through this instance wake the waiters of this JVM directly, other
+	 * pushes are noticed by watching the push positions of the lanes, see
+	 * {@link PushSignal}.
+	 */
+	private <T> T within(long timeoutNanos, Attempt<T> attempt) throws IOException, InterruptedException {
+		long start = System.nanoTime();
+
+		while (true) {
+			long observed = pushPositions();
+			T result = attempt.attempt();
+			if (result != null) {
+				return result;
+			}
+
+			long remaining = timeoutNanos == Long.MAX_VALUE ? Long.MAX_VALUE
+					: timeoutNanos - (System.nanoTime() - start);
+			if (remaining <= 0) {
+				return null;
+			}
+			pushSignal.await(() -> pushPositions() != observed, Math.min(remaining, MAX_WAIT_NANOS));
+		}
+	}
+
+	private long pushPositions() {
+		long sum = 0;
+		for (FileBasedQueueService lane : lanes) {
+			sum += lane.getPushPosition();
+		}
+		return sum;
+	}
+
+	/**
+	 * Gives the messages of a lane the ids of this queue, or null if there are
+	 * none.
+	 */
+	private static List<QueueMessage> fromLane(int priority, List<QueueMessage> messages) {
+		if (messages.isEmpty()) {
+			return null;
+		}
+		List<QueueMessage> converted = new ArrayList<>(messages.size());
+		for (QueueMessage message : messages) {
+			ReceiptHandle handle = message.getReceiptHandle();
+			converted.add(message.withId(messageId(priority, message.getId()),
+					handle == null ? null
+							: new ReceiptHandle(messageId(priority, handle.getMessageId()), handle.getReceiveCount(),
+									handle.getDeadline())));
+		}
+		return converted;
+	}
+
+	private static ReceiptHandle toLane(ReceiptHandle receiptHandle) {
+		return new ReceiptHandle(laneIdOf(receiptHandle.getMessageId()), receiptHandle.getReceiveCount(),
+				receiptHandle.getDeadline());
+	}
+
+	private static QueueMessage toLane(QueueMessage message) {
+		return message.withId(laneIdOf(message.getId()), toLane(message.getReceiptHandle()));
+	}
+
+	private FileBasedQueueService laneOf(long messageId) {
+		return lane(priorityOf(messageId));
+	}
+
+	@Override
+	public boolean ack(ReceiptHandle receiptHandle) throws IOException {
+		return laneOf(receiptHandle.getMessageId()).ack(toLane(receiptHandle));
+	}
+
+	@Override
+	public boolean deadLetter(QueueMessage message) throws IOException {
+		return laneOf(message.getId()).deadLetter(toLane(message));
+	}
+
+	@Override
+	public boolean nack(QueueMessage message) throws IOException {
+		return laneOf(message.getId()).nack(toLane(message));
+	}
+
+	@Override
+	public boolean extendVisibility(ReceiptHandle receiptHandle, long visibilityTimeout, TimeUnit unit)
+			throws IOException {
+		return laneOf(receiptHandle.getMessageId()).extendVisibility(toLane(receiptHandle), visibilityTimeout,
+				unit);
+	}
+
+	@Override
+	public DeleteResult delete(long messageId) throws IOException {
+		if (messageId < 0 || priorityOf(messageId) >= lanes.length) {
+			return DeleteResult.UNKNOWN;
+		}
+		return laneOf(messageId).delete(laneIdOf(messageId));
+	}
+
+	/**
+	 * Deletes the messages of each lane under one lock of the lane.
+	 */
+	@Override
+	public List<DeleteResult> deleteAll(List<Long> messageIds) throws IOException {
+		DeleteResult[] results = new DeleteResult[messageIds.size()];
+		for (int priority = 0; priority < lanes.length; priority++) {
+			List<Integer> indexes = new ArrayList<>();
+			List<Long> laneIds = new ArrayList<>();
+			for (int index = 0; index < results.length; index++) {
+				long messageId = messageIds.get(index);
+				if (messageId >= 0 && priorityOf(messageId) == priority) {
+					indexes.add(index);
+					laneIds.add(laneIdOf(messageId));
+				}
+			}
+			if (laneIds.isEmpty()) {
+				continue;
+			}
+			List<DeleteResult> laneResults = lanes[priority].deleteAll(laneIds);
+			for (int i = 0; i < indexes.size(); i++) {
+				results[indexes.get(i)] = laneResults.get(i);
+			}
+		}
+
+		for (int index = 0; index < results.length; index++) {
+			if (results[index] == null) {
+				results[index] = DeleteResult.UNKNOWN;
+			}
+		}
+		return Arrays.asList(results);
+	}
+
+	@Override
+	public boolean hasAllMessagesConsumed() throws IOException {
+		if (!pushStatus.fetchBool(0)) {
+			return false;
+		}
+		for (FileBasedQueueService lane : lanes) {
+			if (!lane.isIdle()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public synchronized void shutdown() throws IOException {
+		for (FileBasedQueueService lane : lanes) {
+			lane.shutdown();
+		}
+		header.destroy();
+		pushStatus.destroy();
+	}
+}
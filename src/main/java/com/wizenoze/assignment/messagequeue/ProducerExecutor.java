@@ -2,20 +2,30 @@ package com.wizenoze.assignment.messagequeue;
 
 import java.io.IOException;
 import java.nio.BufferOverflowException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /*
  * 
- *  Message count upper limit for 100 mb: ~2303665 
- *  Message count upper limit for 200 mb: ~4583178 
- *  Message count upper limit for 500 mb: ~11445873
+ *  The queue rolls over to a new segment file whenever the current one is full,
+ *  so the message count is only limited by the disk. A 500 mb segment holds
+ *  ~16509010 messages of this producer.
 
  */
 public class ProducerExecutor {
 
 	private int queueSize = FileQueue.DEFAULT_STORAGE_SIZE;
+	private int batchSize = 1;
+	private boolean virtualThreads;
+	private int asyncBuffer;
+
+	// Shared by the producers of an execution when they push asynchronously
+	private AsyncProducer asyncProducer;
 
 	public static void main(String[] args) throws Exception {
 		ProducerExecutor producer = new ProducerExecutor();
@@ -23,7 +33,13 @@ public class ProducerExecutor {
 	}
 
 	public synchronized void execute(String topic, int messageCount, int producercount) throws IOException, InterruptedException {
-		ExecutorService executor = Executors.newFixedThreadPool(producercount);
+		ExecutorService executor = virtualThreads ? VirtualThreads.newThreadPerTaskExecutor()
+				: Executors.newFixedThreadPool(producercount);
+		FileBasedQueueService asyncQueue = null;
+		if (asyncBuffer > 0) {
+			asyncQueue = new FileBasedQueueService(topic, queueSize);
+			asyncProducer = new AsyncProducer(asyncQueue, asyncBuffer, Backpressure.BLOCK);
+		}
 
 		int currentProducer = 0;
 		while (currentProducer < producercount) {
@@ -33,6 +49,11 @@ public class ProducerExecutor {
 
 		executor.shutdown();
 		executor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+		if (asyncProducer != null) {
+			asyncProducer.shutdown();
+			asyncProducer = null;
+			asyncQueue.shutdown();
+		}
 
 		CommonUtils.markPushEnd(topic);
 	}
@@ -40,18 +61,24 @@ public class ProducerExecutor {
 	private class Producer implements Runnable {
 
 		final String producerId;
+		final String topic;
 		final QueueService queue;
 		final int messageCount;
 
 		Producer(String producerId, String topic, int messageCount) throws IOException {
 			this.producerId = producerId;
-			this.queue = new FileBasedQueueService(topic, queueSize);
+			this.topic = topic;
+			this.queue = asyncProducer == null ? new FileBasedQueueService(topic, queueSize) : null;
 			this.messageCount = messageCount;
 		}
 
 		@Override
 		public void run() {
 			try {
+				if (queue == null) {
+					produceAsync(producerId, asyncProducer, messageCount);
+					return;
+				}
 				produce(producerId, queue, messageCount);
 			} catch (IOException | InterruptedException e) {
 				e.printStackTrace();
@@ -63,8 +90,24 @@ public class ProducerExecutor {
 				throws IOException, InterruptedException {
 
 			int currentMessageCount = 0;
-			while (currentMessageCount < messageCount) {
-				String msg = String.format("%s-%s", producerId, currentMessageCount);
+			while (batchSize > 1 && currentMessageCount < messageCount) {
+				int count = Math.min(batchSize, messageCount - currentMessageCount);
+				List<String> batch = new ArrayList<>(count);
+				for (int i = 0; i < count; i++) {
+					batch.add(producerId + "-" + (currentMessageCount + i));
+				}
+
+				try {
+					queue.pushAll(batch);
+					currentMessageCount += count;
+				} catch (BufferOverflowException exception) {
+					System.out.println("Message larger than a segment. Total messages pushed - " + currentMessageCount);
+					break;
+				}
+			}
+
+			while (batchSize == 1 && currentMessageCount < messageCount) {
+				String msg = producerId + "-" + currentMessageCount;
 
 				try {
 
@@ -74,7 +117,7 @@ public class ProducerExecutor {
 					}
 
 				} catch (BufferOverflowException exception) {
-					System.out.println("Memory limit exceeded. Total messages pushed - " + currentMessageCount);
+					System.out.println("Message larger than a segment. Total messages pushed - " + currentMessageCount);
 					break;
 				}
 
@@ -83,9 +126,56 @@ public class ProducerExecutor {
 			System.out.println(String.format("Total %s messages pushed by %s to %s", currentMessageCount, producerId,
 					queue.getQueueName()));
 		}
+
+		/**
+		 * Hands the messages to the shared writer, waiting while its buffer is full.
+		 */
+		private void produceAsync(String producerId, AsyncProducer producer, int messageCount) {
+			AtomicInteger failed = new AtomicInteger();
+			CompletableFuture<Long> last = CompletableFuture.completedFuture(null);
+			for (int num = 0; num < messageCount; num++) {
+				last = producer.pushAsync(producerId + "-" + num).whenComplete((id, exception) -> {
+					if (exception != null) {
+						failed.incrementAndGet();
+					}
+				});
+			}
+
+			// Written in order, so every message is settled with the last one
+			last.handle((id, exception) -> id).join();
+			System.out.println(String.format("Total %s messages pushed by %s to %s", messageCount - failed.get(),
+					producerId, topic));
+		}
 	}
 
 	public void setDatasourceSize(int dataSourceSize) {
 		this.queueSize = dataSourceSize;
 	}
+
+	/**
+	 * Number of messages each producer pushes with a single
+	 * {@link QueueService#pushAll(List)}, 1 pushes them one by one.
+	 */
+	public ProducerExecutor setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+		return this;
+	}
+
+	/**
+	 * Makes the producers hand their messages to one {@link AsyncProducer} with a
+	 * buffer of the given size instead of each pushing them itself, 0 to push
+	 * directly. Ignores the batch size.
+	 */
+	public ProducerExecutor setAsyncBuffer(int asyncBuffer) {
+		this.asyncBuffer = asyncBuffer;
+		return this;
+	}
+
+	/**
+	 * Runs every producer on its own virtual thread, needs Java 21.
+	 */
+	public ProducerExecutor setVirtualThreads(boolean virtualThreads) {
+		this.virtualThreads = virtualThreads;
+		return this;
+	}
 }
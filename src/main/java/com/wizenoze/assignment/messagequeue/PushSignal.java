@@ -0,0 +1,84 @@
+package com.wizenoze.assignment.messagequeue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Wakes up the consumers waiting for a push. Producers of the same JVM signal
+ * the waiting consumers of a queue file directly. Pushes of other processes are
+ * noticed by watching the push position in the mapped header: a waiter first
+ * spins briefly and then parks for intervals doubling up to MAX_PARK, which
+ * bounds how late it sees them. The condition a waiter watches has to cover
+ * the commits of records reserved before it looked, their signal may come
+ * before it waits.
+ *
+ * The queues of a JVM that opened the same file share its signal, which is
+ * forgotten once they are all gone.
+ */
+final class PushSignal {
+
+	private static final SharedPerFile<PushSignal> SIGNALS = new SharedPerFile<>(PushSignal::new);
+
+	private static final int SPINS = 100;
+	private static final long MIN_PARK = TimeUnit.MICROSECONDS.toNanos(100);
+	private static final long MAX_PARK = TimeUnit.MILLISECONDS.toNanos(20);
+
+	private final AtomicInteger waiters = new AtomicInteger();
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition pushed = lock.newCondition();
+
+	static PushSignal of(FileQueue meta) {
+		return SIGNALS.get(meta);
+	}
+
+	/**
+	 * Called after a push is committed. Costs a volatile read when nobody waits.
+	 */
+	void signal() {
+		if (waiters.get() == 0) {
+			return;
+		}
+		lock.lock();
+		try {
+			pushed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns once the condition holds, a producer of this JVM has pushed, or the
+	 * timeout has passed. May also return early.
+	 */
+	void await(BooleanSupplier ready, long timeoutNanos) throws InterruptedException {
+		for (int spin = 0; spin < SPINS; spin++) {
+			if (ready.getAsBoolean()) {
+				return;
+			}
+			Thread.onSpinWait();
+		}
+
+		long remaining = timeoutNanos;
+		long park = MIN_PARK;
+
+		// Registered before checking the condition again, so a push is never missed
+		waiters.incrementAndGet();
+		lock.lock();
+		try {
+			while (remaining > 0 && !ready.getAsBoolean()) {
+				long interval = Math.min(park, remaining);
+				if (pushed.awaitNanos(interval) > 0) {
+					return;
+				}
+				remaining -= interval;
+				park = Math.min(park * 2, MAX_PARK);
+			}
+		} finally {
+			lock.unlock();
+			waiters.decrementAndGet();
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package com.wizenoze.assignment.messagequeue;
+
+/**
+ * Binary layout of a queue. All values are little-endian. Positions are global
+ * offsets: segment index * segment size + position inside the segment.
+ *
+ * <pre>
+ * Meta file, {@code <queue>.queue} (META_SIZE bytes)
+ *   0  int   magic
+ *   4  int   format version
+ *   8  int   flags (FLAG_CHECKSUM)
+ *  12  int   segment size
+ *  16  long  pull position
+ *  24  long  push position
+ *  32  long  index of the oldest segment that is not deleted yet
+ *  40  long  number of messages in flight, see {@link InFlightIndex}
+ *  48  long  pull position of the last checkpoint
+ *  56  long  push position of the last checkpoint, every record before it is
+ *            committed
+ *  64  int   1 while a process has the queue open, 0 once the last one closed
+ *            it, see {@link QueueRecovery}
+ *  68  byte  locked shared by every process that has the queue open
+ *  69  byte  locked by a process while it opens or closes the queue
+ *  72  long  epoch milliseconds the first delayed message is due at, 0 if
+ *            none waits, see {@link DelayedMessages}
+ *
+ * Segment file, {@code <queue>-segment<index>.queue} (segment size bytes)
+ *   0  int   segment magic
+ *   8  long  segment index
+ *  16  int   number of its messages in flight, the segment is kept until 0
+ *  64  records, terminated by an END_OF_SEGMENT length when the next record
+ *      did not fit
+ *
+ * Consumers lock the bytes of the pull position (the head lock) while they
+ * move it or change leases; producers take no lock and move the push position
+ * with compare-and-set. The status, flags and receive count of a record form
+ * one int that is changed with compare-and-set, so a lease is acknowledged
+ * without the head lock.
+ *
+ * Record (padded to RECORD_ALIGNMENT bytes)
+ *   0  int   payload length in bytes
+ *   4  int   tag of the position of the record in its segment, see
+ *            {@link #recordTag(int)}, written with the length as one long
+ *   8  byte  status, see {@link MessageStatus}
+ *   9  byte  record flags (RECORD_FLAG_RUN_END, RECORD_FLAG_COMPRESSED: the
+ *            payload is compressed with the codec of the queue)
+ *  10  short number of times the message was received
+ *  12  int   low 32 bits of the lease deadline in epoch milliseconds, for a
+ *            delayed message not received yet the time it is due; with
+ *            RECORD_FLAG_RUN_END, the end of the run of deleted records
+ *            starting with it, within the segment
+ *  16  payload
+ *      int   CRC32 of the payload, only when the queue has FLAG_CHECKSUM
+ * </pre>
+ *
+ * Message ids are positions, so the tag is what tells a record from the bytes
+ * of a payload when an id is checked before the record is written to.
+ */
+final class QueueFormat {
+
+	// "LMQ1" read as a little-endian int
+	static final int MAGIC = 0x31514D4C;
+	static final int VERSION = 1;
+
+	static final int FLAG_CHECKSUM = 1;
+
+	static final int MAGIC_OFFSET = 0;
+	static final int VERSION_OFFSET = 4;
+	static final int FLAGS_OFFSET = 8;
+	static final int SEGMENT_SIZE_OFFSET = 12;
+	static final int PULL_POSITION_OFFSET = 16;
+	static final int PUSH_POSITION_OFFSET = 24;
+	static final int FIRST_SEGMENT_OFFSET = 32;
+	static final int IN_FLIGHT_OFFSET = 40;
+	static final int CHECKPOINT_PULL_OFFSET = 48;
+	static final int CHECKPOINT_PUSH_OFFSET = 56;
+	static final int OPEN_OFFSET = 64;
+	static final int OPEN_LOCK_OFFSET = 68;
+	static final int RECOVERY_LOCK_OFFSET = 69;
+	static final int NEXT_DUE_OFFSET = 72;
+	static final int META_SIZE = 4096;
+
+	// "LMQS" read as a little-endian int
+	static final int SEGMENT_MAGIC = 0x53514D4C;
+	static final int SEGMENT_INDEX_OFFSET = 8;
+	static final int SEGMENT_IN_FLIGHT_OFFSET = 16;
+	static final int SEGMENT_HEADER_SIZE = 64;
+
+	static final int RECORD_LENGTH_OFFSET = 0;
+	static final int RECORD_TAG_OFFSET = 4;
+	static final int RECORD_STATUS_OFFSET = 8;
+	static final int RECORD_FLAGS_OFFSET = 9;
+	static final int RECORD_RECEIVE_COUNT_OFFSET = 10;
+	static final int RECORD_DEADLINE_OFFSET = 12;
+	static final int RECORD_HEADER_SIZE = 16;
+	static final int CHECKSUM_SIZE = 4;
+	static final int RECORD_ALIGNMENT = 4;
+	static final int RECORD_FLAG_RUN_END = 1;
+	static final int RECORD_FLAG_COMPRESSED = 2;
+	static final int END_OF_SEGMENT = -1;
+
+	private QueueFormat() {
+	}
+
+	/**
+	 * Tag of a record starting at the given position of its segment. Never 0, as
+	 * records start after the segment header, and scattered so that small numbers
+	 * in a payload are not taken for one.
+	 */
+	static int recordTag(int at) {
+		return at * 0x9E3779B1;
+	}
+
+	static int recordSize(int payloadLength, boolean checksum) {
+		int size = RECORD_HEADER_SIZE + payloadLength + (checksum ? CHECKSUM_SIZE : 0);
+		return (size + RECORD_ALIGNMENT - 1) & -RECORD_ALIGNMENT;
+	}
+
+	/**
+	 * The magic is written last so that a half initialized header is treated as a
+	 * new file.
+	 */
+	static void writeHeader(FileQueue meta, boolean withChecksum, int segmentSize) {
+		meta.writeInt(VERSION, VERSION_OFFSET);
+		meta.writeInt(withChecksum ? FLAG_CHECKSUM : 0, FLAGS_OFFSET);
+		meta.writeInt(segmentSize, SEGMENT_SIZE_OFFSET);
+		meta.writeLong(SEGMENT_HEADER_SIZE, PULL_POSITION_OFFSET);
+		meta.writeLong(SEGMENT_HEADER_SIZE, PUSH_POSITION_OFFSET);
+		meta.writeLong(0, FIRST_SEGMENT_OFFSET);
+		meta.writeInt(MAGIC, MAGIC_OFFSET);
+	}
+
+	static void validateHeader(FileQueue meta) {
+		if (meta.fetchInt(MAGIC_OFFSET) != MAGIC) {
+			throw new IllegalStateException(meta.getQueueName() + " is not a queue file");
+		}
+		int version = meta.fetchInt(VERSION_OFFSET);
+		if (version != VERSION) {
+			throw new IllegalStateException(
+					String.format("Unsupported format version %s of %s", version, meta.getQueueName()));
+		}
+	}
+
+	static boolean hasChecksums(FileQueue meta) {
+		return (meta.fetchInt(FLAGS_OFFSET) & FLAG_CHECKSUM) != 0;
+	}
+}
@@ -0,0 +1,89 @@
+package com.wizenoze.assignment.messagequeue;
+
+import java.io.IOException;
+import java.nio.channels.FileLock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Exclusive lock of a region of a queue file. A {@link FileLock} only excludes
+ * other processes and throws when a second channel of the same JVM asks for an
+ * overlapping region, so the threads of a process first take a lock shared by
+ * every instance that opened the same file. The file has to be opened with
+ * {@link FileQueue#shared(String, int)}: the lock is taken on the channel the
+ * JVM shares for it, which is kept open until the lock is released, so no
+ * other instance closing the file releases it.
+ */
+final class QueueLock {
+
+	private final SharedChannel shared;
+	private final FileLock fileLock;
+	private boolean released;
+
+	private QueueLock(SharedChannel shared, FileLock fileLock) {
+		this.shared = shared;
+		this.fileLock = fileLock;
+	}
+
+	/**
+	 * The threads of a process share one lock per file, so a file should only
+	 * have one region locked this way.
+	 */
+	static QueueLock lock(FileQueue file, long position, long size) throws IOException {
+		SharedChannel shared = file.getSharedChannel();
+		ReentrantLock threadLock = shared.getThreadLock();
+		threadLock.lock();
+		shared.retain();
+		try {
+			return new QueueLock(shared, shared.getChannel().lock(position, size, false));
+		} catch (IOException | RuntimeException exception) {
+			unlock(shared);
+			throw exception;
+		}
+	}
+
+	/**
+	 * Returns null instead of waiting when the region is locked by another thread
+	 * or process.
+	 */
+	static QueueLock tryLock(FileQueue file, long position, long size) throws IOException {
+		SharedChannel shared = file.getSharedChannel();
+		if (!shared.getThreadLock().tryLock()) {
+			return null;
+		}
+		shared.retain();
+		try {
+			FileLock fileLock = shared.getChannel().tryLock(position, size, false);
+			if (fileLock == null) {
+				unlock(shared);
+				return null;
+			}
+			return new QueueLock(shared, fileLock);
+		} catch (IOException | RuntimeException exception) {
+			unlock(shared);
+			throw exception;
+		}
+	}
+
+	private static void unlock(SharedChannel shared) throws IOException {
+		try {
+			shared.close();
+		} finally {
+			shared.getThreadLock().unlock();
+		}
+	}
+
+	/**
+	 * Can be called more than once, only the first call releases the lock.
+	 */
+	void release() throws IOException {
+		if (released) {
+			return;
+		}
+		released = true;
+		try {
+			fileLock.release();
+		} finally {
+			unlock(shared);
+		}
+	}
+}
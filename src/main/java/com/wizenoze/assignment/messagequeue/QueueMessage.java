@@ -0,0 +1,95 @@
+package com.wizenoze.assignment.messagequeue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A pulled message together with its id, which can be passed to
+ * {@link QueueService#delete(long)}.
+ */
+public class QueueMessage {
+
+	private final long id;
+	private final ReceiptHandle receiptHandle;
+	private ByteBuffer payload;
+	private String body;
+
+	// Set while the payload is still compressed
+	private PayloadCodec codec;
+	private int maxLength;
+
+	public QueueMessage(long id, String body) {
+		this(id, body, null);
+	}
+
+	public QueueMessage(long id, String body, ReceiptHandle receiptHandle) {
+		this(id, ByteBuffer.wrap(body.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer(), receiptHandle);
+		this.body = body;
+	}
+
+	public QueueMessage(long id, ByteBuffer payload, ReceiptHandle receiptHandle) {
+		this.id = id;
+		this.payload = payload;
+		this.receiptHandle = receiptHandle;
+	}
+
+	/**
+	 * A message whose payload is decompressed with the codec when it is first
+	 * read, see {@link PayloadCodec#decompress(ByteBuffer, int)}.
+	 */
+	QueueMessage(long id, ByteBuffer payload, PayloadCodec codec, int maxLength, ReceiptHandle receiptHandle) {
+		this(id, payload, receiptHandle);
+		this.codec = codec;
+		this.maxLength = maxLength;
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	/**
+	 * The payload decoded as UTF-8.
+	 */
+	public String getBody() {
+		if (body == null) {
+			body = StandardCharsets.UTF_8.decode(getPayload()).toString();
+		}
+		return body;
+	}
+
+	/**
+	 * Read-only view of the payload. A received message is not copied out of the
+	 * queue file: the view reads the mapped segment directly. Copy it into a
+	 * buffer of your own with {@link ByteBuffer#put(ByteBuffer)} to keep it. A
+	 * compressed payload is decompressed into a buffer of its own the first time
+	 * it is read.
+	 */
+	public ByteBuffer getPayload() {
+		if (codec != null) {
+			payload = codec.decompress(payload, maxLength);
+			codec = null;
+		}
+		return payload.duplicate();
+	}
+
+	/**
+	 * Handle of the delivery, used to acknowledge the message or extend its
+	 * visibility timeout.
+	 */
+	public ReceiptHandle getReceiptHandle() {
+		return receiptHandle;
+	}
+
+	/**
+	 * The same message under another id, its payload still compressed if it has
+	 * not been read.
+	 */
+	QueueMessage withId(long id, ReceiptHandle receiptHandle) {
+		return new QueueMessage(id, payload, codec, maxLength, receiptHandle);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s:%s", id, getBody());
+	}
+}
@@ -0,0 +1,256 @@
+package com.wizenoze.assignment.messagequeue;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Metrics of one {@link FileBasedQueueService}. The counters are striped, so
+ * updating them on the push and pull paths takes no lock and does not allocate.
+ * The backlog and the in-flight count are read from the mapped header when
+ * asked for, so they cover every producer and consumer of the queue.
+ *
+ * Registered with JMX as
+ * {@code com.wizenoze.assignment.messagequeue:type=Queue,name=<queue>,id=<n>}
+ * when {@link QueueOptions#setJmx(boolean)} is set.
+ */
+public class QueueMetrics implements QueueMetricsMBean {
+
+	private static final ScheduledExecutorService REPORTER = Executors.newSingleThreadScheduledExecutor(task -> {
+		Thread thread = new Thread(task, "queue-metrics");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private static final AtomicLong IDS = new AtomicLong();
+
+	private static final double NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private final SegmentedQueue queue;
+	private final ObjectName objectName;
+
+	private final RateMeter pushed = new RateMeter();
+	private final RateMeter pulled = new RateMeter();
+	private final LongAdder locks = new LongAdder();
+	private final LongAdder lockWait = new LongAdder();
+	private final LongAdder lockContention = new LongAdder();
+	private final LatencyHistogram handlerLatency = new LatencyHistogram();
+	private final LongAdder handlerTimeouts = new LongAdder();
+	private final LongAdder handlerFailures = new LongAdder();
+	private final LongAdder deadLettered = new LongAdder();
+
+	private MetricsReporter reporter;
+	private ScheduledFuture<?> reporting;
+	private boolean registered;
+	private volatile boolean closed;
+
+	QueueMetrics(SegmentedQueue queue) {
+		this.queue = queue;
+		try {
+			this.objectName = new ObjectName("com.wizenoze.assignment.messagequeue:type=Queue,name="
+					+ ObjectName.quote(queue.getQueueName()) + ",id=" + IDS.incrementAndGet());
+		} catch (JMException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Starts the JMX registration and the reporting asked for by the options.
+	 */
+	synchronized void start(QueueOptions options) {
+		if (options.isJmx()) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+				registered = true;
+			} catch (JMException e) {
+				System.out.println("Problem with registering metrics - " + objectName + " - " + e);
+			}
+		}
+
+		reporter = options.getMetricsReporter();
+		if (reporter != null) {
+			long interval = options.getMetricsInterval();
+			reporting = REPORTER.scheduleWithFixedDelay(this::report, interval, interval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Reports once more, so the last interval is not lost, and unregisters from
+	 * JMX.
+	 */
+	synchronized void close() {
+		if (closed) {
+			return;
+		}
+		if (reporting != null) {
+			reporting.cancel(false);
+			report();
+		}
+		closed = true;
+
+		if (registered) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			} catch (JMException e) {
+				System.out.println("Problem with unregistering metrics - " + objectName + " - " + e);
+			}
+		}
+	}
+
+	private synchronized void report() {
+		if (closed) {
+			return;
+		}
+		try {
+			reporter.report(this);
+		} catch (RuntimeException e) {
+			System.out.println("Problem while reporting metrics of " + getQueueName() + " - " + e);
+		}
+	}
+
+	public ObjectName getObjectName() {
+		return objectName;
+	}
+
+	void pushed(int messages) {
+		pushed.mark(messages);
+	}
+
+	void pulled() {
+		pulled.mark(1);
+	}
+
+	void locked(long waitNanos) {
+		locks.increment();
+		lockWait.add(waitNanos);
+	}
+
+	void lockContended() {
+		lockContention.increment();
+	}
+
+	void handled(long nanos) {
+		handlerLatency.record(nanos);
+	}
+
+	void handlerTimedOut() {
+		handlerTimeouts.increment();
+	}
+
+	void handlerFailed() {
+		handlerFailures.increment();
+	}
+
+	void deadLettered(int messages) {
+		deadLettered.add(messages);
+	}
+
+	@Override
+	public String getQueueName() {
+		return queue.getQueueName();
+	}
+
+	/**
+	 * 0 once the queue service is shut down, its files are not mapped any more.
+	 */
+	@Override
+	public long getBacklogBytes() {
+		return closed ? 0 : queue.getPushPosition() - queue.getPullPosition();
+	}
+
+	/**
+	 * 0 once the queue service is shut down.
+	 */
+	@Override
+	public long getInFlightCount() {
+		return closed ? 0 : queue.getInFlightCount();
+	}
+
+	@Override
+	public long getPushCount() {
+		return pushed.getCount();
+	}
+
+	@Override
+	public double getPushRate() {
+		return pushed.getOneMinuteRate();
+	}
+
+	@Override
+	public long getPullCount() {
+		return pulled.getCount();
+	}
+
+	@Override
+	public double getPullRate() {
+		return pulled.getOneMinuteRate();
+	}
+
+	@Override
+	public long getLockCount() {
+		return locks.sum();
+	}
+
+	@Override
+	public double getLockWaitMillis() {
+		return lockWait.sum() / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public long getLockContentionCount() {
+		return lockContention.sum();
+	}
+
+	@Override
+	public long getHandlerCount() {
+		return handlerLatency.getCount();
+	}
+
+	@Override
+	public double getHandlerLatencyP50Millis() {
+		return handlerLatency.getPercentile(0.5) / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public double getHandlerLatencyP99Millis() {
+		return handlerLatency.getPercentile(0.99) / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public double getHandlerLatencyMaxMillis() {
+		return handlerLatency.getMax() / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public long getHandlerTimeoutCount() {
+		return handlerTimeouts.sum();
+	}
+
+	@Override
+	public long getHandlerFailureCount() {
+		return handlerFailures.sum();
+	}
+
+	@Override
+	public long getDeadLetterCount() {
+		return deadLettered.sum();
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"%s backlog=%dB inFlight=%d push=%d (%.1f/s) pull=%d (%.1f/s) locks=%d wait=%.3fms contended=%d"
+						+ " handler=%d p50=%.3fms p99=%.3fms max=%.3fms timeouts=%d failures=%d deadLettered=%d",
+				getQueueName(), getBacklogBytes(), getInFlightCount(), getPushCount(), getPushRate(), getPullCount(),
+				getPullRate(), getLockCount(), getLockWaitMillis(), getLockContentionCount(), getHandlerCount(),
+				getHandlerLatencyP50Millis(), getHandlerLatencyP99Millis(), getHandlerLatencyMaxMillis(),
+				getHandlerTimeoutCount(), getHandlerFailureCount(), getDeadLetterCount());
+	}
+}
@@ -0,0 +1,60 @@
+package com.wizenoze.assignment.messagequeue;
+
+/**
+ * Attributes of a {@link QueueMetrics} registered with JMX. Rates are events
+ * per second over the last minute, durations are in milliseconds.
+ */
+public interface QueueMetricsMBean {
+
+	String getQueueName();
+
+	/**
+	 * Bytes between the pull and the push position, the records not delivered yet
+	 * with their headers.
+	 */
+	long getBacklogBytes();
+
+	long getInFlightCount();
+
+	long getPushCount();
+
+	double getPushRate();
+
+	/**
+	 * Messages delivered by this queue service, including deliveries of messages
+	 * whose lease expired.
+	 */
+	long getPullCount();
+
+	double getPullRate();
+
+	/**
+	 * Number of times the head lock was taken.
+	 */
+	long getLockCount();
+
+	/**
+	 * Total time spent waiting for the head lock.
+	 */
+	double getLockWaitMillis();
+
+	/**
+	 * Times the head lock was held by another consumer, of this or another
+	 * process, and had to be waited for.
+	 */
+	long getLockContentionCount();
+
+	long getHandlerCount();
+
+	double getHandlerLatencyP50Millis();
+
+	double getHandlerLatencyP99Millis();
+
+	double getHandlerLatencyMaxMillis();
+
+	long getHandlerTimeoutCount();
+
+	long getHandlerFailureCount();
+
+	long getDeadLetterCount();
+}
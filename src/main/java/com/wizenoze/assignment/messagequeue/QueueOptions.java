@@ -0,0 +1,261 @@
+package com.wizenoze.assignment.messagequeue;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Options of a {@link FileBasedQueueService}. Options stored in the queue file
+ * header only take effect when the queue file is created; opening an existing
+ * queue always uses the values it was created with.
+ */
+public class QueueOptions {
+
+	/**
+	 * Lease deadlines are stored as the low 32 bits of epoch milliseconds, so they
+	 * have to stay well within 2^31 ms of the present.
+	 */
+	public static final long MAX_VISIBILITY_TIMEOUT = TimeUnit.HOURS.toMillis(12);
+
+	private boolean checksums;
+	private long visibilityTimeout = TimeUnit.SECONDS.toMillis(30);
+	private int maxInFlight = 65536;
+	private int maxReceiveCount = 3;
+	private Durability durability = Durability.NONE;
+	private long flushInterval = TimeUnit.SECONDS.toMillis(1);
+	private long checkpointInterval = TimeUnit.SECONDS.toMillis(1);
+	private int prefetch = 1;
+	private boolean jmx;
+	private MetricsReporter metricsReporter;
+	private long metricsInterval = TimeUnit.MINUTES.toMillis(1);
+	private PayloadCodec compression;
+	private int compressionThreshold;
+	private int deduplicationCapacity = 65536;
+	private long deduplicationWindow = TimeUnit.MINUTES.toMillis(5);
+
+	public boolean isChecksums() {
+		return checksums;
+	}
+
+	/**
+	 * Stores a CRC32 of every payload and verifies it on pull.
+	 */
+	public QueueOptions setChecksums(boolean checksums) {
+		this.checksums = checksums;
+		return this;
+	}
+
+	public long getVisibilityTimeout() {
+		return visibilityTimeout;
+	}
+
+	/**
+	 * How long a message received by {@link QueueService#pull()} stays invisible
+	 * to other consumers. It only matters when the consumer dies while processing
+	 * the message, which is then delivered again once the timeout has passed.
+	 */
+	public QueueOptions setVisibilityTimeout(long visibilityTimeout, TimeUnit unit) {
+		this.visibilityTimeout = checkVisibilityTimeout(visibilityTimeout, unit);
+		return this;
+	}
+
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	/**
+	 * Number of messages that can be in flight at the same time, received but not
+	 * acknowledged yet. Only grows the in-flight index of an existing queue.
+	 */
+	public QueueOptions setMaxInFlight(int maxInFlight) {
+		this.maxInFlight = maxInFlight;
+		return this;
+	}
+
+	public int getMaxReceiveCount() {
+		return maxReceiveCount;
+	}
+
+	/**
+	 * Number of times a message is delivered before it is moved to the dead letter
+	 * queue, when its processing keeps failing or its lease keeps expiring.
+	 */
+	public QueueOptions setMaxReceiveCount(int maxReceiveCount) {
+		if (maxReceiveCount < 1) {
+			throw new IllegalArgumentException("Invalid max receive count - " + maxReceiveCount);
+		}
+		this.maxReceiveCount = maxReceiveCount;
+		return this;
+	}
+
+	public Durability getDurability() {
+		return durability;
+	}
+
+	/**
+	 * When a push reaches the disk. The default, NONE, leaves it to the page
+	 * cache and gives the highest throughput; GROUP_COMMIT only returns from a
+	 * push once its message is on the disk.
+	 */
+	public QueueOptions setDurability(Durability durability) {
+		this.durability = durability;
+		return this;
+	}
+
+	public long getFlushInterval() {
+		return flushInterval;
+	}
+
+	/**
+	 * How often the written segments are forced with {@link Durability#PERIODIC}.
+	 */
+	public QueueOptions setFlushInterval(long flushInterval, TimeUnit unit) {
+		if (flushInterval <= 0) {
+			throw new IllegalArgumentException("Invalid flush interval - " + flushInterval);
+		}
+		this.flushInterval = unit.toMillis(flushInterval);
+		return this;
+	}
+
+	public long getCheckpointInterval() {
+		return checkpointInterval;
+	}
+
+	/**
+	 * How often the pull position and the committed records are checkpointed.
+	 * Opening a queue after its processes died validates the records pushed since
+	 * the last checkpoint, see {@link SegmentedQueue#recover(long)}.
+	 */
+	public QueueOptions setCheckpointInterval(long checkpointInterval, TimeUnit unit) {
+		if (checkpointInterval <= 0) {
+			throw new IllegalArgumentException("Invalid checkpoint interval - " + checkpointInterval);
+		}
+		this.checkpointInterval = unit.toMillis(checkpointInterval);
+		return this;
+	}
+
+	public int getPrefetch() {
+		return prefetch;
+	}
+
+	/**
+	 * Number of messages {@link QueueService#pull()} leases at once. They are kept
+	 * in memory and handed out by the following pulls, and the processed ones are
+	 * acknowledged together when the next batch is leased, so draining a backlog
+	 * takes one lock of the queue per batch instead of two per message. Prefetched
+	 * messages are invisible to other consumers until they are processed or
+	 * handed back on shutdown.
+	 */
+	public QueueOptions setPrefetch(int prefetch) {
+		if (prefetch < 1) {
+			throw new IllegalArgumentException("Invalid prefetch - " + prefetch);
+		}
+		this.prefetch = prefetch;
+		return this;
+	}
+
+	public boolean isJmx() {
+		return jmx;
+	}
+
+	/**
+	 * Registers the metrics of every queue service opened with these options as
+	 * an MBean, see {@link QueueMetrics}.
+	 */
+	public QueueOptions setJmx(boolean jmx) {
+		this.jmx = jmx;
+		return this;
+	}
+
+	public MetricsReporter getMetricsReporter() {
+		return metricsReporter;
+	}
+
+	public long getMetricsInterval() {
+		return metricsInterval;
+	}
+
+	/**
+	 * Hands the metrics of every queue service opened with these options to the
+	 * reporter at the given interval, and once more on shutdown.
+	 */
+	public QueueOptions setMetricsReporter(MetricsReporter metricsReporter, long interval, TimeUnit unit) {
+		if (interval <= 0) {
+			throw new IllegalArgumentException("Invalid metrics interval - " + interval);
+		}
+		this.metricsReporter = metricsReporter;
+		this.metricsInterval = unit.toMillis(interval);
+		return this;
+	}
+
+	public PayloadCodec getCompression() {
+		return compression;
+	}
+
+	public int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+
+	/**
+	 * Compresses the payloads of at least the given number of bytes pushed by
+	 * queue services opened with these options, when that makes them smaller.
+	 * Compressed records are flagged, so they are mixed with uncompressed ones and
+	 * the option can be changed at any time. A payload is only decompressed when
+	 * the consumer reads it. Records are decoded with the codec set here, or with
+	 * {@link PayloadCodec#DEFLATE} when none is, see {@link PayloadCodec}.
+	 *
+	 * @param compression null to store payloads as they are
+	 */
+	public QueueOptions setCompression(PayloadCodec compression, int threshold) {
+		if (threshold < 0) {
+			throw new IllegalArgumentException("Invalid compression threshold - " + threshold);
+		}
+		this.compression = compression;
+		this.compressionThreshold = threshold;
+		return this;
+	}
+
+	public int getDeduplicationCapacity() {
+		return deduplicationCapacity;
+	}
+
+	public long getDeduplicationWindow() {
+		return deduplicationWindow;
+	}
+
+	/**
+	 * How many deduplication ids are remembered and for how long, see
+	 * {@link QueueService#push(java.nio.ByteBuffer, String)}. They are stored with the
+	 * table of recent ids, so they only take effect when a queue is first pushed
+	 * to with a deduplication id.
+	 */
+	public QueueOptions setDeduplication(int capacity, long window, TimeUnit unit) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Invalid deduplication capacity - " + capacity);
+		}
+		if (window <= 0) {
+			throw new IllegalArgumentException("Invalid deduplication window - " + window);
+		}
+		this.deduplicationCapacity = capacity;
+		this.deduplicationWindow = unit.toMillis(window);
+		return this;
+	}
+
+	static long checkVisibilityTimeout(long visibilityTimeout, TimeUnit unit) {
+		long millis = unit.toMillis(visibilityTimeout);
+		if (millis < 0 || millis > MAX_VISIBILITY_TIMEOUT) {
+			throw new IllegalArgumentException("Invalid visibility timeout - " + millis + " ms");
+		}
+		return millis;
+	}
+
+	/**
+	 * Delays of delayed messages are bounded like visibility timeouts, their due
+	 * time is stored the same way.
+	 */
+	static long checkDelay(long delay, TimeUnit unit) {
+		long millis = unit.toMillis(delay);
+		if (millis < 0 || millis > MAX_VISIBILITY_TIMEOUT) {
+			throw new IllegalArgumentException("Invalid delay - " + millis + " ms");
+		}
+		return millis;
+	}
+}
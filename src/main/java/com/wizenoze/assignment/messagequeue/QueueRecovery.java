@@ -0,0 +1,94 @@
+package com.wizenoze.assignment.messagequeue;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Tells whether the previous processes using a queue closed it or died, and
+ * recovers the queue in the second case.
+ *
+ * Every process holds a shared lock of one byte of the meta file while it has
+ * the queue open, and the meta file is marked open meanwhile. A process opening
+ * the queue that can lock the byte exclusively is the only one using it; if the
+ * queue is still marked open then, the last process died without closing it
+ * and the queue is recovered, see {@link SegmentedQueue#recover(long)}. Opening
+ * and closing happen under a second lock, so no process joins while another
+ * one decides.
+ *
+ * A file lock belongs to the whole JVM, so the instances of a process share
+ * one registration per queue. Its locks are taken on the channel the JVM
+ * shares for the meta file, which the registration keeps open, see
+ * {@link SharedChannel}: closing any other channel on the file would release
+ * the shared lock, and another process opening the queue would recover it
+ * while it is in use.
+ */
+final class QueueRecovery {
+
+	private static final Map<SharedChannel, Registration> OPEN = new IdentityHashMap<>();
+
+	private static final class Registration {
+
+		private FileLock openLock;
+		private int references;
+	}
+
+	private QueueRecovery() {
+	}
+
+	static synchronized void open(SegmentedQueue queue, FileQueue meta) throws IOException {
+		SharedChannel shared = meta.getSharedChannel();
+		Registration registration = OPEN.get(shared);
+		if (registration == null) {
+			registration = new Registration();
+			FileChannel channel = shared.getChannel();
+			FileLock recoveryLock = channel.lock(QueueFormat.RECOVERY_LOCK_OFFSET, 1, false);
+			try {
+				FileLock alone = channel.tryLock(QueueFormat.OPEN_LOCK_OFFSET, 1, false);
+				if (alone != null) {
+					if (queue.isMarkedOpen()) {
+						queue.recover(System.currentTimeMillis());
+					}
+					queue.markOpen(true);
+					alone.release();
+				}
+				registration.openLock = channel.lock(QueueFormat.OPEN_LOCK_OFFSET, 1, true);
+			} finally {
+				recoveryLock.release();
+			}
+			shared.retain();
+			OPEN.put(shared, registration);
+		}
+		registration.references++;
+	}
+
+	/**
+	 * The last process closing the queue marks it closed.
+	 */
+	static synchronized void close(SegmentedQueue queue, FileQueue meta) throws IOException {
+		SharedChannel shared = meta.getSharedChannel();
+		Registration registration = OPEN.get(shared);
+		if (registration == null || --registration.references > 0) {
+			return;
+		}
+		OPEN.remove(shared);
+
+		try {
+			FileLock recoveryLock = shared.getChannel().lock(QueueFormat.RECOVERY_LOCK_OFFSET, 1, false);
+			try {
+				registration.openLock.release();
+				FileLock alone = shared.getChannel().tryLock(QueueFormat.OPEN_LOCK_OFFSET, 1, false);
+				if (alone != null) {
+					queue.markOpen(false);
+					alone.release();
+				}
+			} finally {
+				recoveryLock.release();
+			}
+		} finally {
+			shared.close();
+		}
+	}
+}
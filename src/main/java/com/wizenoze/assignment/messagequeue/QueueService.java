@@ -1,16 +1,150 @@
 package com.wizenoze.assignment.messagequeue;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.OverlappingFileLockException;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 public interface QueueService {
 
-	int push(String message) throws IOException, OverlappingFileLockException;
+	/**
+	 * Pushes the message encoded as UTF-8, see {@link #push(ByteBuffer)}.
+	 */
+	long push(String message) throws IOException, OverlappingFileLockException;
+
+	/**
+	 * Pushes the remaining bytes of the payload, copied straight into the queue
+	 * file. The position of the payload is not changed. Received messages give
+	 * the payload back with {@link QueueMessage#getPayload()}.
+	 */
+	long push(ByteBuffer payload) throws IOException;
+
+	/**
+	 * Pushes the messages in order and returns their ids.
+	 */
+	List<Long> pushAll(List<String> messages) throws IOException;
+
+	/**
+	 * Pushes the remaining bytes of the payloads in order and returns their ids,
+	 * see {@link #push(ByteBuffer)}.
+	 *
+	 * @throws PartialPushException if only the first messages were pushed
+	 */
+	long[] pushPayloads(List<ByteBuffer> payloads) throws IOException;
+
+	/**
+	 * Pushes a message that is delivered once the delay has passed, see
+	 * {@link #push(ByteBuffer, Instant)}.
+	 */
+	long push(String message, long delay, TimeUnit unit) throws IOException;
+
+	/**
+	 * Pushes the message encoded as UTF-8, delivered at the given time, see
+	 * {@link #push(ByteBuffer, Instant)}.
+	 */
+	long push(String message, Instant deliverAt) throws IOException;
+
+	/**
+	 * Pushes a message that is delivered at the given time, at most
+	 * {@link QueueOptions#MAX_VISIBILITY_TIMEOUT} from now. It waits in a file of
+	 * its own, so it survives restarts, and consumers do not see it before it is
+	 * due. It can be deleted until then.
+	 *
+	 * @throws IllegalArgumentException if the time has passed or is too far away
+	 */
+	long push(ByteBuffer payload, Instant deliverAt) throws IOException;
+
+	/**
+	 * Pushes the message encoded as UTF-8 unless it is a duplicate, see
+	 * {@link #push(ByteBuffer, String)}.
+	 */
+	long push(String message, String deduplicationId) throws IOException;
+
+	/**
+	 * Pushes the payload unless a message with the same deduplication id was
+	 * pushed within the deduplication window of the queue, in which case nothing
+	 * is pushed and the id of that message is returned. A producer that does not
+	 * know whether its push went through, for instance because it crashed, pushes
+	 * again with the same id. See {@link QueueOptions#setDeduplication(int, long, TimeUnit)}.
+	 */
+	long push(ByteBuffer payload, String deduplicationId) throws IOException;
 
 	String pull() throws IOException;
 
-	void delete(int messageId);
+	/**
+	 * Like {@link #pull()}, but waits up to the timeout for a message to arrive
+	 * when the queue is empty. Returns null if none did.
+	 */
+	String pull(long timeout, TimeUnit unit) throws IOException, InterruptedException;
+
+	/**
+	 * Like {@link #pull()}, but waits for a message to arrive when the queue is
+	 * empty.
+	 */
+	String take() throws IOException, InterruptedException;
+
+	/**
+	 * Pulls and processes up to maxMessages messages under a single lock of the
+	 * queue. Returns an empty list when there is nothing to pull.
+	 */
+	List<QueueMessage> pull(int maxMessages) throws IOException;
+
+	/**
+	 * Receives up to maxMessages messages without processing them. They stay
+	 * invisible to other consumers for the visibility timeout and are delivered
+	 * again, at the head of the queue, unless acknowledged before it ends.
+	 */
+	List<QueueMessage> receive(int maxMessages, long visibilityTimeout, TimeUnit unit) throws IOException;
+
+	/**
+	 * Like {@link #receive(int, long, TimeUnit)}, but waits up to waitTime for a
+	 * message to arrive when the queue is empty.
+	 */
+	List<QueueMessage> receive(int maxMessages, long visibilityTimeout, long waitTime, TimeUnit unit)
+			throws IOException, InterruptedException;
+
+	/**
+	 * Marks a received message as processed. Returns false if the handle is no
+	 * longer valid because the message was delivered again or already
+	 * acknowledged.
+	 */
+	boolean ack(ReceiptHandle receiptHandle) throws IOException;
+
+	/**
+	 * Moves a received message to the dead letter queue and acknowledges it.
+	 * Returns false if its handle is no longer valid.
+	 */
+	boolean deadLetter(QueueMessage message) throws IOException;
+
+	/**
+	 * Hands back a received message whose processing failed. It is visible again
+	 * right away, or moved to the dead letter queue once it has been received
+	 * {@link QueueOptions#getMaxReceiveCount()} times. Returns false if its
+	 * handle is no longer valid.
+	 */
+	boolean nack(QueueMessage message) throws IOException;
+
+	/**
+	 * Keeps a received message invisible for the given time from now on. Returns
+	 * false if the handle is no longer valid.
+	 */
+	boolean extendVisibility(ReceiptHandle receiptHandle, long visibilityTimeout, TimeUnit unit)
+			throws IOException;
+
+	/**
+	 * Deletes a message that has not been delivered yet, or acknowledges it when
+	 * it is in flight.
+	 */
+	DeleteResult delete(long messageId) throws IOException;
+
+	/**
+	 * Deletes the messages under a single lock of the queue and returns the
+	 * outcome for each of them, in the order of the ids.
+	 */
+	List<DeleteResult> deleteAll(List<Long> messageIds) throws IOException;
 
 	String getQueueName();
 
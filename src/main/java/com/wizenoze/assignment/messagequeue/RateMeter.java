@@ -0,0 +1,58 @@
+package com.wizenoze.assignment.messagequeue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts events and keeps an exponentially weighted moving average of their
+ * rate over the last minute, updated every 5 seconds when the meter is used.
+ */
+final class RateMeter {
+
+	private static final long TICK_INTERVAL = TimeUnit.SECONDS.toNanos(5);
+	private static final double ALPHA = 1 - Math.exp(-5 / 60.0);
+
+	private final LongAdder count = new LongAdder();
+	private final LongAdder uncounted = new LongAdder();
+	private final AtomicLong lastTick = new AtomicLong(System.nanoTime());
+
+	private volatile double rate;
+	private volatile boolean initialized;
+
+	void mark(long events) {
+		tickIfNeeded();
+		count.add(events);
+		uncounted.add(events);
+	}
+
+	long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * Events per second.
+	 */
+	double getOneMinuteRate() {
+		tickIfNeeded();
+		return rate * TimeUnit.SECONDS.toNanos(1);
+	}
+
+	private void tickIfNeeded() {
+		long last = lastTick.get();
+		long age = System.nanoTime() - last;
+		if (age < TICK_INTERVAL || !lastTick.compareAndSet(last, last + age - age % TICK_INTERVAL)) {
+			return;
+		}
+
+		for (long tick = age / TICK_INTERVAL; tick > 0; tick--) {
+			double instantRate = (double) uncounted.sumThenReset() / TICK_INTERVAL;
+			if (initialized) {
+				rate += ALPHA * (instantRate - rate);
+			} else {
+				rate = instantRate;
+				initialized = true;
+			}
+		}
+	}
+}
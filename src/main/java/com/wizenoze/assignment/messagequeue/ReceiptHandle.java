@@ -0,0 +1,42 @@
+package com.wizenoze.assignment.messagequeue;
+
+/**
+ * Identifies one delivery of a message. A handle stops working once the message
+ * has been delivered again after its visibility timeout passed.
+ */
+public class ReceiptHandle {
+
+	private final long messageId;
+	private final int receiveCount;
+	private final long deadline;
+
+	public ReceiptHandle(long messageId, int receiveCount, long deadline) {
+		this.messageId = messageId;
+		this.receiveCount = receiveCount;
+		this.deadline = deadline;
+	}
+
+	public long getMessageId() {
+		return messageId;
+	}
+
+	/**
+	 * Number of times the message has been received, including this delivery.
+	 */
+	public int getReceiveCount() {
+		return receiveCount;
+	}
+
+	/**
+	 * Epoch milliseconds at which the message becomes visible again unless it is
+	 * acknowledged or its visibility is extended.
+	 */
+	public long getDeadline() {
+		return deadline;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s:%s", messageId, receiveCount);
+	}
+}
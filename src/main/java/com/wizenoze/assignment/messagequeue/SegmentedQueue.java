@@ -0,0 +1,1411 @@
+package com.wizenoze.assignment.messagequeue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+
+/**
+ * A queue stored as a meta file holding the pull and push positions and a chain
+ * of fixed size segment files holding the records, see {@link QueueFormat}.
+ * Pushes roll over to the next segment when a record does not fit and segments
+ * are deleted once the pull position has passed them, so the disk footprint
+ * follows the backlog instead of the number of messages ever pushed.
+ *
+ * Appending is lock-free: a producer reserves the space of its record by
+ * advancing the push position with a compare-and-set on the mapped meta file,
+ * writes the record and then commits it by publishing its status. Since every
+ * process maps the same pages, this coordinates producers across processes as
+ * well as threads. Callers hold {@link #getLock()} while moving the pull
+ * position.
+ *
+ * A received message is leased until a deadline: its record stays IN_PROCESS
+ * and an entry in the {@link InFlightIndex} makes it deliverable again once the
+ * deadline has passed. Segments holding leased records are not deleted.
+ *
+ * With {@link Durability#GROUP_COMMIT} an append returns once its record and
+ * the push position are forced to the disk, see {@link GroupCommit}. With
+ * {@link Durability#PERIODIC} the segments written to are forced by a shared
+ * background thread.
+ *
+ * The same thread checkpoints how far the records are committed, so that
+ * opening the queue after its processes died only validates the records pushed
+ * since, see {@link #recover(long)}.
+ */
+public class SegmentedQueue {
+
+	private static final String SEGMENT_SUFFIX = "-segment";
+	private static final int MAX_RECEIVE_COUNT = 0xFFFF;
+	private static final int RECENT_SEGMENTS = 16;
+
+	private static final ScheduledExecutorService FLUSHER = Executors.newSingleThreadScheduledExecutor(task -> {
+		Thread thread = new Thread(task, "queue-flusher");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final String queueName;
+	private final FileQueue meta;
+	private final boolean created;
+	private final int segmentSize;
+	private final boolean checksums;
+	private final int maxInFlight;
+	private final boolean unboundedInFlight;
+	private final PushSignal pushSignal;
+	private final Durability durability;
+	private final GroupCommit groupCommit;
+	private final ScheduledFuture<?> periodicFlush;
+	private final ScheduledFuture<?> checkpoints;
+
+	private final Map<Long, FileQueue> segments = new ConcurrentHashMap<>();
+
+	/*
+	 * Segments by the low bits of their index, checked against the index in their
+	 * header, so the segments in use are found without boxing the index.
+	 */
+	private final FileQueue[] recentSegments = new FileQueue[RECENT_SEGMENTS];
+
+	// Null if payloads are stored as they are
+	private final PayloadCodec compression;
+	private final int compressionThreshold;
+	private final PayloadCodec decoder;
+
+	// Created once, a method reference allocates every time it is evaluated
+	private final InFlightIndex.Filter leasedUntil = this::isLeasedUntil;
+
+	// Guarded by segments
+	private long closedBefore;
+
+	// Opened on first use, most instances only push
+	private InFlightIndex inFlightIndex;
+	private boolean destroyed;
+
+	public SegmentedQueue(String queueName, int segmentSize, QueueOptions options) throws IOException {
+		this(queueName, segmentSize, options, false);
+	}
+
+	/**
+	 * @param unboundedInFlight whether the in-flight index grows past the
+	 *                          maxInFlight of the options instead of throwing
+	 */
+	SegmentedQueue(String queueName, int segmentSize, QueueOptions options, boolean unboundedInFlight)
+			throws IOException {
+		this.queueName = queueName;
+		this.unboundedInFlight = unboundedInFlight;
+		// Through the channel shared by the JVM, closing another one would release the locks of the process
+		this.meta = FileQueue.shared(queueName, QueueFormat.META_SIZE);
+		try {
+			this.created = initHeader(meta, segmentSize, options);
+		} catch (RuntimeException exception) {
+			meta.destroy();
+			throw exception;
+		}
+
+		this.segmentSize = meta.fetchInt(QueueFormat.SEGMENT_SIZE_OFFSET);
+		this.checksums = QueueFormat.hasChecksums(meta);
+		this.maxInFlight = options.getMaxInFlight();
+		this.compression = options.getCompression();
+		this.compressionThreshold = options.getCompressionThreshold();
+		this.decoder = compression == null ? PayloadCodec.DEFLATE : compression;
+		this.pushSignal = PushSignal.of(meta);
+		this.durability = options.getDurability();
+		this.groupCommit = durability == Durability.GROUP_COMMIT ? new GroupCommit(this::force) : null;
+		this.periodicFlush = durability == Durability.PERIODIC
+				? FLUSHER.scheduleWithFixedDelay(this::flushDirtySegments, options.getFlushInterval(),
+						options.getFlushInterval(), TimeUnit.MILLISECONDS)
+				: null;
+
+		QueueRecovery.open(this, meta);
+		this.checkpoints = FLUSHER.scheduleWithFixedDelay(this::checkpoint, options.getCheckpointInterval(),
+				options.getCheckpointInterval(), TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Writes the header of a new meta file, or validates the existing one, and
+	 * returns whether the file is new.
+	 */
+	private static boolean initHeader(FileQueue meta, int segmentSize, QueueOptions options) {
+		// Ignore if it is not a new file
+		if (meta.fetchInt(QueueFormat.MAGIC_OFFSET) != 0) {
+			QueueFormat.validateHeader(meta);
+			return false;
+		}
+		if (segmentSize < QueueFormat.SEGMENT_HEADER_SIZE + QueueFormat.recordSize(0, true)) {
+			throw new IllegalArgumentException("Segment size is too small - " + segmentSize);
+		}
+		QueueFormat.writeHeader(meta, options.isChecksums(), segmentSize);
+		return true;
+	}
+
+	public static String getSegmentName(String queueName, long segmentIndex) {
+		return queueName + SEGMENT_SUFFIX + segmentIndex;
+	}
+
+	public String getQueueName() {
+		return queueName;
+	}
+
+	/**
+	 * Whether the queue files were created by this instance.
+	 */
+	public boolean isCreated() {
+		return created;
+	}
+
+	public int getSegmentSize() {
+		return segmentSize;
+	}
+
+	/**
+	 * The head lock, see {@link QueueFormat}. Not reentrant.
+	 */
+	public QueueLock getLock() throws IOException {
+		return QueueLock.lock(meta, QueueFormat.PULL_POSITION_OFFSET, Long.BYTES);
+	}
+
+	/**
+	 * The head lock, or null if another thread or process holds it.
+	 */
+	public QueueLock tryGetLock() throws IOException {
+		return QueueLock.tryLock(meta, QueueFormat.PULL_POSITION_OFFSET, Long.BYTES);
+	}
+
+	public long getPullPosition() {
+		return meta.fetchLong(QueueFormat.PULL_POSITION_OFFSET);
+	}
+
+	public void setPullPosition(long position) {
+		meta.writeLong(position, QueueFormat.PULL_POSITION_OFFSET);
+	}
+
+	/**
+	 * End of the space reserved by producers. Records before it may not be
+	 * committed yet.
+	 */
+	public long getPushPosition() {
+		return meta.fetchLongVolatile(QueueFormat.PUSH_POSITION_OFFSET);
+	}
+
+	/**
+	 * Epoch milliseconds the first delayed message of the queue is due at, or 0
+	 * if none waits, see {@link DelayedMessages}.
+	 */
+	public long getNextDue() {
+		return meta.fetchLongVolatile(QueueFormat.NEXT_DUE_OFFSET);
+	}
+
+	void setNextDue(long due) {
+		meta.writeLongVolatile(due, QueueFormat.NEXT_DUE_OFFSET);
+	}
+
+	/**
+	 * Moves the time the next delayed message is due at to the given one if that
+	 * is earlier, and wakes the waiting consumers so they wait for it.
+	 */
+	void lowerNextDue(long due) {
+		long nextDue;
+		do {
+			nextDue = getNextDue();
+			if (nextDue != 0 && nextDue <= due) {
+				return;
+			}
+		} while (!meta.compareAndSetLong(nextDue, due, QueueFormat.NEXT_DUE_OFFSET));
+		pushSignal.signal();
+	}
+
+	/**
+	 * Writes a record at the push position, rolling over to the next segment when
+	 * it does not fit in the current one, and returns its position.
+	 */
+	public long append(byte[] payload, MessageStatus status) throws IOException {
+		return append(ByteBuffer.wrap(payload), status);
+	}
+
+	/**
+	 * Appends the remaining bytes of the payload without changing its position.
+	 */
+	public long append(ByteBuffer payload, MessageStatus status) throws IOException {
+		return append(payload, status, null);
+	}
+
+	/**
+	 * Like {@link #append(ByteBuffer, MessageStatus)}, telling the position of the
+	 * record to the given consumer, if any, once it is reserved and before it is
+	 * written. When the consumer or the write fails, the record is committed as
+	 * deleted, see {@link #abort(long, long, Exception)}.
+	 */
+	public long append(ByteBuffer payload, MessageStatus status, LongConsumer reserved) throws IOException {
+		ByteBuffer stored = encode(payload);
+		int flags = flagsOf(payload, stored);
+		int size = recordSize(stored);
+
+		while (true) {
+			long pushPosition = getPushPosition();
+			long position = recordStart(pushPosition, size);
+			// Mapped before reserving, a segment that can not be mapped could not be aborted
+			FileQueue segment = segment(segmentIndex(position));
+
+			if (meta.compareAndSetLong(pushPosition, position + size, QueueFormat.PUSH_POSITION_OFFSET)) {
+				try {
+					endSegmentIfSkipped(pushPosition, position);
+					if (reserved != null) {
+						reserved.accept(position);
+					}
+					segment.writeRecord(stored, positionInSegment(position), status, flags, 0, checksums);
+				} catch (IOException | RuntimeException e) {
+					abort(position, position + size, e);
+					throw e;
+				}
+				pushSignal.signal();
+				written(segment, position, position + size);
+				return position;
+			}
+		}
+	}
+
+	/**
+	 * Writes a record that is delivered once it is due, and returns its position.
+	 * It is written leased until then, without a receive counted, so consumers
+	 * pass it and it is delivered from the in-flight index like an expired lease,
+	 * see {@link #pollExpiredLease(long)}; pulls never look at it before. The index
+	 * entry is added before the record is committed, so a committed delayed record
+	 * always has one. Has to be called with the head lock.
+	 */
+	public synchronized long appendDelayed(ByteBuffer payload, long due) throws IOException {
+		ByteBuffer stored = encode(payload);
+		int flags = flagsOf(payload, stored);
+		int size = recordSize(stored);
+
+		while (true) {
+			long pushPosition = getPushPosition();
+			long position = recordStart(pushPosition, size);
+			FileQueue segment = segment(segmentIndex(position));
+
+			if (meta.compareAndSetLong(pushPosition, position + size, QueueFormat.PUSH_POSITION_OFFSET)) {
+				boolean counted = false;
+				try {
+					endSegmentIfSkipped(pushPosition, position);
+					inFlightIndex().add(position, due, leasedUntil);
+					addInFlight(segment, 1);
+					counted = true;
+					segment.writeRecord(stored, positionInSegment(position), MessageStatus.IN_PROCESS, flags,
+							(int) due, checksums);
+				} catch (IOException | RuntimeException e) {
+					// The index entry is dropped once it is due, the record is not leased
+					if (counted) {
+						addInFlight(segment, -1);
+					}
+					abort(position, position + size, e);
+					throw e;
+				}
+				pushSignal.signal();
+				written(segment, position, position + size);
+				return position;
+			}
+		}
+	}
+
+	/**
+	 * Writes the records in order and returns their positions. All the records
+	 * that fit in the current segment are reserved with a single update of the
+	 * push position. When writing fails, the space reserved for the records not
+	 * written is committed as deleted, see {@link #abort(long, long, Exception)}.
+	 *
+	 * @throws BufferOverflowException if a record does not fit in a segment,
+	 *                                 before anything is written
+	 * @throws PartialPushException    if writing failed after the first records
+	 *                                 were written
+	 */
+	public long[] appendAll(List<ByteBuffer> payloads, MessageStatus status) throws IOException {
+		ByteBuffer[] stored = new ByteBuffer[payloads.size()];
+		int[] flags = new int[stored.length];
+		int[] sizes = new int[stored.length];
+		for (int i = 0; i < sizes.length; i++) {
+			stored[i] = encode(payloads.get(i));
+			flags[i] = flagsOf(payloads.get(i), stored[i]);
+			sizes[i] = recordSize(stored[i]);
+		}
+
+		long[] positions = new long[sizes.length];
+		long writtenStart = -1;
+		long writtenEnd = -1;
+		// Space reserved and not written yet
+		long unwrittenStart = -1;
+		long unwrittenEnd = -1;
+		int next = 0;
+		FileQueue segment = null;
+		try {
+			while (next < sizes.length) {
+				long pushPosition = getPushPosition();
+				long position = recordStart(pushPosition, sizes[next]);
+				long segmentBase = position - positionInSegment(position);
+				// Mapped before reserving, a segment that can not be mapped could not be aborted
+				FileQueue reserving = segment(segmentIndex(position));
+
+				int end = positionInSegment(position);
+				int last = next;
+				while (last < sizes.length && end + sizes[last] <= segmentSize) {
+					end += sizes[last++];
+				}
+
+				if (!meta.compareAndSetLong(pushPosition, segmentBase + end, QueueFormat.PUSH_POSITION_OFFSET)) {
+					continue;
+				}
+
+				segment = reserving;
+				unwrittenStart = position;
+				unwrittenEnd = segmentBase + end;
+				endSegmentIfSkipped(pushPosition, position);
+				int at = positionInSegment(position);
+				if (writtenStart < 0) {
+					writtenStart = position;
+				}
+				for (; next < last; next++) {
+					positions[next] = segmentBase + at;
+					at = segment.writeRecord(stored[next], at, status, flags[next], 0, checksums);
+					writtenEnd = segmentBase + at;
+					unwrittenStart = writtenEnd;
+				}
+				segment.markDirty();
+			}
+		} catch (IOException | RuntimeException e) {
+			if (unwrittenStart < unwrittenEnd) {
+				abort(unwrittenStart, unwrittenEnd, e);
+			}
+			if (next == 0) {
+				throw e;
+			}
+			// The ones written are made durable
+			segment.markDirty();
+			try {
+				written(null, writtenStart, writtenEnd);
+			} catch (IOException | RuntimeException durability) {
+				e.addSuppressed(durability);
+			}
+			throw new PartialPushException(Arrays.copyOf(positions, next), e);
+		} finally {
+			pushSignal.signal();
+		}
+		if (writtenStart >= 0) {
+			written(null, writtenStart, writtenEnd);
+		}
+		return positions;
+	}
+
+	private int recordSize(ByteBuffer payload) {
+		int size = QueueFormat.recordSize(payload.remaining(), checksums);
+		if (QueueFormat.SEGMENT_HEADER_SIZE + size > segmentSize) {
+			throw new BufferOverflowException();
+		}
+		return size;
+	}
+
+	/**
+	 * The payload as it is stored: compressed if the queue compresses payloads of
+	 * its size and that makes it smaller. A payload that would not fit in a
+	 * segment uncompressed is rejected all the same, consumers do not restore
+	 * more than a segment.
+	 */
+	private ByteBuffer encode(ByteBuffer payload) {
+		recordSize(payload);
+		if (compression == null || payload.remaining() < compressionThreshold) {
+			return payload;
+		}
+		ByteBuffer compressed = compression.compress(payload);
+		return compressed == null ? payload : compressed;
+	}
+
+	private static int flagsOf(ByteBuffer payload, ByteBuffer stored) {
+		return stored == payload ? 0 : QueueFormat.RECORD_FLAG_COMPRESSED;
+	}
+
+	/**
+	 * Position of a record of the given size reserved at the given push position.
+	 */
+	private long recordStart(long pushPosition, int size) {
+		int at = positionInSegment(pushPosition);
+		if (at < QueueFormat.SEGMENT_HEADER_SIZE) {
+			// The previous segment ended exactly at its last byte
+			return segmentStart(segmentIndex(pushPosition));
+		}
+		if (at + size > segmentSize) {
+			return segmentStart(segmentIndex(pushPosition) + 1);
+		}
+		return pushPosition;
+	}
+
+	/**
+	 * Commits space a producer reserved and failed to commit as one deleted
+	 * record, so that consumers pass it instead of waiting for it until the queue
+	 * is recovered. A record written partly is overwritten. When even that fails,
+	 * like the segment not being mapped, the failure is added to the one of the
+	 * producer and the space is left to {@link #recover(long)}.
+	 */
+	private void abort(long start, long end, Exception failure) {
+		try {
+			FileQueue segment = segment(segmentIndex(start));
+			int at = positionInSegment(start);
+			segment.writeLength((int) (end - start) - QueueFormat.recordSize(0, checksums), at);
+			segment.writeIntRelease(MessageStatus.DELETED.status, at + QueueFormat.RECORD_STATUS_OFFSET);
+			pushSignal.signal();
+		} catch (IOException | RuntimeException abort) {
+			failure.addSuppressed(abort);
+		}
+	}
+
+	/**
+	 * Only the producer that reserved past the end of a segment marks it.
+	 */
+	private void endSegmentIfSkipped(long pushPosition, long position) throws IOException {
+		int at = positionInSegment(pushPosition);
+		if (position != pushPosition && at >= QueueFormat.SEGMENT_HEADER_SIZE
+				&& at + QueueFormat.RECORD_HEADER_SIZE <= segmentSize) {
+			segment(segmentIndex(pushPosition)).writeEndOfSegment(at);
+		}
+	}
+
+	/**
+	 * Applies the durability of the queue to a written range, the segment being
+	 * already marked when null.
+	 */
+	private void written(FileQueue segment, long start, long end) throws IOException {
+		if (durability == Durability.PERIODIC && segment != null) {
+			segment.markDirty();
+		} else if (durability == Durability.GROUP_COMMIT) {
+			groupCommit.commit(start, end);
+		}
+	}
+
+	/**
+	 * Forces the records between the global positions, and the meta file holding
+	 * the push position, to the disk. Segments deleted meanwhile are skipped.
+	 *
+	 * The segments are only looked up under the segments monitor, which a rollover
+	 * needs, and forced after releasing it. A segment closed in the meantime stays
+	 * mapped and is still forced.
+	 */
+	private void force(long start, long end) throws IOException {
+		long first = segmentIndex(start);
+		long last = segmentIndex(end - 1);
+		FileQueue[] written = new FileQueue[(int) (last - first + 1)];
+		synchronized (segments) {
+			long kept = Math.max(first, meta.fetchLong(QueueFormat.FIRST_SEGMENT_OFFSET));
+			for (long index = kept; index <= last; index++) {
+				written[(int) (index - first)] = segment(index);
+			}
+		}
+
+		for (long index = first; index <= last; index++) {
+			FileQueue segment = written[(int) (index - first)];
+			if (segment != null) {
+				int from = index == first ? positionInSegment(start) : 0;
+				int to = index == last ? positionInSegment(end - 1) + 1 : segmentSize;
+				segment.force(from, to - from);
+			}
+		}
+		meta.force(0, QueueFormat.META_SIZE);
+	}
+
+	private void flushDirtySegments() {
+		try {
+			List<FileQueue> open;
+			synchronized (segments) {
+				open = new ArrayList<>(segments.values());
+			}
+			for (FileQueue segment : open) {
+				segment.forceIfDirty();
+			}
+			meta.immedieteFlush();
+		} catch (RuntimeException e) {
+			System.out.println("Problem while flushing queue " + queueName + " - " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Waits until the push position is no longer the observed one, or a record
+	 * follows the pull position, see {@link PushSignal}. The second case is a
+	 * record reserved before the position was observed and committed since: the
+	 * signal of its producer may have come before this thread waited.
+	 */
+	public void awaitPush(long observed, long timeoutNanos) throws InterruptedException {
+		pushSignal.await(() -> getPushPosition() != observed || hasNextRecord(),
+				Math.min(timeoutNanos, nanosUntilNextLeaseEnds()));
+	}
+
+	/**
+	 * Whether a committed record follows the pull position. A record that can not
+	 * be read counts, the consumer finds out when it pulls.
+	 */
+	private boolean hasNextRecord() {
+		try {
+			nextRecord(getPullPosition());
+			return true;
+		} catch (EndOfDataException exception) {
+			return false;
+		} catch (IOException | RuntimeException exception) {
+			return true;
+		}
+	}
+
+	/**
+	 * Time until the first lease in the in-flight index ends, which is when an
+	 * expired message is delivered again, or until the next delayed message is
+	 * due. Read without the head lock, so an entry that is stale or being moved
+	 * only wakes a waiter early.
+	 */
+	private synchronized long nanosUntilNextLeaseEnds() {
+		try {
+			InFlightIndex index = inFlightIndex();
+			long end = index.isEmpty() ? Long.MAX_VALUE : index.peekDeadline();
+			if (getNextDue() != 0) {
+				end = Math.min(end, getNextDue());
+			}
+			if (end == Long.MAX_VALUE) {
+				return Long.MAX_VALUE;
+			}
+			long millis = Math.max(end - System.currentTimeMillis(), 1);
+			return TimeUnit.MILLISECONDS.toNanos(millis);
+		} catch (IOException | RuntimeException e) {
+			return Long.MAX_VALUE;
+		}
+	}
+
+	/**
+	 * Returns the position of the first record at or after the given position,
+	 * stepping over the unused ends of segments.
+	 *
+	 * @throws EndOfDataException if there is no record before the push position,
+	 *                            or the next one is not committed yet
+	 */
+	public synchronized long nextRecord(long position) throws IOException {
+		long pushPosition = getPushPosition();
+
+		while (position < pushPosition) {
+			int at = positionInSegment(position);
+			if (at < QueueFormat.SEGMENT_HEADER_SIZE) {
+				position = segmentStart(segmentIndex(position));
+				continue;
+			}
+			if (at + QueueFormat.RECORD_HEADER_SIZE > segmentSize) {
+				position = segmentStart(segmentIndex(position) + 1);
+				continue;
+			}
+
+			FileQueue segment = segment(segmentIndex(position));
+			if (!segment.isCommitted(at)) {
+				break;
+			}
+			if (!segment.isEndOfSegment(at)) {
+				return position;
+			}
+			position = segmentStart(segmentIndex(position) + 1);
+		}
+
+		throw new EndOfDataException();
+	}
+
+	/**
+	 * Moves the pull position past the next record that is not delivered yet and
+	 * returns the position of that record. Runs of records deleted before they
+	 * were delivered are passed in one step, see {@link #delete(long)}, delayed
+	 * records are passed as they are delivered from the in-flight index, and the
+	 * segments passed are released. Has to be called with the head lock.
+	 *
+	 * @throws EndOfDataException if there is no record to deliver; the pull
+	 *                            position is moved past the deleted ones anyway
+	 */
+	public synchronized long pullNextRecord() throws IOException {
+		long position = getPullPosition();
+		try {
+			while (true) {
+				position = nextRecord(position);
+				FileQueue segment = segment(segmentIndex(position));
+				int at = positionInSegment(position);
+
+				if (segment.fetchStatus(at) == MessageStatus.UNPROCESSED) {
+					setPullPosition(nextPosition(position));
+					releaseSegmentsBefore(position);
+					return position;
+				}
+				int runEnd = runEnd(segment, at);
+				position = runEnd > 0 ? position - at + runEnd : nextPosition(position);
+			}
+		} catch (EndOfDataException exception) {
+			if (position != getPullPosition()) {
+				setPullPosition(position);
+				releaseSegmentsBefore(position);
+			}
+			throw exception;
+		}
+	}
+
+	/**
+	 * Deletes a record that has not been delivered yet. Its deadline is not used,
+	 * so it holds the end of the run of deleted records starting with it, within
+	 * its segment, and consumers jump to the end of the run at once. Deleting the
+	 * records of a run last to first makes it one step. Delayed records are
+	 * deleted like leases instead, their deadline is in use. Has to be called with
+	 * the head lock.
+	 */
+	public synchronized void delete(long position) throws IOException {
+		FileQueue segment = segment(segmentIndex(position));
+		int at = positionInSegment(position);
+		int next = segment.nextRecordPosition(at, checksums);
+
+		int runEnd = next;
+		if (next + QueueFormat.RECORD_HEADER_SIZE > segmentSize) {
+			runEnd = segmentSize;
+		} else if (segment.isCommitted(next) && segment.fetchStatus(next) == MessageStatus.DELETED) {
+			int nextRunEnd = runEnd(segment, next);
+			if (segment.isEndOfSegment(next)) {
+				runEnd = segmentSize;
+			} else if (nextRunEnd > 0) {
+				runEnd = nextRunEnd;
+			}
+		}
+		segment.writeInt(runEnd, at + QueueFormat.RECORD_DEADLINE_OFFSET);
+		segment.writeByte(segment.fetchByte(at + QueueFormat.RECORD_FLAGS_OFFSET) | QueueFormat.RECORD_FLAG_RUN_END,
+				at + QueueFormat.RECORD_FLAGS_OFFSET);
+		segment.writeStatus(MessageStatus.DELETED, at);
+	}
+
+	/**
+	 * Whether a committed record starts at the position. Every record carries the
+	 * tag of its position, so an id pointing anywhere else, like into a payload,
+	 * is rejected before anything is written to the record.
+	 */
+	public synchronized boolean isRecord(long position) throws IOException {
+		int at = positionInSegment(position);
+		if (position < 0 || position >= getPushPosition() || isReleased(position)
+				|| at < QueueFormat.SEGMENT_HEADER_SIZE || at % QueueFormat.RECORD_ALIGNMENT != 0) {
+			return false;
+		}
+		FileQueue segment = segment(segmentIndex(position));
+		return segment.isCommitted(at) && !segment.isEndOfSegment(at) && isRecordAt(segment, at, segmentSize);
+	}
+
+	/**
+	 * End of the run of deleted records starting with the given one, or -1 when
+	 * the record does not hold it.
+	 */
+	private int runEnd(FileQueue segment, int at) {
+		if ((segment.fetchByte(at + QueueFormat.RECORD_FLAGS_OFFSET) & QueueFormat.RECORD_FLAG_RUN_END) == 0) {
+			return -1;
+		}
+		int runEnd = segment.fetchInt(at + QueueFormat.RECORD_DEADLINE_OFFSET);
+		return runEnd > at && runEnd <= segmentSize && runEnd % QueueFormat.RECORD_ALIGNMENT == 0 ? runEnd : -1;
+	}
+
+	/**
+	 * Position right after the record at the given position.
+	 */
+	public synchronized long nextPosition(long position) throws IOException {
+		return position - positionInSegment(position)
+				+ segment(segmentIndex(position)).nextRecordPosition(positionInSegment(position), checksums);
+	}
+
+	public synchronized MessageStatus fetchStatus(long position) throws IOException {
+		return segment(segmentIndex(position)).fetchStatus(positionInSegment(position));
+	}
+
+	/**
+	 * Status updates of records in segments that are already deleted are ignored,
+	 * unless this instance still has the segment mapped.
+	 */
+	public synchronized void writeStatus(MessageStatus status, long position) throws IOException {
+		FileQueue segment = segments.get(segmentIndex(position));
+		if (segment == null && isReleased(position)) {
+			return;
+		}
+		segment(segmentIndex(position)).writeStatus(status, positionInSegment(position));
+	}
+
+	public byte[] fetchPayload(long position) throws IOException {
+		ByteBuffer view = fetchPayloadView(position);
+		byte[] payload = new byte[view.remaining()];
+		view.get(payload);
+		return payload;
+	}
+
+	/**
+	 * Moves the window of the view to the payload of the record, see
+	 * {@link MessageView}. A compressed payload is left as it is stored, the view
+	 * decompresses it when it is read.
+	 */
+	public synchronized void fetchPayloadInto(long position, MessageView view) throws IOException {
+		FileQueue segment = segment(segmentIndex(position));
+		int at = positionInSegment(position);
+		view.setPayload(segment, at, checksums, segment.isCompressed(at) ? decoder : null);
+	}
+
+	/**
+	 * Read-only view of the payload in the segment, see
+	 * {@link FileQueue#fetchPayloadView(int, boolean)}. A compressed payload is
+	 * decompressed into a buffer of its own.
+	 */
+	public synchronized ByteBuffer fetchPayloadView(long position) throws IOException {
+		FileQueue segment = segment(segmentIndex(position));
+		int at = positionInSegment(position);
+		ByteBuffer payload = segment.fetchPayloadView(at, checksums);
+		return segment.isCompressed(at) ? decoder.decompress(payload, segmentSize) : payload;
+	}
+
+	public String fetchString(long position) throws IOException {
+		return new String(fetchPayload(position), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Whether the segment holding the given position has been deleted.
+	 */
+	public boolean isReleased(long position) {
+		return segmentIndex(position) < meta.fetchLong(QueueFormat.FIRST_SEGMENT_OFFSET);
+	}
+
+	/**
+	 * Deletes the segments before the one holding the given position, which must
+	 * not be after the pull position. Stops at the first segment with messages in
+	 * flight.
+	 */
+	public synchronized void releaseSegmentsBefore(long position) throws IOException {
+		long firstSegment = meta.fetchLong(QueueFormat.FIRST_SEGMENT_OFFSET);
+		long released = firstSegment;
+		while (released < segmentIndex(position)
+				&& segment(released).fetchInt(QueueFormat.SEGMENT_IN_FLIGHT_OFFSET) == 0) {
+			released++;
+		}
+		if (released > firstSegment) {
+			meta.writeLong(released, QueueFormat.FIRST_SEGMENT_OFFSET);
+		}
+
+		// Also unmaps the segments deleted by other instances
+		closeSegmentsBefore(released);
+
+		for (; firstSegment < released; firstSegment++) {
+			File file = new File(getSegmentName(queueName, firstSegment) + FileQueue.EXTENSION);
+			try {
+				Files.deleteIfExists(file.toPath());
+			} catch (IOException e) {
+				System.out.println("Problem with deleting segment file - " + file.getAbsolutePath());
+			}
+		}
+	}
+
+	/**
+	 * Number of messages received and not acknowledged yet, and of delayed
+	 * records not received yet, see {@link #appendDelayed(ByteBuffer, long)}.
+	 */
+	public long getInFlightCount() {
+		return meta.fetchLongVolatile(QueueFormat.IN_FLIGHT_OFFSET);
+	}
+
+	/**
+	 * Leases the record until the deadline, whether it is received for the first
+	 * time or again, and returns how many times it has been received. Returns -1
+	 * if it was acknowledged meanwhile.
+	 */
+	public synchronized int lease(long position, long deadline) throws IOException {
+		FileQueue segment = segment(segmentIndex(position));
+		int statusAt = positionInSegment(position) + QueueFormat.RECORD_STATUS_OFFSET;
+
+		int word;
+		int receiveCount;
+		do {
+			word = segment.fetchIntAcquire(statusAt);
+			if (statusOf(word) == MessageStatus.PROCESSED.status || statusOf(word) == MessageStatus.DELETED.status) {
+				return -1;
+			}
+			receiveCount = Math.min(receiveCountOf(word) + 1, MAX_RECEIVE_COUNT);
+		} while (!segment.compareAndSetInt(word, statusWord(word, MessageStatus.IN_PROCESS, receiveCount), statusAt));
+
+		// Nobody can acknowledge a first lease before it is returned
+		if (statusOf(word) != MessageStatus.IN_PROCESS.status) {
+			addInFlight(segment, 1);
+		}
+		writeDeadline(segment, position, deadline);
+		return receiveCount;
+	}
+
+	/**
+	 * Moves the deadline of a lease, unless the message has been acknowledged or
+	 * received again since the given receive count.
+	 */
+	public synchronized boolean extendLease(long position, int receiveCount, long deadline) throws IOException {
+		if (!isLeased(position, receiveCount)) {
+			return false;
+		}
+		writeDeadline(segment(segmentIndex(position)), position, deadline);
+		return true;
+	}
+
+	/**
+	 * Hands a lease back unused: the message is deliverable again right away and
+	 * the receive is not counted, see {@link QueueOptions#setMaxReceiveCount(int)}.
+	 */
+	public synchronized boolean returnLease(long position, int receiveCount, long now) throws IOException {
+		if (isReleased(position)) {
+			return false;
+		}
+		FileQueue segment = segment(segmentIndex(position));
+		if (!isTagged(segment, positionInSegment(position))) {
+			return false;
+		}
+		int statusAt = positionInSegment(position) + QueueFormat.RECORD_STATUS_OFFSET;
+
+		int word;
+		do {
+			word = segment.fetchIntAcquire(statusAt);
+			if (!isLeased(word, receiveCount)) {
+				return false;
+			}
+		} while (!segment.compareAndSetInt(word, statusWord(word, MessageStatus.IN_PROCESS, receiveCount - 1),
+				statusAt));
+
+		writeDeadline(segment, position, now);
+		return true;
+	}
+
+	/**
+	 * Ends a lease with the given status, unless the message has been acknowledged
+	 * or received again since the given receive count. A negative receive count
+	 * matches any lease. Needs no lock: the status word is changed with
+	 * compare-and-set, and an index entry left behind is dropped once it expires.
+	 */
+	public boolean completeLease(long position, int receiveCount, MessageStatus status) throws IOException {
+		FileQueue segment;
+		try {
+			if (isReleased(position)) {
+				return false;
+			}
+			segment = segment(segmentIndex(position));
+		} catch (IllegalStateException exception) {
+			// Released meanwhile, which means the lease had ended
+			return false;
+		}
+		if (!isTagged(segment, positionInSegment(position))) {
+			return false;
+		}
+		int statusAt = positionInSegment(position) + QueueFormat.RECORD_STATUS_OFFSET;
+
+		int word;
+		do {
+			word = segment.fetchIntAcquire(statusAt);
+			if (!isLeased(word, receiveCount)) {
+				return false;
+			}
+		} while (!segment.compareAndSetInt(word, statusWord(word, status, receiveCountOf(word)), statusAt));
+
+		addInFlight(segment, -1);
+		return true;
+	}
+
+	/**
+	 * Returns the position of a record whose lease ended at or before now, or -1.
+	 * The lease is not renewed, see {@link #lease(long, long)}. Its entry stays in
+	 * the index until the record is leased again or acknowledged, so the lease is
+	 * not lost when the process dies in between.
+	 */
+	public synchronized long pollExpiredLease(long now) throws IOException {
+		InFlightIndex index = inFlightIndex();
+
+		while (!index.isEmpty() && index.peekDeadline() <= now) {
+			long position = index.peekPosition();
+			if (isLeasedUntil(position, index.peekDeadline())) {
+				return position;
+			}
+			index.poll();
+		}
+		return -1;
+	}
+
+	/**
+	 * Deadline of the first lease in the in-flight index, or 0 if there is none.
+	 * It may be a lease that has ended early, see {@link InFlightIndex}.
+	 */
+	public synchronized long peekLeaseEnd() throws IOException {
+		InFlightIndex index = inFlightIndex();
+		return index.isEmpty() ? 0 : index.peekDeadline();
+	}
+
+	/**
+	 * Whether the record is leased with the given receive count, any receive count
+	 * when negative.
+	 */
+	public synchronized boolean isLeased(long position, int receiveCount) throws IOException {
+		if (isReleased(position)) {
+			return false;
+		}
+		FileQueue segment = segment(segmentIndex(position));
+		return isTagged(segment, positionInSegment(position)) && isLeased(
+				segment.fetchIntAcquire(positionInSegment(position) + QueueFormat.RECORD_STATUS_OFFSET), receiveCount);
+	}
+
+	/**
+	 * Whether a record starts at the position of a receipt handle, checked like
+	 * an id in {@link #isRecord(long)}.
+	 */
+	private boolean isTagged(FileQueue segment, int at) {
+		return at >= QueueFormat.SEGMENT_HEADER_SIZE && at % QueueFormat.RECORD_ALIGNMENT == 0
+				&& at + QueueFormat.RECORD_HEADER_SIZE <= segmentSize && segment.isTagged(at);
+	}
+
+	private static boolean isLeased(int statusWord, int receiveCount) {
+		return statusOf(statusWord) == MessageStatus.IN_PROCESS.status
+				&& (receiveCount < 0 || receiveCountOf(statusWord) == receiveCount);
+	}
+
+	/*
+	 * The status word of a record: status in the low byte, then the flags, then
+	 * the receive count, see QueueFormat.
+	 */
+	private static int statusOf(int statusWord) {
+		return statusWord & 0xFF;
+	}
+
+	private static int receiveCountOf(int statusWord) {
+		return statusWord >>> 16;
+	}
+
+	private static int statusWord(int statusWord, MessageStatus status, int receiveCount) {
+		return receiveCount << 16 | (statusWord & 0xFF00) | status.status;
+	}
+
+	/**
+	 * Number of times the message at the position was received.
+	 */
+	public synchronized int fetchReceiveCount(long position) throws IOException {
+		return fetchReceiveCount(segment(segmentIndex(position)), positionInSegment(position));
+	}
+
+	/**
+	 * Whether an entry of the in-flight index is the current lease of its record.
+	 */
+	private boolean isLeasedUntil(long position, long deadline) throws IOException {
+		if (isReleased(position)) {
+			return false;
+		}
+		FileQueue segment = segment(segmentIndex(position));
+		int at = positionInSegment(position);
+		return segment.fetchStatus(at) == MessageStatus.IN_PROCESS
+				&& segment.fetchInt(at + QueueFormat.RECORD_DEADLINE_OFFSET) == (int) deadline;
+	}
+
+	private void writeDeadline(FileQueue segment, long position, long deadline) throws IOException {
+		segment.writeInt((int) deadline, positionInSegment(position) + QueueFormat.RECORD_DEADLINE_OFFSET);
+		inFlightIndex().add(position, deadline, leasedUntil);
+	}
+
+	private int fetchReceiveCount(FileQueue segment, int at) {
+		return segment.fetchShort(at + QueueFormat.RECORD_RECEIVE_COUNT_OFFSET);
+	}
+
+	private void addInFlight(FileQueue segment, int delta) {
+		segment.getAndAddInt(delta, QueueFormat.SEGMENT_IN_FLIGHT_OFFSET);
+		meta.getAndAddLong(delta, QueueFormat.IN_FLIGHT_OFFSET);
+	}
+
+	/**
+	 * Whether a process has the queue open, see {@link QueueRecovery}.
+	 */
+	boolean isMarkedOpen() {
+		return meta.fetchIntAcquire(QueueFormat.OPEN_OFFSET) != 0;
+	}
+
+	void markOpen(boolean open) {
+		meta.writeIntRelease(open ? 1 : 0, QueueFormat.OPEN_OFFSET);
+	}
+
+	/**
+	 * Records the pull position and how far the records after it are committed,
+	 * and deletes the segments that were consumed in the meantime. Skipped while a
+	 * consumer holds the head lock, the next checkpoint catches up.
+	 */
+	synchronized void checkpoint() {
+		if (destroyed) {
+			return;
+		}
+		try {
+			QueueLock lock = tryGetLock();
+			if (lock == null) {
+				return;
+			}
+			try {
+				long pullPosition = getPullPosition();
+				long committed = committedUntil(
+						Math.max(meta.fetchLong(QueueFormat.CHECKPOINT_PUSH_OFFSET), pullPosition));
+				meta.writeLong(pullPosition, QueueFormat.CHECKPOINT_PULL_OFFSET);
+				meta.writeLong(committed, QueueFormat.CHECKPOINT_PUSH_OFFSET);
+
+				// Segments whose last leases were acknowledged since the last pull
+				releaseSegmentsBefore(pullPosition);
+			} finally {
+				lock.release();
+			}
+		} catch (IOException | RuntimeException e) {
+			System.out.println("Problem while checkpointing queue " + queueName + " - " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Position right after the committed records that follow the given one.
+	 */
+	private long committedUntil(long position) throws IOException {
+		try {
+			while (true) {
+				position = nextPosition(nextRecord(position));
+			}
+		} catch (EndOfDataException | CorruptedRecordException exception) {
+			return position;
+		}
+	}
+
+	/**
+	 * Repairs the queue after every process using it died, called by
+	 * {@link QueueRecovery} before any other instance opens it, while no other
+	 * process has it open, so every reservation found uncommitted belongs to a
+	 * producer that is gone. Only the records after the last checkpoint are
+	 * looked at, so recovering takes about as long as the checkpoint interval
+	 * worth of pushes and pulls.
+	 *
+	 * A record left uncommitted by a producer that died is deleted; the producer
+	 * never returned its position. When it died before writing anything, the
+	 * space it reserved is skipped, or given back when nothing follows it. Every
+	 * lease is abandoned, so the messages in flight become deliverable right away,
+	 * as do the messages that a consumer passed but did not lease before it died.
+	 * The in-flight counts are then counted again from the in-flight index.
+	 */
+	synchronized void recover(long now) throws IOException {
+		long pullPosition = getPullPosition();
+		recoverTail(Math.max(meta.fetchLong(QueueFormat.CHECKPOINT_PUSH_OFFSET), pullPosition));
+
+		long firstSegment = meta.fetchLong(QueueFormat.FIRST_SEGMENT_OFFSET);
+		recoverLeases(Math.max(meta.fetchLong(QueueFormat.CHECKPOINT_PULL_OFFSET), segmentStart(firstSegment)),
+				pullPosition, now);
+
+		meta.writeLong(pullPosition, QueueFormat.CHECKPOINT_PULL_OFFSET);
+		meta.writeLong(getPushPosition(), QueueFormat.CHECKPOINT_PUSH_OFFSET);
+	}
+
+	private void recoverTail(long position) throws IOException {
+		while (position < getPushPosition()) {
+			int at = positionInSegment(position);
+			if (at < QueueFormat.SEGMENT_HEADER_SIZE) {
+				position = segmentStart(segmentIndex(position));
+				continue;
+			}
+			if (at + QueueFormat.RECORD_HEADER_SIZE > segmentSize) {
+				position = segmentStart(segmentIndex(position) + 1);
+				continue;
+			}
+
+			FileQueue segment = segment(segmentIndex(position));
+			long segmentBase = position - at;
+			int limit = (int) Math.min(segmentSize, getPushPosition() - segmentBase);
+			int length = segment.fetchInt(at + QueueFormat.RECORD_LENGTH_OFFSET);
+
+			if (segment.isCommitted(at) && length == QueueFormat.END_OF_SEGMENT) {
+				position = segmentStart(segmentIndex(position) + 1);
+			} else if (isRecordAt(segment, at, limit) && length > 0) {
+				if (!segment.isCommitted(at)) {
+					// Written partly by a producer that died
+					segment.writeIntRelease(MessageStatus.DELETED.status, at + QueueFormat.RECORD_STATUS_OFFSET);
+				}
+				position = segmentBase + at + QueueFormat.recordSize(length, checksums);
+			} else if (segment.isCommitted(at) && isRecordAt(segment, at, limit)) {
+				position = segmentBase + at + QueueFormat.recordSize(length, checksums);
+			} else {
+				int next = length == 0 ? nextWrittenRecord(segment, at, limit) : -1;
+				if (next >= 0) {
+					// Reserved by a producer that died before writing anything
+					segment.writeLength(next - at - QueueFormat.recordSize(0, checksums), at);
+					segment.writeIntRelease(MessageStatus.DELETED.status, at + QueueFormat.RECORD_STATUS_OFFSET);
+					position = segmentBase + next;
+				} else {
+					position = cutSegment(segment, segmentBase, at, limit);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Drops the rest of a segment that can not be read. Space at the end of the
+	 * queue is given back to the producers, zeroed so that no old byte is taken
+	 * for a new record.
+	 */
+	private long cutSegment(FileQueue segment, long segmentBase, int at, int limit) {
+		if (segmentBase + limit == getPushPosition()) {
+			segment.writeBytes(new byte[limit - at], at);
+			meta.writeLong(segmentBase + at, QueueFormat.PUSH_POSITION_OFFSET);
+			return segmentBase + at;
+		}
+		if (segment.fetchInt(at + QueueFormat.RECORD_LENGTH_OFFSET) != 0) {
+			System.out.println("Problem with unreadable records, skipping the rest of segment - "
+					+ segment.getQueueName());
+		}
+		segment.writeEndOfSegment(at);
+		return segmentBase + segmentSize;
+	}
+
+	/**
+	 * Start of the first record after a reservation of which nothing was written,
+	 * or -1 if the reservation is followed by something else than zeros and a
+	 * record. The first int that is not 0 is the length of the next record, or its
+	 * tag when the record has no payload.
+	 */
+	private int nextWrittenRecord(FileQueue segment, int at, int limit) {
+		int minimum = at + QueueFormat.recordSize(0, checksums);
+		for (int next = at; next + Integer.BYTES <= limit; next += QueueFormat.RECORD_ALIGNMENT) {
+			if (segment.fetchInt(next) == 0) {
+				continue;
+			}
+			if (next >= minimum && isRecordAt(segment, next, limit)) {
+				return next;
+			}
+			int start = next - QueueFormat.RECORD_TAG_OFFSET;
+			if (start >= minimum && isRecordAt(segment, start, limit)) {
+				return start;
+			}
+			return -1;
+		}
+		return -1;
+	}
+
+	/**
+	 * Whether the bytes at the given position are a record header, committed or
+	 * with its length written, of a record that ends before the limit.
+	 */
+	private boolean isRecordAt(FileQueue segment, int at, int limit) {
+		if (at + QueueFormat.RECORD_HEADER_SIZE > limit || !segment.isTagged(at)) {
+			return false;
+		}
+		int length = segment.fetchInt(at + QueueFormat.RECORD_LENGTH_OFFSET);
+		int status = statusOf(segment.fetchInt(at + QueueFormat.RECORD_STATUS_OFFSET));
+		if (status > MessageStatus.DELETED.status) {
+			return false;
+		}
+		if (length == QueueFormat.END_OF_SEGMENT) {
+			return status != 0;
+		}
+		return length >= 0 && (status != 0 || length > 0)
+				&& (long) at + QueueFormat.recordSize(length, checksums) <= limit;
+	}
+
+	private void recoverLeases(long position, long pullPosition, long now) throws IOException {
+		InFlightIndex index = inFlightIndex();
+		index.recover(leasedUntil);
+		index.removeStale(leasedUntil);
+
+		// Passed since the last checkpoint, the consumer may have died before leasing
+		while (position < pullPosition) {
+			try {
+				position = nextRecord(position);
+			} catch (EndOfDataException exception) {
+				break;
+			}
+			if (position >= pullPosition) {
+				break;
+			}
+
+			FileQueue segment = segment(segmentIndex(position));
+			int statusAt = positionInSegment(position) + QueueFormat.RECORD_STATUS_OFFSET;
+			int word = segment.fetchInt(statusAt);
+			if (statusOf(word) == MessageStatus.UNPROCESSED.status) {
+				segment.writeIntRelease(statusWord(word, MessageStatus.IN_PROCESS, 0), statusAt);
+				writeDeadline(segment, position, now);
+			} else if (isLeased(word, -1) && receiveCountOf(word) > 0) {
+				writeDeadline(segment, position, now);
+			}
+			position = nextPosition(position);
+		}
+
+		// Delayed messages not received yet keep their entries
+		for (long leased : leasedPositions(index)) {
+			if (!isDelayed(leased)) {
+				writeDeadline(segment(segmentIndex(leased)), leased, now);
+			}
+		}
+		index.removeStale(leasedUntil);
+
+		Map<Long, Integer> inFlight = new HashMap<>();
+		Set<Long> leased = leasedPositions(index);
+		for (long leasedPosition : leased) {
+			inFlight.merge(segmentIndex(leasedPosition), 1, Integer::sum);
+		}
+		for (long segmentIndex = meta.fetchLong(QueueFormat.FIRST_SEGMENT_OFFSET); segmentIndex <= segmentIndex(
+				getPushPosition()); segmentIndex++) {
+			segment(segmentIndex).writeInt(inFlight.getOrDefault(segmentIndex, 0),
+					QueueFormat.SEGMENT_IN_FLIGHT_OFFSET);
+		}
+		meta.writeLong(leased.size(), QueueFormat.IN_FLIGHT_OFFSET);
+	}
+
+	/**
+	 * Whether a leased record is a delayed message that has not been received
+	 * yet. A record leased by recovery with no receive counted looks the same,
+	 * and is due already.
+	 */
+	private boolean isDelayed(long position) throws IOException {
+		return fetchReceiveCount(position) == 0;
+	}
+
+	private static Set<Long> leasedPositions(InFlightIndex index) throws IOException {
+		Set<Long> positions = new HashSet<>();
+		for (int entry = 0; entry < index.size(); entry++) {
+			positions.add(index.positionAt(entry));
+		}
+		return positions;
+	}
+
+	private InFlightIndex inFlightIndex() throws IOException {
+		if (inFlightIndex == null) {
+			inFlightIndex = new InFlightIndex(queueName, maxInFlight, unboundedInFlight);
+		}
+		return inFlightIndex;
+	}
+
+	private void closeSegmentsBefore(long segmentIndex) {
+		synchronized (segments) {
+			if (segmentIndex <= closedBefore) {
+				return;
+			}
+			closedBefore = segmentIndex;
+			closeOpenSegmentsBefore(segmentIndex);
+		}
+	}
+
+	private void closeOpenSegmentsBefore(long segmentIndex) {
+		Iterator<Map.Entry<Long, FileQueue>> openSegments = segments.entrySet().iterator();
+		while (openSegments.hasNext()) {
+			Map.Entry<Long, FileQueue> segment = openSegments.next();
+			if (segment.getKey() < segmentIndex) {
+				openSegments.remove();
+				forgetRecent(segment.getValue());
+				destroy(segment.getValue());
+			}
+		}
+	}
+
+	private void forgetRecent(FileQueue segment) {
+		for (int slot = 0; slot < RECENT_SEGMENTS; slot++) {
+			if (recentSegments[slot] == segment) {
+				recentSegments[slot] = null;
+			}
+		}
+	}
+
+	private FileQueue segment(long segmentIndex) throws IOException {
+		int slot = (int) (segmentIndex & (RECENT_SEGMENTS - 1));
+		FileQueue segment = recentSegments[slot];
+		if (segment != null && segment.fetchLong(QueueFormat.SEGMENT_INDEX_OFFSET) == segmentIndex) {
+			return segment;
+		}
+
+		segment = segments.get(segmentIndex);
+		if (segment != null) {
+			recentSegments[slot] = segment;
+			return segment;
+		}
+
+		synchronized (segments) {
+			segment = segments.get(segmentIndex);
+			if (segment != null) {
+				return segment;
+			}
+
+			if (segmentIndex < meta.fetchLong(QueueFormat.FIRST_SEGMENT_OFFSET)) {
+				// Opening it would create the deleted file again
+				throw new IllegalStateException(
+						String.format("Segment %s of %s is deleted", segmentIndex, queueName));
+			}
+
+			/*
+			 * Producers and consumers of any process may open a new segment at the same
+			 * time. Mapping extends the file to the same size and the header values are
+			 * identical, so racing here is harmless.
+			 */
+			segment = new FileQueue(getSegmentName(queueName, segmentIndex), segmentSize);
+			if (segment.fetchInt(QueueFormat.MAGIC_OFFSET) == 0) {
+				segment.writeLong(segmentIndex, QueueFormat.SEGMENT_INDEX_OFFSET);
+				segment.writeInt(QueueFormat.SEGMENT_MAGIC, QueueFormat.MAGIC_OFFSET);
+			}
+			segments.put(segmentIndex, segment);
+			recentSegments[slot] = segment;
+			return segment;
+		}
+	}
+
+	private long segmentIndex(long position) {
+		return position / segmentSize;
+	}
+
+	private int positionInSegment(long position) {
+		return (int) (position % segmentSize);
+	}
+
+	private long segmentStart(long segmentIndex) {
+		return segmentIndex * segmentSize + QueueFormat.SEGMENT_HEADER_SIZE;
+	}
+
+	public synchronized void destroy() throws IOException {
+		if (destroyed) {
+			return;
+		}
+		destroyed = true;
+		checkpoints.cancel(false);
+		if (periodicFlush != null) {
+			periodicFlush.cancel(false);
+			flushDirtySegments();
+		}
+		QueueRecovery.close(this, meta);
+		closeSegmentsBefore(Long.MAX_VALUE);
+		if (inFlightIndex != null) {
+			inFlightIndex.destroy();
+		}
+		meta.destroy();
+	}
+
+	private void destroy(FileQueue segment) {
+		try {
+			segment.destroy();
+		} catch (IOException e) {
+			System.out.println("Problem while closing segment - " + segment.getQueueName());
+		}
+	}
+
+	/**
+	 * Deletes the meta file, every segment file and the in-flight index of the
+	 * queue.
+	 */
+	static void deleteFiles(String queueName) throws IOException {
+		File meta = new File(queueName + FileQueue.EXTENSION).getAbsoluteFile();
+		String segmentPrefix = new File(queueName).getName() + SEGMENT_SUFFIX;
+
+		File[] segmentFiles = meta.getParentFile().listFiles((dir, fileName) -> fileName.startsWith(segmentPrefix)
+				&& fileName.endsWith(FileQueue.EXTENSION) && fileName
+						.substring(segmentPrefix.length(), fileName.length() - FileQueue.EXTENSION.length())
+						.chars().allMatch(Character::isDigit));
+
+		if (segmentFiles != null) {
+			for (File segmentFile : segmentFiles) {
+				Files.deleteIfExists(segmentFile.toPath());
+			}
+		}
+		Files.deleteIfExists(new File(queueName + InFlightIndex.SUFFIX + FileQueue.EXTENSION).toPath());
+		Files.deleteIfExists(meta.toPath());
+	}
+}
@@ -0,0 +1,118 @@
+package com.wizenoze.assignment.messagequeue;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One channel per file for the whole JVM, for files that are locked with
+ * {@link java.nio.channels.FileLock}s. The locks of a process on a file are
+ * released when any channel of the process on the file is closed, so every
+ * instance mapping, reading or locking such a file goes through this one. It
+ * is reference-counted and only closed once the last user is done with it.
+ *
+ * A file replaced by another one at the same path, like a queue deleted and
+ * created again, gets a channel of its own.
+ */
+final class SharedChannel {
+
+	private static final Map<String, SharedChannel> OPEN = new HashMap<>();
+
+	private final String path;
+	private final FileChannel channel;
+	private final Object fileKey;
+
+	// The threads of the process take it before a FileLock of the file, see QueueLock
+	private final ReentrantLock threadLock = new ReentrantLock();
+
+	// Guarded by OPEN
+	private int references;
+
+	private SharedChannel(String path, FileChannel channel, Object fileKey) {
+		this.path = path;
+		this.channel = channel;
+		this.fileKey = fileKey;
+	}
+
+	/**
+	 * Opens the file, creating it if needed, or takes another reference to its
+	 * channel. Every call is paired with a {@link #close()}.
+	 */
+	static SharedChannel open(String path) throws IOException {
+		synchronized (OPEN) {
+			SharedChannel shared = OPEN.get(path);
+			if (shared == null || !shared.isCurrent()) {
+				FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE,
+						StandardOpenOption.READ, StandardOpenOption.WRITE);
+				try {
+					shared = new SharedChannel(path, channel, fileKey(Paths.get(path)));
+				} catch (IOException | RuntimeException exception) {
+					channel.close();
+					throw exception;
+				}
+				OPEN.put(path, shared);
+			}
+			shared.references++;
+			return shared;
+		}
+	}
+
+	private static Object fileKey(Path path) throws IOException {
+		return Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+	}
+
+	/**
+	 * Whether the path still names the file this channel was opened on.
+	 */
+	private boolean isCurrent() throws IOException {
+		try {
+			return fileKey != null && fileKey.equals(fileKey(Paths.get(path)));
+		} catch (NoSuchFileException exception) {
+			return false;
+		}
+	}
+
+	/**
+	 * Takes another reference to the channel, for a user that outlives the one
+	 * that opened it.
+	 */
+	void retain() {
+		synchronized (OPEN) {
+			references++;
+		}
+	}
+
+	FileChannel getChannel() {
+		return channel;
+	}
+
+	ReentrantLock getThreadLock() {
+		return threadLock;
+	}
+
+	String getPath() {
+		return path;
+	}
+
+	/**
+	 * Drops a reference, the last one closes the channel. Closed while no other
+	 * channel of the path can be opened, as that would release its locks.
+	 */
+	void close() throws IOException {
+		synchronized (OPEN) {
+			if (--references > 0) {
+				return;
+			}
+			OPEN.remove(path, this);
+			channel.close();
+		}
+	}
+}
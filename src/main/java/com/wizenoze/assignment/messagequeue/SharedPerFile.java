@@ -0,0 +1,66 @@
+package com.wizenoze.assignment.messagequeue;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * One object per file, shared by everything in the JVM that opened the file.
+ * The objects are only held weakly, so the entry of a file goes away once
+ * nothing uses its object any more, and a later user gets a new one.
+ */
+final class SharedPerFile<T> {
+
+	private static final class Entry<T> extends WeakReference<T> {
+
+		private final String path;
+
+		Entry(String path, T shared, ReferenceQueue<T> cleared) {
+			super(shared, cleared);
+			this.path = path;
+		}
+	}
+
+	private final Map<String, Entry<T>> entries = new ConcurrentHashMap<>();
+	private final ReferenceQueue<T> cleared = new ReferenceQueue<>();
+	private final Supplier<T> factory;
+
+	SharedPerFile(Supplier<T> factory) {
+		this.factory = factory;
+	}
+
+	T get(FileQueue file) {
+		removeCleared();
+		String path = file.getAbsolutePath();
+		while (true) {
+			Entry<T> entry = entries.get(path);
+			T shared = entry == null ? null : entry.get();
+			if (shared != null) {
+				return shared;
+			}
+
+			T created = factory.get();
+			Entry<T> replacement = new Entry<>(path, created, cleared);
+			if (entry == null ? entries.putIfAbsent(path, replacement) == null
+					: entries.replace(path, entry, replacement)) {
+				return created;
+			}
+		}
+	}
+
+	int size() {
+		removeCleared();
+		return entries.size();
+	}
+
+	private void removeCleared() {
+		Reference<? extends T> reference;
+		while ((reference = cleared.poll()) != null) {
+			Entry<?> entry = (Entry<?>) reference;
+			entries.remove(entry.path, entry);
+		}
+	}
+}
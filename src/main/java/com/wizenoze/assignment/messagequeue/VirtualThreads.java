@@ -0,0 +1,59 @@
+package com.wizenoze.assignment.messagequeue;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Virtual threads when running on Java 21 or later. The API is looked up
+ * reflectively, so the project still builds and runs on Java 17; the java21
+ * profile of the pom builds it for Java 21.
+ */
+public final class VirtualThreads {
+
+	private static final ThreadFactory FACTORY = lookupFactory();
+
+	private VirtualThreads() {
+	}
+
+	public static boolean isSupported() {
+		return FACTORY != null;
+	}
+
+	/**
+	 * @throws UnsupportedOperationException before Java 21
+	 */
+	public static ThreadFactory factory() {
+		if (FACTORY == null) {
+			throw new UnsupportedOperationException("Virtual threads need Java 21 - " + Runtime.version());
+		}
+		return FACTORY;
+	}
+
+	/**
+	 * Starts a new virtual thread for every task.
+	 *
+	 * @throws UnsupportedOperationException before Java 21
+	 */
+	public static ExecutorService newThreadPerTaskExecutor() {
+		ThreadFactory factory = factory();
+		try {
+			Method method = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+			return (ExecutorService) method.invoke(null, factory);
+		} catch (ReflectiveOperationException e) {
+			throw new UnsupportedOperationException("Virtual threads need Java 21 - " + Runtime.version(), e);
+		}
+	}
+
+	private static ThreadFactory lookupFactory() {
+		try {
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			Object ofVirtual = Thread.class.getMethod("ofVirtual").invoke(null);
+			ofVirtual = builder.getMethod("name", String.class, long.class).invoke(ofVirtual, "virtual-", 0L);
+			return (ThreadFactory) builder.getMethod("factory").invoke(ofVirtual);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+}
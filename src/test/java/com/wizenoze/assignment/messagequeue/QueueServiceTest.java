@@ -1,23 +1,47 @@
 package com.wizenoze.assignment.messagequeue;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.assertTrue;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
+import javax.management.MBeanServer;
+
+import org.apache.commons.lang3.StringUtils;
 import org.junit.AfterClass;
+import org.junit.Assume;
 import org.junit.Test;
 
 public class QueueServiceTest {
@@ -205,7 +229,7 @@ public class QueueServiceTest {
 
 		queueService.push("DeleteTestMessage1");
 		queueService.push("DeleteTestMessage2");
-		int deleteMessageId = queueService.push("DeleteTestMessage3");
+		long deleteMessageId = queueService.push("DeleteTestMessage3");
 		queueService.push("DeleteMessage4");
 
 		System.out.println("\nPushing these messages - " + Arrays.asList("DeleteTestMessage1", "DeleteTestMessage2",
@@ -226,7 +250,44 @@ public class QueueServiceTest {
 		assertEquals(3, consumedCount);
 	}
 
-	@Test(expected = IllegalArgumentException.class)
+	@Test
+	public void testDeletedRunsAndBackgroundRelease() throws IOException, InterruptedException {
+
+		System.out.println("\nTest name: testDeletedRunsAndBackgroundRelease \n");
+
+		String queueName = "testDeletedRuns" + UUID.randomUUID();
+		int segmentSize = QueueFormat.SEGMENT_HEADER_SIZE + 20 * QueueFormat.recordSize("message00".length(), false);
+		QueueService queueService = new FileBasedQueueService(queueName, segmentSize,
+				new QueueOptions().setCheckpointInterval(20, TimeUnit.MILLISECONDS));
+		List<Long> ids = queueService.pushAll(IntStream.range(10, 70).boxed().map(num -> "message" + num)
+				.collect(Collectors.toList()));
+
+		// Deleted last to first, the run is passed in one step
+		for (int index = 15; index > 1; index--) {
+			queueService.delete(ids.get(index));
+		}
+		FileQueue segment = new FileQueue(SegmentedQueue.getSegmentName(queueName, 0), segmentSize);
+		assertEquals((long) ids.get(16), segment.fetchInt(ids.get(2).intValue() + QueueFormat.RECORD_DEADLINE_OFFSET));
+		segment.destroy();
+
+		List<QueueMessage> received = queueService.receive(60, 30, TimeUnit.SECONDS);
+		assertEquals(46, received.size());
+		assertEquals(Arrays.asList("message10", "message11", "message26"), received.subList(0, 3).stream()
+				.map(QueueMessage::getBody).collect(Collectors.toList()));
+
+		// Acknowledging takes no lock, the consumed segments are released in the background
+		for (QueueMessage message : received) {
+			queueService.ack(message.getReceiptHandle());
+		}
+		File firstSegment = new File(SegmentedQueue.getSegmentName(queueName, 0) + FileQueue.EXTENSION);
+		for (int wait = 0; wait < 100 && firstSegment.exists(); wait++) {
+			Thread.sleep(20);
+		}
+		assertFalse(firstSegment.exists());
+		queueService.shutdown();
+	}
+
+	@Test
 	public void testDeleteFailsIfAlreadyProcessed() throws IOException, InterruptedException {
 
 		System.out.println("\nTest name: testDeleteFailsIfAlreadyProcessed \n");
@@ -236,7 +297,7 @@ public class QueueServiceTest {
 
 		queueService.push("DeleteTestMessage1");
 		queueService.push("DeleteTestMessage2");
-		int deleteMessageId = queueService.push("DeleteTestMessage3");
+		long deleteMessageId = queueService.push("DeleteTestMessage3");
 		queueService.push("DeleteMessage4");
 
 		CommonUtils.markPushEnd(queueName);
@@ -247,11 +308,392 @@ public class QueueServiceTest {
 		executeConsumer(executor, queueName, 1);
 
 		/*
-		 * Trying to delete consumed message will result in IllegalArgumentException
-		 * exception
+		 * Trying to delete consumed message tells that it was delivered already
 		 */
-		queueService.delete(deleteMessageId);
-		System.out.println("Illegal argument exception should be thrown");
+		assertEquals(DeleteResult.ALREADY_DELIVERED, queueService.delete(deleteMessageId));
+	}
+
+	@Test
+	public void testDeleteAll() throws IOException {
+
+		System.out.println("\nTest name: testDeleteAll \n");
+
+		String queueName = "deleteAll" + UUID.randomUUID();
+		QueueService queueService = new FileBasedQueueService(queueName, 1000);
+		List<Long> ids = queueService.pushAll(IntStream.range(0, 10).boxed().map(num -> "message" + num)
+				.collect(Collectors.toList()));
+
+		QueueMessage inFlight = queueService.receive(1, 30, TimeUnit.SECONDS).get(0);
+		queueService.ack(queueService.receive(1, 30, TimeUnit.SECONDS).get(0).getReceiptHandle());
+
+		// Ids inside a record, past the push position and negative are unknown
+		assertEquals(
+				Arrays.asList(DeleteResult.DELETED, DeleteResult.ALREADY_DELIVERED, DeleteResult.DELETED,
+						DeleteResult.DELETED, DeleteResult.DELETED, DeleteResult.UNKNOWN, DeleteResult.UNKNOWN,
+						DeleteResult.UNKNOWN, DeleteResult.DELETED),
+				queueService.deleteAll(Arrays.asList(ids.get(0), ids.get(1), ids.get(4), ids.get(2), ids.get(3),
+						ids.get(5) + 4, ids.get(9) + 1000, -1L, ids.get(4))));
+
+		// The message in flight was acknowledged by deleting it
+		assertFalse(queueService.ack(inFlight.getReceiptHandle()));
+		assertEquals(Arrays.asList("message5", "message6", "message7", "message8", "message9"),
+				queueService.receive(10, 30, TimeUnit.SECONDS).stream().map(QueueMessage::getBody)
+						.collect(Collectors.toList()));
+		queueService.shutdown();
+	}
+
+	@Test
+	public void testDelayedDelivery() throws IOException, InterruptedException {
+
+		System.out.println("\nTest name: testDelayedDelivery \n");
+
+		String queueName = "testDelayed" + UUID.randomUUID();
+		// Delayed messages wait apart, so they are not limited like messages in flight
+		FileBasedQueueService queueService = new FileBasedQueueService(queueName, 1000,
+				new QueueOptions().setMaxInFlight(1));
+
+		long start = System.currentTimeMillis();
+		queueService.push("later", 300, TimeUnit.MILLISECONDS);
+		long cancelled = queueService.push("cancelled", 300, TimeUnit.MILLISECONDS);
+		queueService.push("soon", Instant.now().plus(1, ChronoUnit.HOURS));
+		queueService.push("now");
+		assertEquals(0, queueService.getMetrics().getInFlightCount());
+
+		// Delays are between 0 and QueueOptions.MAX_VISIBILITY_TIMEOUT
+		FileBasedQueueService delaying = queueService;
+		assertThrows(IllegalArgumentException.class,
+				() -> delaying.push("past", Instant.now().minus(1, ChronoUnit.MINUTES)));
+		assertThrows(IllegalArgumentException.class, () -> delaying.push("tomorrow", 1, TimeUnit.DAYS));
+
+		// Delayed messages are passed until they are due
+		List<QueueMessage> now = queueService.receive(10, 30, TimeUnit.SECONDS);
+		assertEquals(Arrays.asList("now"), now.stream().map(QueueMessage::getBody).collect(Collectors.toList()));
+		assertTrue(queueService.ack(now.get(0).getReceiptHandle()));
+		assertEquals(DeleteResult.DELETED, queueService.delete(cancelled));
+		assertEquals(DeleteResult.DELETED, queueService.delete(cancelled));
+
+		// They are kept in the queue files
+		queueService.shutdown();
+		queueService = new FileBasedQueueService(queueName, 1000, new QueueOptions().setMaxInFlight(1));
+
+		List<QueueMessage> received = queueService.receive(10, 30, 5, TimeUnit.SECONDS);
+		assertTrue(System.currentTimeMillis() - start >= 300);
+		assertEquals(Arrays.asList("later"),
+				received.stream().map(QueueMessage::getBody).collect(Collectors.toList()));
+		assertEquals(1, received.get(0).getReceiptHandle().getReceiveCount());
+		assertTrue(queueService.ack(received.get(0).getReceiptHandle()));
+
+		assertTrue(queueService.receive(10, 30, TimeUnit.SECONDS).isEmpty());
+		queueService.shutdown();
+	}
+
+	@Test
+	public void testPriorityLanes() throws IOException {
+
+		System.out.println("\nTest name: testPriorityLanes \n");
+
+		String queueName = "testPriority" + UUID.randomUUID();
+		PriorityQueueService queueService = new PriorityQueueService(queueName, 3, 1000).setWeights(1, 1, 3);
+		for (int num = 0; num < 10; num++) {
+			queueService.push("low" + num, 0);
+		}
+		long urgent = queueService.push("urgent", 2);
+		assertEquals(2, PriorityQueueService.priorityOf(urgent));
+
+		// Pushed last, delivered first
+		QueueMessage first = queueService.receive(1, 30, TimeUnit.SECONDS).get(0);
+		assertEquals("urgent", first.getBody());
+		assertTrue(queueService.ack(first.getReceiptHandle()));
+
+		// The low lane gets its turn after the high lane was served its weight
+		for (int num = 0; num < 10; num++) {
+			queueService.push("high" + num, 2);
+		}
+		List<Integer> priorities = new ArrayList<>();
+		for (int num = 0; num < 8; num++) {
+			QueueMessage message = queueService.receive(1, 30, TimeUnit.SECONDS).get(0);
+			priorities.add(PriorityQueueService.priorityOf(message.getId()));
+			assertTrue(queueService.ack(message.getReceiptHandle()));
+		}
+		assertEquals(Arrays.asList(2, 2, 0, 2, 2, 2, 0, 2), priorities);
+
+		assertEquals(DeleteResult.DELETED, queueService.delete(queueService.push("cancelled", 1)));
+		assertEquals(12, queueService.receive(20, 30, TimeUnit.SECONDS).size()
+				+ queueService.receive(20, 30, TimeUnit.SECONDS).size());
+
+		// Batches go to the low lane
+		long[] batch = queueService.pushPayloads(Arrays.asList(ByteBuffer.wrap(new byte[] { 1 }),
+				ByteBuffer.wrap(new byte[] { 2 })));
+		assertEquals(0, PriorityQueueService.priorityOf(batch[1]));
+		QueueMessage pushed = queueService.receive(1, 30, TimeUnit.SECONDS).get(0);
+		assertEquals(batch[0], pushed.getId());
+		queueService.shutdown();
+	}
+
+	@Test
+	public void testAllocationFreeHotPath() throws IOException {
+
+		System.out.println("\nTest name: testAllocationFreeHotPath \n");
+
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		Assume.assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+
+		String queueName = "testAllocation" + UUID.randomUUID();
+		FileBasedQueueService queueService = new FileBasedQueueService(queueName, 16 << 20,
+				new QueueOptions().setChecksums(true));
+		ByteBuffer payload = ByteBuffer.allocateDirect(64);
+		MessageView[] views = new MessageView[100];
+		for (int index = 0; index < views.length; index++) {
+			views[index] = new MessageView();
+		}
+
+		int messages = 10000;
+		for (int round = 0; round < 3; round++) {
+			long start = threads.getCurrentThreadAllocatedBytes();
+			for (int num = 0; num < messages; num++) {
+				queueService.push(payload);
+			}
+			long pushed = threads.getCurrentThreadAllocatedBytes();
+
+			int received = 0;
+			while (received < messages) {
+				int filled = queueService.receive(views, 30, TimeUnit.SECONDS);
+				for (int index = 0; index < filled; index++) {
+					assertEquals(64, views[index].getPayload().remaining());
+					assertTrue(queueService.ack(views[index]));
+				}
+				received += filled;
+			}
+			long consumed = threads.getCurrentThreadAllocatedBytes();
+
+			if (round == 2) {
+				// Nothing per message, a few one-off allocations of the JVM aside
+				assertTrue(pushed - start < 1024);
+				// The FileLock of the head lock is allocated once per batch of 100 messages
+				assertTrue(consumed - pushed < messages * 8);
+			}
+		}
+		queueService.shutdown();
+	}
+
+	@Test
+	public void testCompression() throws IOException {
+
+		System.out.println("\nTest name: testCompression \n");
+
+		String queueName = "testCompression" + UUID.randomUUID();
+		FileBasedQueueService compressing = new FileBasedQueueService(queueName, 1 << 20,
+				new QueueOptions().setChecksums(true).setCompression(PayloadCodec.DEFLATE, 256));
+		FileBasedQueueService plain = new FileBasedQueueService(queueName, 1 << 20, new QueueOptions());
+
+		StringBuilder builder = new StringBuilder();
+		for (int index = 0; index < 200; index++) {
+			builder.append("line ").append(index % 10).append(" of a repetitive document\u00e9\n");
+		}
+		String large = builder.toString();
+		int rawSize = large.getBytes(StandardCharsets.UTF_8).length;
+
+		long start = compressing.getPushPosition();
+		compressing.push(large);
+		assertTrue(compressing.getPushPosition() - start < rawSize / 4);
+
+		// Below the threshold, from a producer without compression, and in a batch
+		compressing.push("small");
+		plain.push(large);
+		start = compressing.getPushPosition();
+		compressing.pushAll(Arrays.asList(large, "small"));
+		assertTrue(compressing.getPushPosition() - start < rawSize / 4);
+
+		// Consumers restore at most a segment, so larger payloads are rejected even if they compress
+		assertThrows(BufferOverflowException.class, () -> compressing.push(ByteBuffer.allocate(2 << 20)));
+		ByteBuffer forged = ByteBuffer.allocate(64).putInt(Integer.MAX_VALUE).rewind();
+		assertThrows(CorruptedRecordException.class, () -> PayloadCodec.DEFLATE.decompress(forged, 1 << 20));
+
+		List<QueueMessage> messages = plain.receive(2, 30, TimeUnit.SECONDS);
+		assertEquals(large, messages.get(0).getBody());
+		assertEquals("small", messages.get(1).getBody());
+		for (QueueMessage message : messages) {
+			assertTrue(plain.ack(message.getReceiptHandle()));
+		}
+
+		MessageView[] views = { new MessageView(), new MessageView(), new MessageView() };
+		assertEquals(3, compressing.receive(views, 30, TimeUnit.SECONDS));
+		for (MessageView view : views) {
+			assertEquals(view == views[2] ? "small" : large,
+					StandardCharsets.UTF_8.decode(view.getPayload()).toString());
+			assertTrue(compressing.ack(view));
+		}
+		assertTrue(compressing.isIdle());
+
+		compressing.shutdown();
+		plain.shutdown();
+	}
+
+	@Test
+	public void testDeduplication() throws Exception {
+
+		System.out.println("\nTest name: testDeduplication \n");
+
+		String queueName = "testDeduplication" + UUID.randomUUID();
+		QueueOptions options = new QueueOptions().setDeduplication(1024, 500, TimeUnit.MILLISECONDS);
+		FileBasedQueueService first = new FileBasedQueueService(queueName, 1 << 20, options);
+		FileBasedQueueService second = new FileBasedQueueService(queueName, 1 << 20, options);
+
+		long id = first.push("order", "order-1");
+		assertEquals(id, first.push("order", "order-1"));
+		assertEquals(id, second.push("order again", "order-1"));
+		assertTrue(second.push("other order", "order-2") != id);
+
+		// Producers racing with the same ids push each message once
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		List<Future<List<Long>>> results = new ArrayList<>();
+		for (int producer = 0; producer < 4; producer++) {
+			FileBasedQueueService queueService = producer % 2 == 0 ? first : second;
+			results.add(executor.submit(() -> {
+				List<Long> ids = new ArrayList<>();
+				for (int num = 0; num < 200; num++) {
+					ids.add(queueService.push("message" + num, "message-" + num));
+				}
+				return ids;
+			}));
+		}
+		for (Future<List<Long>> result : results) {
+			assertEquals(results.get(0).get(), result.get());
+		}
+		executor.shutdown();
+		assertEquals(202, first.receive(1000, 30, TimeUnit.SECONDS).size());
+
+		// Pushed again once the window has passed
+		Thread.sleep(600);
+		assertTrue(first.push("order", "order-1") != id);
+		assertEquals(1, second.receive(10, 30, TimeUnit.SECONDS).size());
+
+		first.shutdown();
+		second.shutdown();
+	}
+
+	@Test
+	public void testDeduplicationAfterProducerDied() throws IOException {
+
+		System.out.println("\nTest name: testDeduplicationAfterProducerDied \n");
+
+		String queueName = "testDeduplicationAfterProducerDied" + UUID.randomUUID();
+		FileBasedQueueService queueService = new FileBasedQueueService(queueName, 1 << 20);
+
+		/*
+		 * One producer dies after writing its message but before completing its
+		 * claim, another one after reserving the space of its message
+		 */
+		DeduplicationTable table = new DeduplicationTable(queueName, 1024, TimeUnit.MINUTES.toMillis(5));
+		long written = DeduplicationTable.keyOf("order-1");
+		long reserved = DeduplicationTable.keyOf("order-2");
+		assertEquals(DeduplicationTable.CLAIMED, table.claim(written, position -> false));
+		assertEquals(DeduplicationTable.CLAIMED, table.claim(reserved, position -> false));
+
+		SegmentedQueue producer = new SegmentedQueue(queueName, 1 << 20, new QueueOptions());
+		long id = producer.append(ByteBuffer.wrap("order".getBytes(StandardCharsets.UTF_8)),
+				MessageStatus.UNPROCESSED, position -> table.reserve(written, position));
+		table.reserve(reserved, producer.getPushPosition() + QueueFormat.RECORD_ALIGNMENT);
+
+		// Their claims time out
+		File tableFile = new File(queueName + DeduplicationTable.SUFFIX + FileQueue.EXTENSION);
+		FileQueue entries = new FileQueue(queueName + DeduplicationTable.SUFFIX, (int) tableFile.length());
+		for (int at = 0; at < entries.getStorageSize(); at += Long.BYTES) {
+			long hash = entries.fetchLong(at);
+			if (hash == written || hash == reserved) {
+				entries.writeLong(System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(1), at + Long.BYTES);
+			}
+		}
+
+		assertEquals(id, queueService.push("order", "order-1"));
+		long pushed = queueService.push("other order", "order-2");
+		assertEquals(Arrays.asList("order", "other order"), queueService.receive(10, 30, TimeUnit.SECONDS).stream()
+				.map(QueueMessage::getBody).collect(Collectors.toList()));
+		assertEquals(pushed, queueService.push("other order", "order-2"));
+
+		entries.destroy();
+		producer.destroy();
+		table.close();
+		queueService.shutdown();
+	}
+
+	@Test
+	public void testAsyncProducer() throws Exception {
+
+		System.out.println("\nTest name: testAsyncProducer \n");
+
+		String queueName = "testAsyncProducer" + UUID.randomUUID();
+		FileBasedQueueService queueService = new FileBasedQueueService(queueName, 1 << 20);
+		AsyncProducer producer = new AsyncProducer(queueService, 64, Backpressure.BLOCK);
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		List<Future<List<Long>>> results = new ArrayList<>();
+		for (int thread = 0; thread < 4; thread++) {
+			String prefix = "producer" + thread + "-";
+			results.add(executor.submit(() -> {
+				List<CompletableFuture<Long>> futures = new ArrayList<>();
+				for (int num = 0; num < 500; num++) {
+					futures.add(producer.pushAsync(prefix + num));
+				}
+				List<Long> ids = new ArrayList<>();
+				for (CompletableFuture<Long> future : futures) {
+					ids.add(future.join());
+				}
+				return ids;
+			}));
+		}
+		HashSet<Long> ids = new HashSet<>();
+		for (Future<List<Long>> result : results) {
+			List<Long> producerIds = result.get();
+			List<Long> sorted = new ArrayList<>(producerIds);
+			Collections.sort(sorted);
+			// Written in the order each producer pushed them
+			assertEquals(sorted, producerIds);
+			ids.addAll(producerIds);
+		}
+		executor.shutdown();
+		producer.shutdown();
+		assertEquals(2000, ids.size());
+		assertTrue(producer.pushAsync("too late").isCompletedExceptionally());
+		queueService.shutdown();
+
+		for (Backpressure backpressure : Arrays.asList(Backpressure.FAIL_FAST, Backpressure.DROP_OLDEST)) {
+			// A writer held up, so the buffer of two fills
+			CountDownLatch release = new CountDownLatch(1);
+			FileBasedQueueService slowQueue = new FileBasedQueueService(queueName + backpressure, 1 << 20) {
+				@Override
+				public long push(ByteBuffer payload) throws IOException {
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						throw new IOException(e);
+					}
+					return super.push(payload);
+				}
+			};
+			AsyncProducer slowProducer = new AsyncProducer(slowQueue, 2, backpressure);
+			CompletableFuture<Long> first = slowProducer.pushAsync("first");
+			while (slowProducer.getBuffered() > 0) {
+				Thread.sleep(1);
+			}
+			CompletableFuture<Long> second = slowProducer.pushAsync("second");
+			CompletableFuture<Long> third = slowProducer.pushAsync("third");
+			CompletableFuture<Long> fourth = slowProducer.pushAsync("fourth");
+			release.countDown();
+			slowProducer.shutdown();
+
+			assertTrue(first.get() >= 0);
+			assertTrue(third.get() >= 0);
+			if (backpressure == Backpressure.FAIL_FAST) {
+				assertTrue(second.get() >= 0);
+				assertTrue(fourth.isCompletedExceptionally());
+			} else {
+				assertTrue(second.isCompletedExceptionally());
+				assertTrue(fourth.get() >= 0);
+			}
+			slowQueue.shutdown();
+		}
 	}
 
 	/*
@@ -311,11 +753,958 @@ public class QueueServiceTest {
 		assertEquals(2, Collections.frequency(collectedMessages, sentinelMessage));
 	}
 
+	@Test
+	public void testLegacyQueueFileIsMigrated() throws IOException, InterruptedException {
+
+		System.out.println("\nTest name: testLegacyQueueFileIsMigrated \n");
+
+		String queueName = "testLegacyQueueFileIsMigrated" + UUID.randomUUID();
+
+		/*
+		 * Legacy layout: pull and push pointers followed by records, every int written
+		 * as 32 '0'/'1' characters and every status as 4. The first message is
+		 * already consumed and the third one is deleted.
+		 */
+		String[] messages = { "Consumed", "Legacy1", "Deleted", "Legacy2" };
+		int[] statuses = { 2, 0, 3, 0 };
+
+		StringBuilder records = new StringBuilder();
+		int secondRecordPosition = 0;
+		for (int i = 0; i < messages.length; i++) {
+			if (i == 1) {
+				secondRecordPosition = 64 + records.length();
+			}
+			records.append(legacyInt(messages[i].length(), 32)).append(messages[i]).append(legacyInt(statuses[i], 4));
+		}
+		String legacyFile = legacyInt(secondRecordPosition, 32) + legacyInt(64 + records.length(), 32) + records;
+
+		try (FileOutputStream out = new FileOutputStream(queueName + FileQueue.EXTENSION)) {
+			out.write(legacyFile.getBytes(StandardCharsets.US_ASCII));
+		}
+
+		QueueService queueService = new FileBasedQueueService(queueName, 1000);
+		CommonUtils.markPushEnd(queueName);
+
+		ConsumerExecutor executor = new ConsumerExecutor().setDatasourceSize(1000).dontPrintMessages()
+				.collectMessages();
+		executeConsumer(executor, queueName, 1);
+		queueService.shutdown();
+
+		List<String> collectedMessages = new ArrayList<>(executor.getMessages());
+		System.out.println("Consumed messages - " + collectedMessages);
+		assertEquals(Arrays.asList("Legacy1", "Legacy2"), collectedMessages);
+	}
+
+	@Test
+	public void testCorruptedMessageIsSkippedWithChecksums() throws IOException {
+
+		System.out.println("\nTest name: testCorruptedMessageIsSkippedWithChecksums \n");
+
+		String queueName = "testChecksums" + UUID.randomUUID();
+		QueueService queueService = new FileBasedQueueService(queueName, 1000,
+				new QueueOptions().setChecksums(true));
+
+		long corruptedMessageId = queueService.push("Corrupted");
+		queueService.push("Intact");
+
+		FileQueue segment = new FileQueue(SegmentedQueue.getSegmentName(queueName, 0), 1000);
+		segment.writeByte('X', (int) corruptedMessageId + QueueFormat.RECORD_HEADER_SIZE);
+		segment.destroy();
+
+		assertEquals(null, queueService.pull());
+		assertEquals("Intact", queueService.pull());
+		queueService.shutdown();
+	}
+
+	@Test
+	public void testCrashRecovery() throws IOException {
+
+		System.out.println("\nTest name: testCrashRecovery \n");
+
+		String queueName = "testCrashRecovery" + UUID.randomUUID();
+		QueueService queueService = new FileBasedQueueService(queueName, 1000);
+		queueService.pushAll(Arrays.asList("Message1", "Message2"));
+		assertEquals("Message1", queueService.receive(1, 30, TimeUnit.SECONDS).get(0).getBody());
+
+		/*
+		 * One producer dies right after reserving its record, another one after
+		 * writing its length, while the others go on
+		 */
+		FileQueue meta = new FileQueue(queueName, QueueFormat.META_SIZE);
+		FileQueue segment = new FileQueue(SegmentedQueue.getSegmentName(queueName, 0), 1000);
+		reserve(meta, 32);
+		queueService.push("Message3");
+		long torn = reserve(meta, QueueFormat.recordSize(8, false));
+		segment.writeLength(8, (int) torn);
+		segment.writeBytes("Torn".getBytes(StandardCharsets.UTF_8), (int) torn + QueueFormat.RECORD_HEADER_SIZE);
+		queueService.push("Message4");
+
+		// The consumer dies as well, without ever acknowledging Message1
+		queueService.shutdown();
+		meta.writeInt(1, QueueFormat.OPEN_OFFSET);
+
+		FileBasedQueueService recovered = new FileBasedQueueService(queueName, 1000);
+		List<String> bodies = recovered.receive(10, 30, TimeUnit.SECONDS).stream().map(QueueMessage::getBody)
+				.collect(Collectors.toList());
+		assertEquals(Arrays.asList("Message1", "Message2", "Message3", "Message4"), bodies);
+		assertEquals(4, recovered.getMetrics().getInFlightCount());
+
+		// Died last with a reservation at the end of the queue
+		reserve(meta, 32);
+		recovered.shutdown();
+		meta.writeInt(1, QueueFormat.OPEN_OFFSET);
+
+		recovered = new FileBasedQueueService(queueName, 1000);
+		recovered.push("Message5");
+		List<QueueMessage> received = recovered.receive(10, 30, TimeUnit.SECONDS);
+		assertEquals("Message5", received.get(received.size() - 1).getBody());
+
+		segment.destroy();
+		meta.destroy();
+		recovered.shutdown();
+	}
+
+	/**
+	 * Reserves space at the push position like a producer and returns its
+	 * position.
+	 */
+	private static long reserve(FileQueue meta, int size) {
+		long pushPosition = meta.fetchLongVolatile(QueueFormat.PUSH_POSITION_OFFSET);
+		assertTrue(meta.compareAndSetLong(pushPosition, pushPosition + size, QueueFormat.PUSH_POSITION_OFFSET));
+		return pushPosition;
+	}
+
+	@Test
+	public void testSegmentRolloverAndRelease() throws IOException {
+
+		System.out.println("\nTest name: testSegmentRolloverAndRelease \n");
+
+		String queueName = "testSegmentRollover" + UUID.randomUUID();
+
+		/*
+		 * 4 messages per segment, so 100 messages need 25 segment files
+		 */
+		int segmentSize = QueueFormat.SEGMENT_HEADER_SIZE + 4 * QueueFormat.recordSize("message00".length(), false);
+		QueueService queueService = new FileBasedQueueService(queueName, segmentSize);
+
+		List<String> pushList = IntStream.range(0, 100).boxed().map(num -> String.format("message%02d", num))
+				.collect(Collectors.toList());
+		for (String message : pushList) {
+			queueService.push(message);
+		}
+		assertTrue(new File(SegmentedQueue.getSegmentName(queueName, 24) + FileQueue.EXTENSION).exists());
+
+		List<String> collectedMessages = new ArrayList<>();
+		String message;
+		while ((message = queueService.pull()) != null) {
+			collectedMessages.add(message);
+		}
+		queueService.shutdown();
+
+		assertEquals(pushList, collectedMessages);
+		assertFalse(new File(SegmentedQueue.getSegmentName(queueName, 0) + FileQueue.EXTENSION).exists());
+		assertFalse(new File(SegmentedQueue.getSegmentName(queueName, 23) + FileQueue.EXTENSION).exists());
+		assertTrue(new File(SegmentedQueue.getSegmentName(queueName, 24) + FileQueue.EXTENSION).exists());
+	}
+
+	@Test
+	public void testConcurrentPushOnSharedInstance() throws Exception {
+
+		System.out.println("\nTest name: testConcurrentPushOnSharedInstance \n");
+
+		String queueName = "testConcurrentPush" + UUID.randomUUID();
+
+		/*
+		 * Small segments so that producers also race on rolling over
+		 */
+		QueueService queueService = new FileBasedQueueService(queueName, 512);
+		int producerCount = 4;
+		int messageCount = 1000;
+
+		ExecutorService producers = Executors.newFixedThreadPool(producerCount);
+		List<Future<?>> futures = new ArrayList<>();
+		for (int producer = 0; producer < producerCount; producer++) {
+			String producerId = "producer" + producer;
+			futures.add(producers.submit(() -> {
+				for (int i = 0; i < messageCount; i++) {
+					queueService.push(producerId + "-" + i);
+				}
+				return null;
+			}));
+		}
+		for (Future<?> future : futures) {
+			future.get();
+		}
+		producers.shutdown();
+
+		List<String> collectedMessages = new ArrayList<>();
+		String message;
+		while ((message = queueService.pull()) != null) {
+			collectedMessages.add(message);
+		}
+		queueService.shutdown();
+
+		assertEquals(producerCount * messageCount, collectedMessages.size());
+		assertEquals(producerCount * messageCount, new HashSet<>(collectedMessages).size());
+
+		/*
+		 * Per producer FIFO order is kept
+		 */
+		for (int producer = 0; producer < producerCount; producer++) {
+			String prefix = "producer" + producer + "-";
+			List<String> producerMessages = collectedMessages.stream().filter(pulled -> pulled.startsWith(prefix))
+					.collect(Collectors.toList());
+			assertEquals(IntStream.range(0, messageCount).mapToObj(i -> prefix + i).collect(Collectors.toList()),
+					producerMessages);
+		}
+	}
+
+	@Test
+	public void testBinaryPayload() throws IOException {
+
+		System.out.println("\nTest name: testBinaryPayload \n");
+
+		String queueName = "testBinaryPayload" + UUID.randomUUID();
+		QueueService queueService = new FileBasedQueueService(queueName, 1000, new QueueOptions().setChecksums(true));
+
+		byte[] binary = { 0, (byte) 0xFF, (byte) 0xC3, 42 };
+		ByteBuffer pushed = ByteBuffer.wrap(binary);
+		queueService.push(pushed);
+		assertEquals(0, pushed.position());
+
+		String multibyte = "Gr\u00f6\u00dfe \u2713";
+		queueService.push(multibyte);
+
+		List<QueueMessage> received = queueService.receive(2, 10, TimeUnit.SECONDS);
+		ByteBuffer payload = received.get(0).getPayload();
+		assertTrue(payload.isReadOnly());
+		assertEquals(ByteBuffer.wrap(binary), payload);
+		assertEquals(multibyte, received.get(1).getBody());
+
+		ByteBuffer copy = ByteBuffer.allocate(64);
+		copy.put(received.get(1).getPayload()).flip();
+		assertEquals(multibyte, StandardCharsets.UTF_8.decode(copy).toString());
+
+		for (QueueMessage message : received) {
+			assertTrue(queueService.ack(message.getReceiptHandle()));
+		}
+
+		// An id pointing into a payload that looks like a record is not taken for one
+		ByteBuffer forged = ByteBuffer.allocate(QueueFormat.RECORD_HEADER_SIZE + 4).order(ByteOrder.LITTLE_ENDIAN);
+		forged.putInt(QueueFormat.RECORD_LENGTH_OFFSET, 4).put(QueueFormat.RECORD_STATUS_OFFSET,
+				(byte) MessageStatus.UNPROCESSED.status);
+		long forgedId = queueService.push(forged);
+		assertEquals(DeleteResult.UNKNOWN, queueService.delete(forgedId + QueueFormat.RECORD_HEADER_SIZE));
+		assertEquals(forged, queueService.receive(1, 10, TimeUnit.SECONDS).get(0).getPayload());
+		queueService.shutdown();
+	}
+
+	@Test
+	public void testDurabilityModes() throws Exception {
+
+		System.out.println("\nTest name: testDurabilityModes \n");
+
+		for (Durability durability : Durability.values()) {
+			String queueName = "testDurabilityModes" + durability + UUID.randomUUID();
+			QueueService queueService = new FileBasedQueueService(queueName, 4096,
+					new QueueOptions().setDurability(durability).setFlushInterval(10, TimeUnit.MILLISECONDS));
+
+			ExecutorService producers = Executors.newFixedThreadPool(4);
+			List<Future<?>> results = new ArrayList<>();
+			for (int producer = 0; producer < 4; producer++) {
+				int id = producer;
+				results.add(producers.submit(() -> {
+					for (int message = 0; message < 50; message++) {
+						queueService.push("producer" + id + ":" + message);
+					}
+					queueService.pushAll(Arrays.asList("batch" + id + ":0", "batch" + id + ":1"));
+					return null;
+				}));
+			}
+			for (Future<?> result : results) {
+				result.get();
+			}
+			producers.shutdown();
+
+			assertEquals(durability + " messages", 4 * 52, queueService.receive(1000, 10, TimeUnit.SECONDS).size());
+			queueService.shutdown();
+		}
+	}
+
+	@Test
+	public void testPrefetch() throws IOException {
+
+		System.out.println("\nTest name: testPrefetch \n");
+
+		String queueName = "testPrefetch" + UUID.randomUUID();
+		List<String> pushList = IntStream.range(0, 40).boxed().map(num -> "message" + num)
+				.collect(Collectors.toList());
+
+		QueueService consumer = new FileBasedQueueService(queueName, 4096, new QueueOptions().setPrefetch(16)) {
+
+			@Override
+			public boolean processMessage(String message) {
+				return true;
+			}
+		};
+		consumer.pushAll(pushList);
+		CommonUtils.markPushEnd(queueName);
+
+		List<String> pulled = new ArrayList<>();
+		for (int i = 0; i < 20; i++) {
+			pulled.add(consumer.pull());
+		}
+		assertEquals(pushList.subList(0, 20), pulled);
+
+		/*
+		 * The 12 prefetched messages not pulled yet go back to the queue
+		 */
+		consumer.shutdown();
+
+		QueueService queueService = new FileBasedQueueService(queueName, 4096);
+		List<QueueMessage> received = queueService.receive(100, 10, TimeUnit.SECONDS);
+		assertEquals(new HashSet<>(pushList.subList(20, 40)),
+				received.stream().map(QueueMessage::getBody).collect(Collectors.toSet()));
+		for (QueueMessage message : received) {
+			assertEquals(1, message.getReceiptHandle().getReceiveCount());
+			queueService.ack(message.getReceiptHandle());
+		}
+		assertTrue(queueService.hasAllMessagesConsumed());
+		queueService.shutdown();
+	}
+
+	@Test
+	public void testBatchPushAndPull() throws IOException {
+
+		System.out.println("\nTest name: testBatchPushAndPull \n");
+
+		String queueName = "testBatchPushAndPull" + UUID.randomUUID();
+
+		/*
+		 * 4 messages per segment, so a batch spans several segments
+		 */
+		int segmentSize = QueueFormat.SEGMENT_HEADER_SIZE + 4 * QueueFormat.recordSize("message00".length(), false);
+		QueueService queueService = new FileBasedQueueService(queueName, segmentSize);
+
+		List<String> pushList = IntStream.range(0, 30).boxed().map(num -> String.format("message%02d", num))
+				.collect(Collectors.toList());
+		List<Long> ids = queueService.pushAll(pushList);
+		assertEquals(pushList.size(), new HashSet<>(ids).size());
+
+		queueService.delete(ids.get(5));
+
+		List<QueueMessage> pulled = new ArrayList<>();
+		List<QueueMessage> batch;
+		while (!(batch = queueService.pull(7)).isEmpty()) {
+			assertTrue(batch.size() <= 7);
+			pulled.addAll(batch);
+		}
+		queueService.shutdown();
+
+		List<String> expected = new ArrayList<>(pushList);
+		expected.remove(5);
+		assertEquals(expected, pulled.stream().map(QueueMessage::getBody).collect(Collectors.toList()));
+
+		List<Long> expectedIds = new ArrayList<>(ids);
+		expectedIds.remove(5);
+		assertEquals(expectedIds, pulled.stream().map(QueueMessage::getId).collect(Collectors.toList()));
+	}
+
+	@Test
+	public void testMessageCountWithBatches() throws IOException, InterruptedException {
+
+		System.out.println("\nTest name: testMessageCountWithBatches \n");
+
+		String queueName = "testMessageCountWithBatches" + UUID.randomUUID();
+
+		int datasourceSize = 1024 * 5;
+		int producerThreadCount = 3;
+		int consumerThreadCount = 2;
+
+		int produceCountPerThread = 1005;
+
+		ProducerExecutor producerExecutor = new ProducerExecutor().setBatchSize(64);
+		producerExecutor.setDatasourceSize(datasourceSize);
+		producerExecutor.execute(queueName, produceCountPerThread, producerThreadCount);
+
+		ConsumerExecutor executor = new ConsumerExecutor().setBatchSize(50);
+		executor.setDatasourceSize(datasourceSize);
+		executor.dontPrintMessages();
+
+		executeConsumer(executor, queueName, consumerThreadCount);
+
+		assertEquals(produceCountPerThread * producerThreadCount, executor.getTotalMessageConsumed());
+	}
+
+	@Test
+	public void testUnacknowledgedMessageIsDeliveredAgain() throws IOException, InterruptedException {
+
+		System.out.println("\nTest name: testUnacknowledgedMessageIsDeliveredAgain \n");
+
+		String queueName = "testRedelivery" + UUID.randomUUID();
+
+		/*
+		 * 4 messages per segment, the segment of the lost message has to be kept
+		 */
+		int segmentSize = QueueFormat.SEGMENT_HEADER_SIZE + 4 * QueueFormat.recordSize("message00".length(), false);
+		QueueService crashingConsumer = new FileBasedQueueService(queueName, segmentSize);
+		List<String> pushList = IntStream.range(0, 12).boxed().map(num -> String.format("message%02d", num))
+				.collect(Collectors.toList());
+		crashingConsumer.pushAll(pushList);
+		CommonUtils.markPushEnd(queueName);
+
+		List<QueueMessage> received = crashingConsumer.receive(2, 200, TimeUnit.MILLISECONDS);
+		assertEquals(Arrays.asList("message00", "message01"),
+				received.stream().map(QueueMessage::getBody).collect(Collectors.toList()));
+		assertTrue(crashingConsumer.ack(received.get(0).getReceiptHandle()));
+		assertFalse(crashingConsumer.ack(received.get(0).getReceiptHandle()));
+
+		/*
+		 * message01 is never acknowledged, as if its consumer died
+		 */
+		crashingConsumer.shutdown();
+
+		QueueService queueService = new FileBasedQueueService(queueName, segmentSize);
+		List<String> collectedMessages = new ArrayList<>();
+		for (QueueMessage message : queueService.receive(20, 1, TimeUnit.SECONDS)) {
+			collectedMessages.add(message.getBody());
+			assertTrue(queueService.ack(message.getReceiptHandle()));
+		}
+		assertEquals(pushList.subList(2, 12), collectedMessages);
+		assertFalse(queueService.hasAllMessagesConsumed());
+		assertTrue(new File(SegmentedQueue.getSegmentName(queueName, 0) + FileQueue.EXTENSION).exists());
+
+		Thread.sleep(300);
+
+		List<QueueMessage> redelivered = queueService.receive(20, 1, TimeUnit.SECONDS);
+		assertEquals(1, redelivered.size());
+		assertEquals("message01", redelivered.get(0).getBody());
+		assertEquals(2, redelivered.get(0).getReceiptHandle().getReceiveCount());
+		assertFalse(queueService.ack(received.get(1).getReceiptHandle()));
+		assertTrue(queueService.ack(redelivered.get(0).getReceiptHandle()));
+
+		assertTrue(queueService.hasAllMessagesConsumed());
+
+		queueService.push("message12");
+		assertEquals("message12", queueService.pull());
+		assertFalse(new File(SegmentedQueue.getSegmentName(queueName, 0) + FileQueue.EXTENSION).exists());
+		queueService.shutdown();
+	}
+
+	@Test
+	public void testExtendVisibility() throws IOException, InterruptedException {
+
+		System.out.println("\nTest name: testExtendVisibility \n");
+
+		String queueName = "testExtendVisibility" + UUID.randomUUID();
+		QueueService queueService = new FileBasedQueueService(queueName, 1000);
+		queueService.push("SlowMessage");
+
+		ReceiptHandle receipt = queueService.receive(1, 200, TimeUnit.MILLISECONDS).get(0).getReceiptHandle();
+		assertTrue(queueService.extendVisibility(receipt, 10, TimeUnit.SECONDS));
+
+		Thread.sleep(300);
+		assertTrue(queueService.receive(1, 1, TimeUnit.SECONDS).isEmpty());
+
+		assertTrue(queueService.ack(receipt));
+		assertFalse(queueService.extendVisibility(receipt, 10, TimeUnit.SECONDS));
+		queueService.shutdown();
+	}
+
+	@Test
+	public void testAckWithoutHeadLock() throws Exception {
+
+		System.out.println("\nTest name: testAckWithoutHeadLock \n");
+
+		String queueName = "testAckWithoutHeadLock" + UUID.randomUUID();
+		QueueService queueService = new FileBasedQueueService(queueName, 4096);
+		queueService.pushAll(IntStream.range(0, 200).boxed().map(num -> "message" + num)
+				.collect(Collectors.toList()));
+		List<QueueMessage> received = queueService.receive(200, 30, TimeUnit.SECONDS);
+
+		SegmentedQueue consumer = new SegmentedQueue(queueName, 4096, new QueueOptions());
+		QueueLock headLock = consumer.getLock();
+
+		/*
+		 * Producers and acknowledgements go on while a consumer holds the head lock
+		 */
+		ExecutorService ackers = Executors.newFixedThreadPool(8);
+		List<Future<Boolean>> acks = new ArrayList<>();
+		for (QueueMessage message : received) {
+			acks.add(ackers.submit(() -> queueService.ack(message.getReceiptHandle())));
+		}
+		Future<Long> push = ackers.submit(() -> queueService.push("Pushed"));
+		for (Future<Boolean> ack : acks) {
+			assertTrue(ack.get(5, TimeUnit.SECONDS));
+		}
+		push.get(5, TimeUnit.SECONDS);
+		ackers.shutdown();
+
+		assertEquals(0, consumer.getInFlightCount());
+		assertFalse(queueService.ack(received.get(0).getReceiptHandle()));
+
+		headLock.release();
+		consumer.destroy();
+		assertEquals("Pushed", queueService.receive(1, 1, TimeUnit.SECONDS).get(0).getBody());
+		queueService.shutdown();
+	}
+
+	@Test
+	public void testAbortedAppend() throws Exception {
+
+		System.out.println("\nTest name: testAbortedAppend \n");
+
+		String queueName = "testAbortedAppend" + UUID.randomUUID();
+		QueueService queueService = new FileBasedQueueService(queueName, 1000);
+		SegmentedQueue producer = new SegmentedQueue(queueName, 1000, new QueueOptions());
+
+		/*
+		 * A producer failing after reserving its record does not stall the consumers
+		 */
+		assertThrows(IllegalStateException.class, () -> producer.append(
+				ByteBuffer.wrap("Aborted".getBytes(StandardCharsets.UTF_8)), MessageStatus.UNPROCESSED, position -> {
+					throw new IllegalStateException("Injected");
+				}));
+		queueService.push("Pushed");
+
+		assertEquals("Pushed", queueService.receive(1, 1, TimeUnit.SECONDS).get(0).getBody());
+		producer.destroy();
+		queueService.shutdown();
+	}
+
+	@Test
+	public void testPartialPush() throws Exception {
+
+		System.out.println("\nTest name: testPartialPush \n");
+
+		String queueName = "testPartialPush" + UUID.randomUUID();
+		QueueService queueService = new FileBasedQueueService(queueName, 1000);
+
+		/*
+		 * A directory in place of the second segment makes the batch fail once the
+		 * first segment is full
+		 */
+		File blocked = new File(SegmentedQueue.getSegmentName(queueName, 1) + ".queue");
+		assertTrue(blocked.mkdir());
+		PartialPushException partial = assertThrows(PartialPushException.class, () -> queueService.pushAll(
+				IntStream.range(0, 100).boxed().map(num -> "message" + num).collect(Collectors.toList())));
+		assertTrue(partial.getIds().length > 0);
+		assertTrue(blocked.delete());
+		queueService.push("Pushed");
+
+		List<QueueMessage> received = queueService.receive(100, 30, TimeUnit.SECONDS);
+		assertEquals(partial.getIds().length + 1, received.size());
+		assertEquals("Pushed", received.get(received.size() - 1).getBody());
+		queueService.shutdown();
+	}
+
+	@Test
+	public void testRedriveToDeadLetterQueue() throws IOException, InterruptedException {
+
+		System.out.println("\nTest name: testRedriveToDeadLetterQueue \n");
+
+		String queueName = "testRedriveToDeadLetterQueue" + UUID.randomUUID();
+		String poisonMessage = "PoisonMessage";
+		List<String> processed = new ArrayList<>();
+
+		FileBasedQueueService queueService = new FileBasedQueueService(queueName, 1000,
+				new QueueOptions().setMaxReceiveCount(2)) {
+
+			@Override
+			public boolean processMessage(String message) throws IOException, TimeoutException {
+				processed.add(message);
+				if (message.equals(poisonMessage)) {
+					throw new IOException("Cannot process " + message);
+				}
+				return true;
+			}
+		};
+		queueService.pushAll(Arrays.asList(poisonMessage, "Length1"));
+		CommonUtils.markPushEnd(queueName);
+
+		for (int pulls = 0; pulls < 10 && !queueService.hasAllMessagesConsumed(); pulls++) {
+			queueService.pull();
+		}
+
+		assertTrue(queueService.hasAllMessagesConsumed());
+		assertEquals(2, Collections.frequency(processed, poisonMessage));
+		assertEquals(1, queueService.getDeadLetterQueue().getMessageCount());
+
+		QueueService deadLetterQueue = new FileBasedQueueService(QueueService.getDLQName(queueName), 500);
+		assertEquals(poisonMessage, deadLetterQueue.pull());
+
+		deadLetterQueue.shutdown();
+		queueService.shutdown();
+	}
+
+	@Test
+	public void testMetrics() throws Exception {
+
+		System.out.println("\nTest name: testMetrics \n");
+
+		String queueName = "testMetrics" + UUID.randomUUID();
+		String poisonMessage = "PoisonMessage";
+		List<String> reports = Collections.synchronizedList(new ArrayList<>());
+
+		FileBasedQueueService queueService = new FileBasedQueueService(queueName, 1000,
+				new QueueOptions().setMaxReceiveCount(1).setJmx(true)
+						.setMetricsReporter(metrics -> reports.add(metrics.toString()), 1, TimeUnit.HOURS)) {
+
+			@Override
+			public boolean processMessage(String message) throws IOException, TimeoutException {
+				if (message.equals(poisonMessage)) {
+					throw new IOException("Cannot process " + message);
+				}
+				return true;
+			}
+		};
+		queueService.push("Length1");
+		queueService.pushAll(Arrays.asList(poisonMessage, "Length2"));
+
+		QueueMetrics metrics = queueService.getMetrics();
+		assertEquals(3, metrics.getPushCount());
+		assertTrue(metrics.getBacklogBytes() > 0);
+
+		while (queueService.pull() != null) {
+		}
+
+		assertEquals(0, metrics.getBacklogBytes());
+		assertEquals(0, metrics.getInFlightCount());
+		assertEquals(3, metrics.getPullCount());
+		assertEquals(3, metrics.getHandlerCount());
+		assertEquals(1, metrics.getHandlerFailureCount());
+		assertEquals(1, metrics.getDeadLetterCount());
+		assertTrue(metrics.getLockCount() >= 3);
+		assertTrue(metrics.getHandlerLatencyMaxMillis() >= metrics.getHandlerLatencyP50Millis());
+		assertEquals(0, metrics.getLockContentionCount());
+
+		// A consumer holding the head lock makes the next one wait for it
+		SegmentedQueue consumer = new SegmentedQueue(queueName, 1000, new QueueOptions());
+		QueueLock headLock = consumer.getLock();
+		ExecutorService puller = Executors.newSingleThreadExecutor();
+		Future<List<QueueMessage>> pulled = puller.submit(() -> queueService.receive(1, 0, TimeUnit.SECONDS));
+		for (int attempt = 0; attempt < 500 && metrics.getLockContentionCount() == 0; attempt++) {
+			Thread.sleep(10);
+		}
+		assertEquals(1, metrics.getLockContentionCount());
+		assertFalse(pulled.isDone());
+		headLock.release();
+		assertTrue(pulled.get(5, TimeUnit.SECONDS).isEmpty());
+		puller.shutdown();
+		consumer.destroy();
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		assertEquals(3L, server.getAttribute(metrics.getObjectName(), "PushCount"));
+		assertEquals(1L, server.getAttribute(metrics.getObjectName(), "DeadLetterCount"));
+
+		// Reported once more on shutdown
+		queueService.shutdown();
+		assertEquals(1, reports.size());
+		assertTrue(reports.get(0).contains("push=3"));
+		assertFalse(server.isRegistered(metrics.getObjectName()));
+	}
+
+	@Test
+	public void testBlockingPull() throws Exception {
+
+		System.out.println("\nTest name: testBlockingPull \n");
+
+		String queueName = "testBlockingPull" + UUID.randomUUID();
+		QueueService consumer = new FileBasedQueueService(queueName, 1000);
+		QueueService producer = new FileBasedQueueService(queueName, 1000);
+
+		long start = System.nanoTime();
+		assertEquals(null, consumer.pull(200, TimeUnit.MILLISECONDS));
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+
+		ExecutorService taker = Executors.newSingleThreadExecutor();
+		Future<String> taken = taker.submit(consumer::take);
+		Thread.sleep(100);
+		assertFalse(taken.isDone());
+
+		producer.push("Wakeup");
+		assertEquals("Wakeup", taken.get(5, TimeUnit.SECONDS));
+		taker.shutdown();
+
+		producer.shutdown();
+		consumer.shutdown();
+	}
+
+	@Test
+	public void testParallelConsumer() throws Exception {
+
+		System.out.println("\nTest name: testParallelConsumer \n");
+
+		String queueName = "testParallelConsumer" + UUID.randomUUID();
+		String slowMessage = "SLOW_MESSAGE";
+		List<String> processed = Collections.synchronizedList(new ArrayList<>());
+
+		QueueService queueService = new FileBasedQueueService(queueName, 1000) {
+
+			@Override
+			public boolean processMessage(String message) throws IOException, TimeoutException {
+				try {
+					Thread.sleep(message.equals(slowMessage) ? 10000 : 100);
+				} catch (InterruptedException e) {
+					throw new TimeoutException();
+				}
+				processed.add(message);
+				return true;
+			}
+		};
+
+		List<String> pushList = IntStream.range(0, 40).boxed().map(num -> "message" + num)
+				.collect(Collectors.toList());
+		queueService.pushAll(pushList);
+		queueService.push(slowMessage);
+		CommonUtils.markPushEnd(queueName);
+
+		long start = System.nanoTime();
+		new ParallelConsumer(queueService).setConcurrency(8).setMessageTimeout(500, TimeUnit.MILLISECONDS)
+				.runUntilConsumed();
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		queueService.shutdown();
+
+		/*
+		 * One at a time would take more than 4 seconds
+		 */
+		assertTrue("Took " + elapsed + " ms", elapsed < 3000);
+		assertEquals(new HashSet<>(pushList), new HashSet<>(processed));
+
+		QueueService deadLetterQueue = new FileBasedQueueService(QueueService.getDLQName(queueName), 1000);
+		assertEquals(slowMessage, deadLetterQueue.receive(1, 1, TimeUnit.SECONDS).get(0).getBody());
+		deadLetterQueue.shutdown();
+	}
+
+	@Test
+	public void testRejectedMessagesAreDeliveredAgain() throws Exception {
+
+		System.out.println("\nTest name: testRejectedMessagesAreDeliveredAgain \n");
+
+		String queueName = "testRejectedMessages" + UUID.randomUUID();
+		Set<String> rejected = ConcurrentHashMap.newKeySet();
+		List<String> processed = Collections.synchronizedList(new ArrayList<>());
+
+		QueueService queueService = new FileBasedQueueService(queueName, 1000) {
+
+			@Override
+			public boolean processMessage(String message) {
+				// Every message is rejected the first time
+				if (rejected.add(message)) {
+					return false;
+				}
+				processed.add(message);
+				return true;
+			}
+		};
+
+		queueService.push("pulled");
+		assertEquals("pulled", queueService.pull());
+		assertEquals("pulled", queueService.pull());
+		assertEquals(Arrays.asList("pulled"), processed);
+
+		List<String> pushList = IntStream.range(0, 10).boxed().map(num -> "message" + num)
+				.collect(Collectors.toList());
+		queueService.pushAll(pushList);
+		CommonUtils.markPushEnd(queueName);
+		new ParallelConsumer(queueService).setConcurrency(4).runUntilConsumed();
+		queueService.shutdown();
+
+		assertEquals(11, rejected.size());
+		assertEquals(11, processed.size());
+	}
+
+	@Test
+	public void testConsumerGroup() throws Exception {
+
+		System.out.println("\nTest name: testConsumerGroup \n");
+
+		String topicName = "testConsumerGroup" + UUID.randomUUID();
+		PartitionedTopic topic = new PartitionedTopic(topicName, 4, 4096) {
+
+			@Override
+			protected QueueService openPartition(int partition) throws IOException {
+				return new FileBasedQueueService(getPartitionName(topicName, partition), 4096) {
+
+					@Override
+					public boolean processMessage(String message) {
+						return true;
+					}
+				};
+			}
+		};
+
+		int keyCount = 20;
+		int messagesPerKey = 10;
+		for (int sequence = 0; sequence < messagesPerKey; sequence++) {
+			for (int key = 0; key < keyCount; key++) {
+				topic.push("key" + key, "key" + key + ":" + sequence);
+			}
+		}
+
+		GroupConsumer first = topic.subscribe("group");
+		GroupConsumer second = topic.subscribe("group");
+		List<String> processed = Collections.synchronizedList(new ArrayList<>());
+
+		ExecutorService consumers = Executors.newFixedThreadPool(2);
+		List<Future<?>> results = new ArrayList<>();
+		for (GroupConsumer consumer : Arrays.asList(first, second)) {
+			results.add(consumers.submit(() -> {
+				long deadline = System.currentTimeMillis() + 20000;
+				while (processed.size() < keyCount * messagesPerKey && System.currentTimeMillis() < deadline) {
+					String message = consumer.pull();
+					if (message != null) {
+						processed.add(message);
+					}
+				}
+				return null;
+			}));
+		}
+		for (Future<?> result : results) {
+			result.get();
+		}
+		consumers.shutdown();
+
+		assertEquals(keyCount * messagesPerKey, processed.size());
+		for (int key = 0; key < keyCount; key++) {
+			String prefix = "key" + key + ":";
+			List<String> ofKey = processed.stream().filter(message -> message.startsWith(prefix))
+					.collect(Collectors.toList());
+			List<String> expected = IntStream.range(0, messagesPerKey).mapToObj(sequence -> prefix + sequence)
+					.collect(Collectors.toList());
+			assertEquals(expected, ofKey);
+		}
+
+		assertEquals(2, first.getAssignment().size());
+		assertEquals(2, second.getAssignment().size());
+
+		second.close();
+		assertEquals(Arrays.asList(0, 1, 2, 3), first.getAssignment());
+
+		first.close();
+		topic.shutdown();
+	}
+
+	@Test
+	public void testMessageCountWithVirtualThreads() throws IOException, InterruptedException {
+
+		Assume.assumeTrue("Virtual threads need Java 21", VirtualThreads.isSupported());
+		System.out.println("\nTest name: testMessageCountWithVirtualThreads \n");
+
+		String queueName = "testVirtualThreads" + UUID.randomUUID();
+
+		int datasourceSize = 1024 * 5;
+		int producerThreadCount = 50;
+		int produceCountPerThread = 20;
+
+		ProducerExecutor producerExecutor = new ProducerExecutor().setVirtualThreads(true);
+		producerExecutor.setDatasourceSize(datasourceSize);
+		producerExecutor.execute(queueName, produceCountPerThread, producerThreadCount);
+
+		ConsumerExecutor executor = new ConsumerExecutor().setVirtualThreads(true).setConcurrency(16);
+		executor.setDatasourceSize(datasourceSize);
+		executor.dontPrintMessages();
+
+		executeConsumer(executor, queueName, 4);
+
+		assertEquals(produceCountPerThread * producerThreadCount, executor.getTotalMessageConsumed());
+	}
+
+	@Test
+	public void testSharedPerFileForgetsUnusedFiles() throws IOException, InterruptedException {
+		System.out.println("\nTest name: testSharedPerFileForgetsUnusedFiles \n");
+
+		SharedPerFile<Object> shared = new SharedPerFile<>(Object::new);
+		FileQueue file = new FileQueue("testSharedPerFile" + UUID.randomUUID(), QueueFormat.META_SIZE);
+
+		Object first = shared.get(file);
+		assertSame(first, shared.get(file));
+		assertEquals(1, shared.size());
+
+		first = null;
+		for (int attempt = 0; attempt < 100 && shared.size() > 0; attempt++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		assertEquals(0, shared.size());
+		assertNotNull(shared.get(file));
+		file.destroy();
+	}
+
+	@Test
+	public void testHeadLockAcrossProcesses() throws Exception {
+		System.out.println("\nTest name: testHeadLockAcrossProcesses \n");
+
+		String queueName = "testHeadLockAcrossProcesses" + UUID.randomUUID();
+		SegmentedQueue queue = new SegmentedQueue(queueName, 1000, new QueueOptions());
+		QueueLock lock = queue.getLock();
+
+		// Other instances of the process opening and closing the queue leave the lock held
+		new SegmentedQueue(queueName, 1000, new QueueOptions()).destroy();
+		assertEquals(0, runInOtherProcess("tryLock", queueName));
+
+		lock.release();
+		assertEquals(1, runInOtherProcess("tryLock", queueName));
+		queue.destroy();
+	}
+
+	@Test
+	public void testRecoveryAcrossProcesses() throws Exception {
+		System.out.println("\nTest name: testRecoveryAcrossProcesses \n");
+
+		String queueName = "testRecoveryAcrossProcesses" + UUID.randomUUID();
+		FileBasedQueueService queueService = new FileBasedQueueService(queueName, 1000);
+		queueService.push("Leased");
+		QueueMessage message = queueService.receive(1, 1, TimeUnit.HOURS).get(0);
+
+		// Other instances of the process opening and closing the queue leave it open, so it is not recovered
+		new FileBasedQueueService(queueName, 1000).shutdown();
+		assertEquals(0, runInOtherProcess("receive", queueName));
+
+		assertTrue(queueService.ack(message.getReceiptHandle()));
+		queueService.shutdown();
+	}
+
+	/**
+	 * Entry point of the process started by
+	 * {@link #runInOtherProcess(String, String)}, exits with the outcome.
+	 */
+	public static void main(String[] args) throws IOException {
+		String queueName = args[1];
+		int outcome;
+		if (args[0].equals("tryLock")) {
+			SegmentedQueue queue = new SegmentedQueue(queueName, 1000, new QueueOptions());
+			QueueLock lock = queue.tryGetLock();
+			outcome = lock == null ? 0 : 1;
+			if (lock != null) {
+				lock.release();
+			}
+			queue.destroy();
+		} else {
+			FileBasedQueueService queueService = new FileBasedQueueService(queueName, 1000);
+			outcome = queueService.receive(10, 1, TimeUnit.HOURS).size();
+			queueService.shutdown();
+		}
+		System.exit(outcome);
+	}
+
+	private static int runInOtherProcess(String mode, String queueName) throws IOException, InterruptedException {
+		Process process = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+				"-cp", System.getProperty("java.class.path"), QueueServiceTest.class.getName(), mode, queueName)
+				.inheritIO().start();
+		assertTrue(process.waitFor(60, TimeUnit.SECONDS));
+		return process.exitValue();
+	}
+
 	@AfterClass
 	public static void tearDown() {
 		CommonUtils.deleteAllFiles(".", FileQueue.EXTENSION);
 	}
 
+	private static String legacyInt(int value, int length) {
+		return StringUtils.leftPad(Integer.toBinaryString(value), length, '0');
+	}
+
 	private void executeConsumer(ConsumerExecutor consumerExecutor, String topic, int consumerCount) {
 		try {
 			consumerTerminator.submit(() -> consumerExecutor.execute(topic, consumerCount)).get(1000, TimeUnit.SECONDS);